@@ -1,22 +1,27 @@
 package org.apache.example.learn2.consumer;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.serializers.CompatibleFieldSerializer;
 import com.esotericsoftware.kryo.util.DefaultInstantiatorStrategy;
-import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.SliceDeserializer;
 import org.objenesis.strategy.StdInstantiatorStrategy;
 
 import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
  * kryo解码器
+ * <p>
+ * consumer 直接交给解码器fetch 缓冲区中的数据，不再拷贝成byte数组
  *
  * @author
  * @date 2019/6/15
  */
-public class KryoDeserializer implements Deserializer<Object> {
+public class KryoDeserializer implements SliceDeserializer<Object> {
     @Override
     public void configure(Map<String, ?> configs, boolean isKey) {
 
@@ -36,6 +41,21 @@ public class KryoDeserializer implements Deserializer<Object> {
         }
     }
 
+    @Override
+    public Object deserialize(String topic, Headers headers, byte[] bytes) {
+        return deserialize(topic, bytes);
+    }
+
+    @Override
+    public Object deserialize(String topic, Headers headers, ByteBuffer data) {
+        try {
+            return Deserializer.deserialize(data);
+        } catch (Exception e) {
+            System.out.println(e);
+            return null;
+        }
+    }
+
     @Override
     public void close() {
 
@@ -53,6 +73,14 @@ public class KryoDeserializer implements Deserializer<Object> {
             return o;
         }
 
+        private static Object deserialize(ByteBuffer data) {
+            Kryo kryo = getKryo();
+            Input input = data.hasArray()
+                    ? new Input(data.array(), data.arrayOffset() + data.position(), data.remaining())
+                    : new ByteBufferInput(data);
+            return kryo.readClassAndObject(input);
+        }
+
         private static Kryo getKryo() {
             Kryo kryo = new Kryo();
             StdInstantiatorStrategy stdInstantiatorStrategy = new StdInstantiatorStrategy();
@@ -2,15 +2,19 @@ package org.apache.example.learn2.consumer;
 
 import org.apache.example.learn2.entity.KafkaMessage;
 import org.apache.example.learn2.util.ProtostuffUtil;
-import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.SliceDeserializer;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
+ * protostuff解码器，直接从fetch 缓冲区解码
+ *
  * @author maochao
  * @since 2019/7/8 19:29
  */
-public class ProtostuffDerializer implements Deserializer {
+public class ProtostuffDerializer implements SliceDeserializer {
     @Override
     public void configure(Map configs, boolean isKey) {
 
@@ -21,6 +25,16 @@ public class ProtostuffDerializer implements Deserializer {
         return ProtostuffUtil.deserialize(data, KafkaMessage.class);
     }
 
+    @Override
+    public Object deserialize(String topic, Headers headers, byte[] data) {
+        return deserialize(topic, data);
+    }
+
+    @Override
+    public Object deserialize(String topic, Headers headers, ByteBuffer data) {
+        return ProtostuffUtil.deserialize(data, KafkaMessage.class);
+    }
+
     @Override
     public void close() {
 
@@ -4,22 +4,31 @@ import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.serializers.CompatibleFieldSerializer;
 import com.esotericsoftware.kryo.util.DefaultInstantiatorStrategy;
-import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.SerializedValue;
+import org.apache.kafka.common.serialization.StreamingSerializer;
 import org.objenesis.strategy.StdInstantiatorStrategy;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Map;
 
 /**
  * kryo编码器
+ * <p>
+ * 作为value序列化器时，对象先编码到线程私有的Output缓冲区，再由producer直接写入批次，不再生成中间的byte数组
  *
  * @author
  * @date 2019/6/15
  */
-public class KryoSerializer implements Serializer {
+public class KryoSerializer implements StreamingSerializer {
 
     private Kryo kryo;
 
+    private final ThreadLocal<KryoValue> values = ThreadLocal.withInitial(KryoValue::new);
+
     @Override
     public void configure(Map configs, boolean isKey) {
         this.kryo = Serializer.getKryo();
@@ -41,11 +50,45 @@ public class KryoSerializer implements Serializer {
     }
 
 
+    @Override
+    public byte[] serialize(String topic, Headers headers, Object data) {
+        return serialize(topic, data);
+    }
+
+    @Override
+    public SerializedValue prepare(String topic, Headers headers, Object data) {
+        KryoValue value = values.get();
+        try {
+            value.output.reset();
+            kryo.writeClassAndObject(value.output, data);
+            return value;
+        } catch (Exception e) {
+            throw new SerializationException("Error serializing value of class " + data.getClass().getName(), e);
+        }
+    }
+
     @Override
     public void close() {
 
     }
 
+    /**
+     * 复用的编码结果，指向当前线程Output缓冲区中已写入的部分
+     */
+    private static class KryoValue implements SerializedValue {
+        private final Output output = new Output(1024, 102400);
+
+        @Override
+        public int sizeInBytes() {
+            return output.position();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(output.getBuffer(), 0, output.position());
+        }
+    }
+
     private static class Serializer {
         private static byte[] serialize(Object object, Kryo kryo) {
             ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
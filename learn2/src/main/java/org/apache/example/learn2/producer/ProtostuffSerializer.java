@@ -1,19 +1,28 @@
 package org.apache.example.learn2.producer;
 
-import org.apache.kafka.common.serialization.Serializer;
+import io.protostuff.LinkedBuffer;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.SerializedValue;
+import org.apache.kafka.common.serialization.StreamingSerializer;
 import org.apache.example.learn2.util.ProtostuffUtil;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Map;
 
 /**
  * 
  * ProtostuffSerializer 编码器
+ * <p>
+ * 作为value序列化器时，对象编码到线程私有的LinkedBuffer中，再由producer逐段写入批次，不再拼接成byte数组
  * 
  * @author maochao
  * @since 2019/7/8 17:58
  * 
  */
-public class ProtostuffSerializer implements Serializer {
+public class ProtostuffSerializer implements StreamingSerializer {
+
+    private final ThreadLocal<ProtostuffValue> values = ThreadLocal.withInitial(ProtostuffValue::new);
 
     @Override
     public void configure(Map configs, boolean isKey) {
@@ -25,8 +34,39 @@ public class ProtostuffSerializer implements Serializer {
         return ProtostuffUtil.serialize(data);
     }
 
+    @Override
+    public byte[] serialize(String topic, Headers headers, Object data) {
+        return serialize(topic, data);
+    }
+
+    @Override
+    public SerializedValue prepare(String topic, Headers headers, Object data) {
+        ProtostuffValue value = values.get();
+        value.buffer.clear();
+        value.size = ProtostuffUtil.writeTo(data, value.buffer);
+        return value;
+    }
+
     @Override
     public void close() {
 
     }
+
+    /**
+     * 复用的编码结果，保存在当前线程的LinkedBuffer中
+     */
+    private static class ProtostuffValue implements SerializedValue {
+        private final LinkedBuffer buffer = LinkedBuffer.allocate();
+        private int size;
+
+        @Override
+        public int sizeInBytes() {
+            return size;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            LinkedBuffer.writeTo(out, buffer);
+        }
+    }
 }
@@ -4,9 +4,13 @@ import io.protostuff.LinkedBuffer;
 import io.protostuff.ProtostuffIOUtil;
 import io.protostuff.Schema;
 import io.protostuff.runtime.RuntimeSchema;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.utils.ByteBufferInputStream;
 import org.objenesis.Objenesis;
 import org.objenesis.ObjenesisStd;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -31,6 +35,14 @@ public class ProtostuffUtil {
         }
     }
 
+    /**
+     * 将对象编码到调用方提供的LinkedBuffer中，返回编码后的字节数
+     */
+    public static <T> int writeTo(T obj, LinkedBuffer buf) {
+        Schema<T> schema = getSchema((Class<T>)obj.getClass());
+        return ProtostuffIOUtil.writeTo(buf, obj, schema);
+    }
+
     private  static<T> Schema<T> getSchema(Class<T> clazz) {
         Schema<T> schema = (Schema<T>)schemaCache.get(clazz);
         if (schema == null) {
@@ -53,4 +65,23 @@ public class ProtostuffUtil {
         return object;
     }
 
+    /**
+     * 从缓冲区position 到limit 之间的数据解码，堆内缓冲区直接读取其底层数组
+     */
+    public static <T> T deserialize(ByteBuffer buffer, Class<T> clazz) {
+        T object = objenesis.newInstance(clazz);
+        Schema<T> schema = getSchema(clazz);
+        if (buffer.hasArray()) {
+            ProtostuffIOUtil.mergeFrom(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(),
+                    object, schema);
+        } else {
+            try {
+                ProtostuffIOUtil.mergeFrom(new ByteBufferInputStream(buffer), object, schema);
+            } catch (IOException e) {
+                throw new SerializationException(e);
+            }
+        }
+        return object;
+    }
+
 }
@@ -18,6 +18,7 @@ package org.apache.kafka.clients;
 
 import org.apache.kafka.common.errors.AuthenticationException;
 import org.apache.kafka.common.errors.UnsupportedVersionException;
+import org.apache.kafka.common.network.NetworkReceive;
 import org.apache.kafka.common.requests.AbstractResponse;
 import org.apache.kafka.common.requests.RequestHeader;
 
@@ -36,6 +37,7 @@ public class ClientResponse {
     private final UnsupportedVersionException versionMismatch;
     private final AuthenticationException authenticationException;
     private final AbstractResponse responseBody;
+    private final NetworkReceive receive;
 
     /**
      * @param requestHeader   The header of the corresponding request
@@ -57,6 +59,24 @@ public class ClientResponse {
                           UnsupportedVersionException versionMismatch,
                           AuthenticationException authenticationException,
                           AbstractResponse responseBody) {
+        this(requestHeader, callback, destination, createdTimeMs, receivedTimeMs, disconnected, versionMismatch,
+                authenticationException, responseBody, null);
+    }
+
+    /**
+     * @param receive The receive the response was parsed from, if the response keeps referring to its memory, which
+     *                is then released with {@link #releasePayload()}
+     */
+    public ClientResponse(RequestHeader requestHeader,
+                          RequestCompletionHandler callback,
+                          String destination,
+                          long createdTimeMs,
+                          long receivedTimeMs,
+                          boolean disconnected,
+                          UnsupportedVersionException versionMismatch,
+                          AuthenticationException authenticationException,
+                          AbstractResponse responseBody,
+                          NetworkReceive receive) {
         this.requestHeader = requestHeader;
         this.callback = callback;
         this.destination = destination;
@@ -66,6 +86,16 @@ public class ClientResponse {
         this.versionMismatch = versionMismatch;
         this.authenticationException = authenticationException;
         this.responseBody = responseBody;
+        this.receive = receive;
+    }
+
+    /**
+     * Return the memory the response was received into to the memory pool, once nothing parsed from the response is
+     * used anymore. Only fetch responses, whose records are read from that memory, keep it after they are parsed.
+     */
+    public void releasePayload() {
+        if (receive != null)
+            receive.releasePayload();
     }
 
     public long receivedTimeMs() {
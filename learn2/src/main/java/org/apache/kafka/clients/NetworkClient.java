@@ -772,8 +772,11 @@ private int i=0;
             String source = receive.source();
             //从请求队列中移除请求
             InFlightRequest req = inFlightRequests.completeNext(source);
+            // 只有fetch 响应解析后仍引用接收缓冲区，由使用方归还；其余响应拷贝出内存池后立即归还缓冲区
+            boolean keepsPayload = req.header.apiKey() == ApiKeys.FETCH;
+            ByteBuffer payload = keepsPayload ? receive.payload() : receive.detachPayload();
             Struct responseStruct =
-                    parseStructMaybeUpdateThrottleTimeMetrics(receive.payload(), req.header, throttleTimeSensor, now);
+                    parseStructMaybeUpdateThrottleTimeMetrics(payload, req.header, throttleTimeSensor, now);
             if (log.isTraceEnabled()) {
                 log.trace("Completed receive from node {} for {} with correlation id {}, received {}", req.destination,
                         req.header.apiKey(), req.header.correlationId(), responseStruct);
@@ -786,7 +789,7 @@ private int i=0;
             else if (req.isInternalRequest && body instanceof ApiVersionsResponse)
                 handleApiVersionsResponse(responses, req, now, (ApiVersionsResponse) body);
             else
-                responses.add(req.completed(body, now));
+                responses.add(req.completed(body, keepsPayload ? receive : null, now));
         }
     }
 
@@ -1161,8 +1164,12 @@ private int i=0;
         }
 
         public ClientResponse completed(AbstractResponse response, long timeMs) {
+            return completed(response, null, timeMs);
+        }
+
+        public ClientResponse completed(AbstractResponse response, NetworkReceive receive, long timeMs) {
             return new ClientResponse(header, callback, destination, createdTimeMs, timeMs, false, null, null,
-                    response);
+                    response, receive);
         }
 
         public ClientResponse disconnected(long timeMs, AuthenticationException authenticationException) {
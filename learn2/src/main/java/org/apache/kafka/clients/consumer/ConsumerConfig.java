@@ -283,6 +283,71 @@ public class ConsumerConfig extends AbstractConfig {
 
     public static final String DEFAULT_ISOLATION_LEVEL = IsolationLevel.READ_UNCOMMITTED.toString().toLowerCase(Locale.ROOT);
 
+    /**
+     * <code>compression.dictionary.files</code>
+     */
+    public static final String COMPRESSION_DICTIONARY_FILES_CONFIG = "compression.dictionary.files";
+    private static final String COMPRESSION_DICTIONARY_FILES_DOC = "The dictionaries that producers of the consumed "
+            + "topics use to compress small record values (see the producer's <code>compression.dictionary.file</code>). "
+            + "Values of records with a <code>compression.dictionary.id</code> header are decompressed with the "
+            + "dictionary of that id before they are deserialized, and the header is removed.";
+
+    /**
+     * <code>lazy.deserialization.enable</code>
+     */
+    public static final String LAZY_DESERIALIZATION_ENABLE_CONFIG = "lazy.deserialization.enable";
+    private static final String LAZY_DESERIALIZATION_ENABLE_DOC = "When set to 'true', the key and value of a record "
+            + "returned by <code>poll()</code> are deserialized (and restored with their compression dictionary) the first "
+            + "time they are accessed rather than when the record is fetched, so records that are skipped after looking "
+            + "only at their headers, offset or timestamp are never deserialized. A record then keeps the fetched bytes of "
+            + "its key and value, and for uncompressed batches the whole fetch response they were read from, until it is "
+            + "garbage collected. Deserialization errors are thrown by <code>key()</code> or <code>value()</code> instead "
+            + "of <code>poll()</code>, and the deserializers must not be used after the consumer is closed.";
+
+    /**
+     * <code>fetch.decode.threads</code>
+     */
+    public static final String FETCH_DECODE_THREADS_CONFIG = "fetch.decode.threads";
+    private static final String FETCH_DECODE_THREADS_DOC = "The number of threads that decompress and deserialize the "
+            + "records of each partition of a fetch response as soon as it arrives, so that <code>poll()</code> hands out "
+            + "records that are already parsed. With the default of 0 the records are decompressed and deserialized by "
+            + "the thread calling <code>poll()</code>. The deserializers are called from these threads concurrently and "
+            + "must be thread safe.";
+
+    /**
+     * <code>fetch.decode.buffer.bytes</code>
+     */
+    public static final String FETCH_DECODE_BUFFER_BYTES_CONFIG = "fetch.decode.buffer.bytes";
+    private static final String FETCH_DECODE_BUFFER_BYTES_DOC = "The maximum amount of decompressed record data that "
+            + "the <code>" + FETCH_DECODE_THREADS_CONFIG + "</code> threads keep ahead of <code>poll()</code>. Partitions "
+            + "fetched while this much data is waiting to be consumed are decompressed and deserialized by "
+            + "<code>poll()</code> instead.";
+
+    /**
+     * <code>fetch.buffer.memory</code>
+     */
+    public static final String FETCH_BUFFER_MEMORY_CONFIG = "fetch.buffer.memory";
+    private static final String FETCH_BUFFER_MEMORY_DOC = "The total bytes of memory the consumer can use to receive "
+            + "responses into and to hold fetched records until they are returned by <code>poll()</code>. Responses are "
+            + "received into buffers that are recycled once all the records of a fetch response are returned, and reads "
+            + "from the brokers are paused while the memory is used up. The memory in use may exceed this by at most one "
+            + "response. Responses smaller than 64 KB, such as heartbeats, are not limited, and the ones that are not fetch "
+            + "responses are copied out of the pool once they are received. With the default of 0 each response is "
+            + "received into a new buffer. Records returned with <code>" + LAZY_DESERIALIZATION_ENABLE_CONFIG
+            + "</code> then hold a copy of their key and value rather than a view of the fetched bytes.";
+
+    /**
+     * <code>fetch.max.buffered.bytes</code>
+     */
+    public static final String FETCH_MAX_BUFFERED_BYTES_CONFIG = "fetch.max.buffered.bytes";
+    private static final String FETCH_MAX_BUFFERED_BYTES_DOC = "The maximum amount of fetched record data the consumer "
+            + "keeps ahead of <code>poll()</code>, counting both the data waiting to be returned and the data requested by "
+            + "in-flight fetch requests. Each partition in a fetch request is counted as <code>"
+            + MAX_PARTITION_FETCH_BYTES_CONFIG + "</code>, up to <code>" + FETCH_MAX_BYTES_CONFIG + "</code> per broker. "
+            + "Partitions that do not fit are left out of the next fetch requests and fetched first once data is consumed. "
+            + "One partition is always fetched when nothing is buffered, so that the consumer makes progress when this is "
+            + "smaller than a single fetch. With the default of 0 the buffered data is not limited.";
+
     static {
         CONFIG = new ConfigDef().define(BOOTSTRAP_SERVERS_CONFIG,
                 Type.LIST,
@@ -477,6 +542,40 @@ public class ConsumerConfig extends AbstractConfig {
                         in(IsolationLevel.READ_COMMITTED.toString().toLowerCase(Locale.ROOT), IsolationLevel.READ_UNCOMMITTED.toString().toLowerCase(Locale.ROOT)),
                         Importance.MEDIUM,
                         ISOLATION_LEVEL_DOC)
+                .define(COMPRESSION_DICTIONARY_FILES_CONFIG,
+                        Type.LIST,
+                        Collections.emptyList(),
+                        Importance.LOW,
+                        COMPRESSION_DICTIONARY_FILES_DOC)
+                .define(LAZY_DESERIALIZATION_ENABLE_CONFIG,
+                        Type.BOOLEAN,
+                        false,
+                        Importance.LOW,
+                        LAZY_DESERIALIZATION_ENABLE_DOC)
+                .define(FETCH_DECODE_THREADS_CONFIG,
+                        Type.INT,
+                        0,
+                        atLeast(0),
+                        Importance.LOW,
+                        FETCH_DECODE_THREADS_DOC)
+                .define(FETCH_DECODE_BUFFER_BYTES_CONFIG,
+                        Type.LONG,
+                        64 * 1024 * 1024L,
+                        atLeast(0L),
+                        Importance.LOW,
+                        FETCH_DECODE_BUFFER_BYTES_DOC)
+                .define(FETCH_BUFFER_MEMORY_CONFIG,
+                        Type.LONG,
+                        0L,
+                        atLeast(0L),
+                        Importance.LOW,
+                        FETCH_BUFFER_MEMORY_DOC)
+                .define(FETCH_MAX_BUFFERED_BYTES_CONFIG,
+                        Type.LONG,
+                        0L,
+                        atLeast(0L),
+                        Importance.LOW,
+                        FETCH_MAX_BUFFERED_BYTES_DOC)
                 // security support
                 .define(CommonClientConfigs.SECURITY_PROTOCOL_CONFIG,
                         Type.STRING,
@@ -231,7 +231,7 @@ public class ConsumerRecord<K, V> {
                 + ", " + timestampType + " = " + timestamp
                 + ", serialized key size = " + serializedKeySize
                 + ", serialized value size = " + serializedValueSize
-                + ", headers = " + headers
-                + ", key = " + key + ", value = " + value + ")";
+                + ", headers = " + headers()
+                + ", key = " + key() + ", value = " + value() + ")";
     }
 }
@@ -38,17 +38,25 @@ import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.InterruptException;
 import org.apache.kafka.common.errors.TimeoutException;
 import org.apache.kafka.common.internals.ClusterResourceListeners;
+import org.apache.kafka.common.memory.MemoryPool;
+import org.apache.kafka.common.memory.RecyclingMemoryPool;
 import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.Measurable;
 import org.apache.kafka.common.metrics.MetricConfig;
 import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.metrics.MetricsReporter;
 import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Max;
 import org.apache.kafka.common.network.ChannelBuilder;
+import org.apache.kafka.common.network.NetworkReceive;
 import org.apache.kafka.common.network.Selector;
+import org.apache.kafka.common.record.CompressionDictionary;
 import org.apache.kafka.common.requests.IsolationLevel;
 import org.apache.kafka.common.requests.MetadataRequest;
 import org.apache.kafka.common.serialization.Deserializer;
 import org.apache.kafka.common.utils.AppInfoParser;
+import org.apache.kafka.common.utils.KafkaThread;
 import org.apache.kafka.common.utils.LogContext;
 import org.apache.kafka.common.utils.Time;
 import org.apache.kafka.common.utils.Utils;
@@ -67,6 +75,9 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -548,6 +559,11 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
     private static final long NO_CURRENT_THREAD = -1L;
     private static final AtomicInteger CONSUMER_CLIENT_ID_SEQUENCE = new AtomicInteger(1);
     private static final String JMX_PREFIX = "kafka.consumer";
+    public static final String DECODE_THREAD_PREFIX = "kafka-consumer-decode-thread";
+    /**
+     * 小于该大小的响应不受fetch.buffer.memory 限制，避免心跳等响应因内存不足而无法读取
+     */
+    private static final int FETCH_BUFFER_MIN_POOLED_BYTES = 64 * 1024;
     static final long DEFAULT_CLOSE_TIMEOUT_MS = 30 * 1000;
 
     // Visible for testing
@@ -729,9 +745,12 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
             Sensor throttleTimeSensor = Fetcher.throttleTimeSensor(metrics, metricsRegistry.fetcherMetrics);
 
             int heartbeatIntervalMs = config.getInt(ConsumerConfig.HEARTBEAT_INTERVAL_MS_CONFIG);
+            MemoryPool fetchMemoryPool = configureFetchMemoryPool(config, metrics, metricGrpPrefix);
 
             NetworkClient netClient = new NetworkClient(
-                    new Selector(config.getLong(ConsumerConfig.CONNECTIONS_MAX_IDLE_MS_CONFIG), metrics, time, metricGrpPrefix, channelBuilder, logContext),
+                    new Selector(NetworkReceive.UNLIMITED, config.getLong(ConsumerConfig.CONNECTIONS_MAX_IDLE_MS_CONFIG),
+                            metrics, time, metricGrpPrefix, Collections.<String, String>emptyMap(), true, false,
+                            channelBuilder, fetchMemoryPool, logContext),
                     this.metadata,
                     clientId,
                     100, // a fixed large enough value will suffice for max in-flight requests
@@ -797,7 +816,13 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
                     this.time,
                     this.retryBackoffMs,
                     this.requestTimeoutMs,
-                    isolationLevel);
+                    isolationLevel,
+                    loadCompressionDictionaries(config.getList(ConsumerConfig.COMPRESSION_DICTIONARY_FILES_CONFIG)),
+                    config.getBoolean(ConsumerConfig.LAZY_DESERIALIZATION_ENABLE_CONFIG),
+                    configureDecodeExecutor(config, clientId),
+                    config.getLong(ConsumerConfig.FETCH_DECODE_BUFFER_BYTES_CONFIG),
+                    fetchMemoryPool != MemoryPool.NONE,
+                    config.getLong(ConsumerConfig.FETCH_MAX_BUFFERED_BYTES_CONFIG));
 
             config.logUnused();
             AppInfoParser.registerAppInfo(JMX_PREFIX, clientId, metrics);
@@ -812,6 +837,65 @@ public class KafkaConsumer<K, V> implements Consumer<K, V> {
         }
     }
 
+    /**
+     * 加载压缩字典，按字典id 索引
+     */
+    private static Map<Integer, CompressionDictionary> loadCompressionDictionaries(List<String> files) {
+        Map<Integer, CompressionDictionary> dictionaries = new HashMap<>();
+        for (String file : files) {
+            CompressionDictionary dictionary = CompressionDictionary.load(file);
+            dictionaries.put(dictionary.id(), dictionary);
+        }
+        return dictionaries;
+    }
+
+    /**
+     * 创建接收响应的内存池，未配置fetch.buffer.memory 时每个响应分配新的缓冲区
+     */
+    private static MemoryPool configureFetchMemoryPool(ConsumerConfig config, Metrics metrics, String metricGrpPrefix) {
+        long fetchBufferMemory = config.getLong(ConsumerConfig.FETCH_BUFFER_MEMORY_CONFIG);
+        if (fetchBufferMemory == 0)
+            return MemoryPool.NONE;
+        String metricGrpName = metricGrpPrefix + "-metrics";
+        Sensor exhaustedTime = metrics.sensor("fetch-buffer-exhausted-time");
+        exhaustedTime.add(metrics.metricName("fetch-buffer-exhausted-time-avg", metricGrpName,
+                "The average time in ms reads from the brokers were paused because the fetch buffer memory was used up"), new Avg());
+        exhaustedTime.add(metrics.metricName("fetch-buffer-exhausted-time-max", metricGrpName,
+                "The maximum time in ms reads from the brokers were paused because the fetch buffer memory was used up"), new Max());
+        final RecyclingMemoryPool pool = new RecyclingMemoryPool(fetchBufferMemory, FETCH_BUFFER_MIN_POOLED_BYTES, exhaustedTime);
+        metrics.addMetric(metrics.metricName("fetch-buffer-available-bytes", metricGrpName,
+                "The amount of fetch buffer memory that is not in use, including the buffers kept for reuse"), new Measurable() {
+                    public double measure(MetricConfig config, long now) {
+                        return pool.availableMemory();
+                    }
+                });
+        metrics.addMetric(metrics.metricName("fetch-buffer-cached-bytes", metricGrpName,
+                "The amount of fetch buffer memory held by released buffers kept for reuse"), new Measurable() {
+                    public double measure(MetricConfig config, long now) {
+                        return pool.cachedMemory();
+                    }
+                });
+        return pool;
+    }
+
+    /**
+     * 创建解压、反序列化fetch 结果的线程池，未配置线程时返回null
+     */
+    private static ExecutorService configureDecodeExecutor(ConsumerConfig config, String clientId) {
+        int decodeThreads = config.getInt(ConsumerConfig.FETCH_DECODE_THREADS_CONFIG);
+        if (decodeThreads == 0)
+            return null;
+        final String threadNamePrefix = DECODE_THREAD_PREFIX + " | " + clientId + "-";
+        return Executors.newFixedThreadPool(decodeThreads, new ThreadFactory() {
+            private final AtomicInteger threadId = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new KafkaThread(threadNamePrefix + threadId.getAndIncrement(), runnable, true);
+            }
+        });
+    }
+
     // visible for testing
     KafkaConsumer(LogContext logContext,
                   String clientId,
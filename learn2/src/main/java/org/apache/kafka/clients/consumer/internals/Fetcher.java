@@ -30,14 +30,18 @@ import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.Node;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
 import org.apache.kafka.common.errors.InvalidTopicException;
 import org.apache.kafka.common.errors.RecordTooLargeException;
 import org.apache.kafka.common.errors.RetriableException;
 import org.apache.kafka.common.errors.SerializationException;
 import org.apache.kafka.common.errors.TimeoutException;
 import org.apache.kafka.common.errors.TopicAuthorizationException;
+import org.apache.kafka.common.header.Header;
 import org.apache.kafka.common.header.Headers;
 import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
 import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.metrics.Sensor;
 import org.apache.kafka.common.metrics.stats.Avg;
@@ -48,6 +52,7 @@ import org.apache.kafka.common.metrics.stats.Min;
 import org.apache.kafka.common.metrics.stats.Value;
 import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.record.BufferSupplier;
+import org.apache.kafka.common.record.CompressionDictionary;
 import org.apache.kafka.common.record.ControlRecordType;
 import org.apache.kafka.common.record.InvalidRecordException;
 import org.apache.kafka.common.record.Record;
@@ -66,7 +71,6 @@ import org.apache.kafka.common.serialization.ExtendedDeserializer;
 import org.apache.kafka.common.utils.CloseableIterator;
 import org.apache.kafka.common.utils.LogContext;
 import org.apache.kafka.common.utils.Time;
-import org.apache.kafka.common.utils.Utils;
 import org.slf4j.Logger;
 
 import java.io.Closeable;
@@ -79,15 +83,25 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static java.util.Collections.emptyList;
+import static org.apache.kafka.common.serialization.ExtendedDeserializer.Wrapper.deserialize;
 import static org.apache.kafka.common.serialization.ExtendedDeserializer.Wrapper.ensureExtended;
 
 /**
@@ -157,6 +171,51 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
      */
     private final ExtendedDeserializer<V> valueDeserializer;
     private final IsolationLevel isolationLevel;
+    /**
+     * 按id 索引的压缩字典，用于还原字典压缩的value
+     */
+    private final Map<Integer, CompressionDictionary> compressionDictionaries;
+    /**
+     * 是否在首次访问key/value时才反序列化
+     */
+    private final boolean lazyDeserialization;
+    /**
+     * 在fetch 结果到达时解压、反序列化的线程池，未启用时为null
+     */
+    private final ExecutorService decodeExecutor;
+    private final long decodeBufferBytes;
+    /**
+     * 解析线程已解析、尚未被poll 取走的数据量
+     */
+    private final AtomicLong decodeBufferedBytes = new AtomicLong();
+    private final ThreadLocal<BufferSupplier> decodeBufferSupplier = new ThreadLocal<BufferSupplier>() {
+        @Override
+        protected BufferSupplier initialValue() {
+            return BufferSupplier.create();
+        }
+    };
+    private final Sensor decodeTime;
+    /**
+     * fetch 响应是否接收到内存池的缓冲区中，是则交给用户的记录不能引用该缓冲区
+     */
+    private final boolean fetchBuffersPooled;
+    /**
+     * 尚未被poll 取走及fetch 请求中的数据量上限，为0 时不限制
+     */
+    private final long maxBufferedBytes;
+    /**
+     * completedFetches 中尚未被poll 取走的数据量，总量及各分区的数据量
+     */
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final ConcurrentMap<TopicPartition, AtomicLong> partitionBufferedBytes = new ConcurrentHashMap<>();
+    /**
+     * 发送中的fetch 请求最多返回的数据量
+     */
+    private final AtomicLong inFlightFetchBytes = new AtomicLong();
+    /**
+     * 上次因超出maxBufferedBytes 而未发送请求的分区，下次优先fetch
+     */
+    private Set<TopicPartition> deferredPartitions = Collections.emptySet();
     private final Map<Integer, FetchSessionHandler> sessionHandlers;
     private final AtomicReference<RuntimeException> cachedListOffsetsException = new AtomicReference<>();
     /**
@@ -181,7 +240,13 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
                    Time time,
                    long retryBackoffMs,
                    long requestTimeoutMs,
-                   IsolationLevel isolationLevel) {
+                   IsolationLevel isolationLevel,
+                   Map<Integer, CompressionDictionary> compressionDictionaries,
+                   boolean lazyDeserialization,
+                   ExecutorService decodeExecutor,
+                   long decodeBufferBytes,
+                   boolean fetchBuffersPooled,
+                   long maxBufferedBytes) {
         this.log = logContext.logger(Fetcher.class);
         this.logContext = logContext;
         this.time = time;
@@ -197,12 +262,31 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
         this.keyDeserializer = ensureExtended(keyDeserializer);
         this.valueDeserializer = ensureExtended(valueDeserializer);
         this.completedFetches = new ConcurrentLinkedQueue<>();
-        this.sensors = new FetchManagerMetrics(metrics, metricsRegistry);
+        this.sensors = new FetchManagerMetrics(metrics, metricsRegistry, bufferedBytes, partitionBufferedBytes);
         this.retryBackoffMs = retryBackoffMs;
         this.requestTimeoutMs = requestTimeoutMs;
         this.isolationLevel = isolationLevel;
+        this.compressionDictionaries = compressionDictionaries;
+        this.lazyDeserialization = lazyDeserialization;
+        this.decodeExecutor = decodeExecutor;
+        this.decodeBufferBytes = decodeBufferBytes;
+        this.fetchBuffersPooled = fetchBuffersPooled;
+        this.maxBufferedBytes = maxBufferedBytes;
         this.sessionHandlers = new HashMap<>();
 
+        if (decodeExecutor != null) {
+            metrics.addMetric(metrics.metricInstance(metricsRegistry.decodeBufferedBytes), new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return decodeBufferedBytes.get();
+                }
+            });
+            this.decodeTime = metrics.sensor("decode-time");
+            this.decodeTime.add(metrics.metricInstance(metricsRegistry.decodeTimeAvg), new Avg());
+            this.decodeTime.add(metrics.metricInstance(metricsRegistry.decodeTimeMax), new Max());
+        } else {
+            this.decodeTime = null;
+        }
+
         subscriptions.addListener(this);
     }
 
@@ -235,11 +319,13 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
      * @return number of fetches sent
      */
     public int sendFetches() {
-        Map<Node, FetchSessionHandler.FetchRequestData> fetchRequestMap = prepareFetchRequests();
+        Map<Node, Long> requestedBytes = new HashMap<>();
+        Map<Node, FetchSessionHandler.FetchRequestData> fetchRequestMap = prepareFetchRequests(requestedBytes);
 
         for (Map.Entry<Node, FetchSessionHandler.FetchRequestData> entry : fetchRequestMap.entrySet()) {
             final Node fetchTarget = entry.getKey();
             final FetchSessionHandler.FetchRequestData data = entry.getValue();
+            final long fetchBytes = requestedBytes.get(fetchTarget);
             final FetchRequest.Builder request = FetchRequest.Builder
                     .forConsumer(this.maxWaitMs, this.minBytes, data.toSend())
                     .isolationLevel(isolationLevel)
@@ -249,23 +335,28 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
             if (log.isDebugEnabled()) {
                 log.debug("Sending {} {} to broker {}", isolationLevel, data.toString(), fetchTarget);
             }
+            inFlightFetchBytes.addAndGet(fetchBytes);
             client.send(fetchTarget, request)
                     .addListener(new RequestFutureListener<ClientResponse>() {
                         @Override
                         public void onSuccess(ClientResponse resp) {
+                            inFlightFetchBytes.addAndGet(-fetchBytes);
                             FetchResponse<Records> response = (FetchResponse<Records>) resp.responseBody();
                             FetchSessionHandler handler = sessionHandlers.get(fetchTarget.id());
                             if (handler == null) {
                                 log.error("Unable to find FetchSessionHandler for node {}. Ignoring fetch response.",
                                         fetchTarget.id());
+                                resp.releasePayload();
                                 return;
                             }
                             if (!handler.handleResponse(response)) {
+                                resp.releasePayload();
                                 return;
                             }
 
                             Set<TopicPartition> partitions = new HashSet<>(response.responseData().keySet());
                             FetchResponseMetricAggregator metricAggregator = new FetchResponseMetricAggregator(sensors, partitions);
+                            FetchPayload payload = new FetchPayload(resp);
 
                             for (Map.Entry<TopicPartition, FetchResponse.PartitionData<Records>> entry : response.responseData().entrySet()) {
                                 TopicPartition partition = entry.getKey();
@@ -274,15 +365,19 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
 
                                 log.debug("Fetch {} at offset {} for partition {} returned fetch data {}",
                                         isolationLevel, fetchOffset, partition, fetchData);
-                                completedFetches.add(new CompletedFetch(partition, fetchOffset, fetchData, metricAggregator,
-                                        resp.requestHeader().apiVersion()));
+                                CompletedFetch completedFetch = new CompletedFetch(partition, fetchOffset, fetchData,
+                                        metricAggregator, resp.requestHeader().apiVersion(), payload);
+                                maybeDecode(completedFetch);
+                                completedFetches.add(completedFetch);
                             }
+                            payload.release();
 
                             sensors.fetchLatency.record(resp.requestLatencyMs());
                         }
 
                         @Override
                         public void onFailure(RuntimeException e) {
+                            inFlightFetchBytes.addAndGet(-fetchBytes);
                             FetchSessionHandler handler = sessionHandlers.get(fetchTarget.id());
                             if (handler != null) {
                                 handler.handleError(e);
@@ -551,10 +646,13 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
                         FetchResponse.PartitionData partition = completedFetch.partitionData;
                         if (fetched.isEmpty() && (partition.records == null || partition.records.sizeInBytes() == 0)) {
                             completedFetches.poll();
+                            completedFetch.release();
                         }
                         throw e;
                     }
                     completedFetches.poll();
+                    if (nextInLineRecords == null)
+                        completedFetch.release();
                 } else {
                     List<ConsumerRecord<K, V>> records = fetchRecords(nextInLineRecords, recordsRemaining);
                     TopicPartition partition = nextInLineRecords.partition;
@@ -905,16 +1003,56 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
             exclude.add(completedFetch.partition);
         }
         fetchable.removeAll(exclude);
-        return fetchable;
+        if (deferredPartitions.isEmpty())
+            return fetchable;
+
+        // 上次因缓存数据超出上限而未fetch 的分区排在前面，避免总是同一批分区分到配额
+        List<TopicPartition> ordered = new ArrayList<>(fetchable.size());
+        for (TopicPartition partition : fetchable) {
+            if (deferredPartitions.contains(partition))
+                ordered.add(partition);
+        }
+        for (TopicPartition partition : fetchable) {
+            if (!deferredPartitions.contains(partition))
+                ordered.add(partition);
+        }
+        return ordered;
+    }
+
+    /**
+     * 还可以向broker 请求的数据量
+     */
+    private long availableFetchBytes() {
+        if (maxBufferedBytes == 0)
+            return Long.MAX_VALUE;
+        return maxBufferedBytes - bufferedBytes.get() - inFlightFetchBytes.get();
+    }
+
+    private void updateBufferedBytes(TopicPartition partition, long bytes) {
+        AtomicLong partitionBytes = partitionBufferedBytes.get(partition);
+        if (partitionBytes == null) {
+            partitionBytes = new AtomicLong();
+            AtomicLong existing = partitionBufferedBytes.putIfAbsent(partition, partitionBytes);
+            if (existing != null)
+                partitionBytes = existing;
+        }
+        partitionBytes.addAndGet(bytes);
+        bufferedBytes.addAndGet(bytes);
     }
 
     /**
      * Create fetch requests for all nodes for which we have assigned partitions
      * that have no existing requests in flight.
+     *
+     * @param requestedBytes Filled with the most data each request can return, as counted against the buffered bytes limit
      */
-    private Map<Node, FetchSessionHandler.FetchRequestData> prepareFetchRequests() {
+    private Map<Node, FetchSessionHandler.FetchRequestData> prepareFetchRequests(Map<Node, Long> requestedBytes) {
         Cluster cluster = metadata.fetch();
         Map<Node, FetchSessionHandler.Builder> fetchable = new LinkedHashMap<>();
+        long availableBytes = availableFetchBytes();
+        // 没有缓存数据时至少fetch 一个分区，避免上限小于单个分区的fetch 大小时无法前进
+        boolean mustFetch = bufferedBytes.get() == 0 && inFlightFetchBytes.get() == 0;
+        Set<TopicPartition> deferred = new LinkedHashSet<>();
         for (TopicPartition partition : fetchablePartitions()) {
             Node node = cluster.leaderFor(partition);
             if (node == null) {
@@ -928,6 +1066,17 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
             } else if (client.hasPendingRequests(node)) {
                 log.trace("Skipping fetch for partition {} because there is an in-flight request to {}", partition, node);
             } else {
+                Long requested = requestedBytes.get(node);
+                long partitionBytes = Math.max(0, Math.min(this.fetchSize, this.maxBytes - (requested == null ? 0 : requested)));
+                if (partitionBytes > availableBytes && !(mustFetch && requestedBytes.isEmpty())) {
+                    log.trace("Skipping fetch for partition {} because {} bytes of fetched data are buffered and {} bytes " +
+                            "are in flight", partition, bufferedBytes.get(), inFlightFetchBytes.get());
+                    deferred.add(partition);
+                    continue;
+                }
+                availableBytes -= partitionBytes;
+                requestedBytes.put(node, requested == null ? partitionBytes : requested + partitionBytes);
+
                 // if there is a leader and no in-flight requests, issue a new fetch
                 FetchSessionHandler.Builder builder = fetchable.get(node);
                 if (builder == null) {
@@ -948,6 +1097,10 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
                         partition, position, node);
             }
         }
+        deferredPartitions = deferred;
+        if (!deferred.isEmpty())
+            sensors.fetchDeferred.record(deferred.size());
+
         Map<Node, FetchSessionHandler.FetchRequestData> reqs = new LinkedHashMap<>();
         for (Map.Entry<Node, FetchSessionHandler.Builder> entry : fetchable.entrySet()) {
             reqs.put(entry.getKey(), entry.getValue().build());
@@ -983,7 +1136,7 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
                 log.trace("Preparing to read {} bytes of data for partition {} with offset {}",
                         partition.records.sizeInBytes(), tp, position);
                 Iterator<? extends RecordBatch> batches = partition.records.batches().iterator();
-                partitionRecords = new PartitionRecords(tp, completedFetch, batches);
+                partitionRecords = new PartitionRecords(tp, completedFetch, batches, completedFetch.awaitDecoded());
 
                 if (!batches.hasNext() && partition.records.sizeInBytes() > 0) {
                     if (completedFetch.responseVersion < 3) {
@@ -1061,26 +1214,228 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
     private ConsumerRecord<K, V> parseRecord(TopicPartition partition,
                                              RecordBatch batch,
                                              Record record) {
+        if (lazyDeserialization)
+            return new LazyConsumerRecord(partition, batch, record);
         try {
             long offset = record.offset();
             long timestamp = record.timestamp();
             TimestampType timestampType = batch.timestampType();
-            Headers headers = new RecordHeaders(record.headers());
+            Headers headers = new RecordHeaders(detachedHeaders(record));
             ByteBuffer keyBytes = record.key();
-            byte[] keyByteArray = keyBytes == null ? null : Utils.toArray(keyBytes);
-            K key = keyBytes == null ? null : this.keyDeserializer.deserialize(partition.topic(), headers, keyByteArray);
-            ByteBuffer valueBytes = record.value();
-            byte[] valueByteArray = valueBytes == null ? null : Utils.toArray(valueBytes);
-            V value = valueBytes == null ? null : this.valueDeserializer.deserialize(partition.topic(), headers, valueByteArray);
+            int keySize = keyBytes == null ? ConsumerRecord.NULL_SIZE : keyBytes.remaining();
+            K key = keyBytes == null ? null : deserialize(this.keyDeserializer, partition.topic(), headers, keyBytes);
+            ByteBuffer valueBytes = record.value() == null ? null : decompressWithDictionary(headers, record.value());
+            int valueSize = valueBytes == null ? ConsumerRecord.NULL_SIZE : valueBytes.remaining();
+            V value = valueBytes == null ? null : deserialize(this.valueDeserializer, partition.topic(), headers, valueBytes);
             return new ConsumerRecord<>(partition.topic(), partition.partition(), offset,
-                    timestamp, timestampType, record.checksumOrNull(),
-                    keyByteArray == null ? ConsumerRecord.NULL_SIZE : keyByteArray.length,
-                    valueByteArray == null ? ConsumerRecord.NULL_SIZE : valueByteArray.length,
-                    key, value, headers);
+                    timestamp, timestampType, record.checksumOrNull(), keySize, valueSize, key, value, headers);
         } catch (RuntimeException e) {
-            throw new SerializationException("Error deserializing key/value for partition " + partition +
-                    " at offset " + record.offset() + ". If needed, please seek past the record to continue consumption.", e);
+            throw deserializationError(partition, record.offset(), e);
+        }
+    }
+
+    /**
+     * Hand the records of a completed fetch to the decode threads, unless they already hold as much decoded data as
+     * they are allowed to, in which case they are decoded by {@link #fetchedRecords()} as usual.
+     */
+    private void maybeDecode(final CompletedFetch completedFetch) {
+        final Records records = completedFetch.partitionData.records;
+        if (decodeExecutor == null || completedFetch.partitionData.error != Errors.NONE || records == null
+                || records.sizeInBytes() == 0 || decodeBufferedBytes.get() >= decodeBufferBytes)
+            return;
+        completedFetch.reserveDecoded(records.sizeInBytes());
+        completedFetch.payload.retain();
+        completedFetch.decoded = decodeExecutor.submit(new Callable<List<DecodedBatch>>() {
+            @Override
+            public List<DecodedBatch> call() {
+                try {
+                    return decode(completedFetch);
+                } finally {
+                    completedFetch.payload.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * 在解析线程中解压、反序列化一个分区的fetch 结果。解压失败的batch 及其后的batch 留给poll 线程按原有流程处理，
+     * 由其抛出相应的异常
+     */
+    private List<DecodedBatch> decode(CompletedFetch completedFetch) {
+        if (completedFetch.isReleased())
+            return null;
+        long startMs = time.milliseconds();
+        TopicPartition partition = completedFetch.partition;
+        List<DecodedBatch> decodedBatches = new ArrayList<>();
+        long decodedBytes = 0;
+        try {
+            for (RecordBatch batch : completedFetch.partitionData.records.batches()) {
+                DecodedBatch decodedBatch = new DecodedBatch();
+                try (CloseableIterator<Record> records = batch.streamingIterator(decodeBufferSupplier.get())) {
+                    while (records.hasNext()) {
+                        Record record = records.next();
+                        decodedBatch.records.add(record);
+                        decodedBatch.parsed.add(batch.isControlBatch() || record.offset() < completedFetch.fetchedOffset ?
+                                null : tryParseRecord(partition, batch, record));
+                        decodedBytes += record.sizeInBytes();
+                    }
+                }
+                decodedBatches.add(decodedBatch);
+            }
+        } catch (RuntimeException e) {
+            log.debug("Leaving the records of partition {} after {} batches to be decoded by poll()", partition,
+                    decodedBatches.size(), e);
+        }
+        // 解压后的数据量超出压缩数据的部分也计入
+        long records = completedFetch.partitionData.records.sizeInBytes();
+        if (decodedBytes > records && !completedFetch.reserveDecoded(decodedBytes - records))
+            return null;
+        decodeTime.record(time.milliseconds() - startMs);
+        return decodedBatches;
+    }
+
+    private ConsumerRecord<K, V> tryParseRecord(TopicPartition partition, RecordBatch batch, Record record) {
+        try {
+            return parseRecord(partition, batch, record);
+        } catch (SerializationException e) {
+            return null;
+        }
+    }
+
+    private static SerializationException deserializationError(TopicPartition partition, long offset, RuntimeException e) {
+        return new SerializationException("Error deserializing key/value for partition " + partition +
+                " at offset " + offset + ". If needed, please seek past the record to continue consumption.", e);
+    }
+
+    /**
+     * Restore a value compressed with one of the producer's compression dictionaries, or return it as is if the record
+     * has no {@link CompressionDictionary#HEADER_KEY} header.
+     */
+    private ByteBuffer decompressWithDictionary(Headers headers, ByteBuffer valueBytes) {
+        Header dictionaryHeader = headers.lastHeader(CompressionDictionary.HEADER_KEY);
+        if (dictionaryHeader == null)
+            return valueBytes;
+        CompressionDictionary dictionary = compressionDictionary(dictionaryHeader);
+        headers.remove(CompressionDictionary.HEADER_KEY);
+        return ByteBuffer.wrap(dictionary.decompress(valueBytes));
+    }
+
+    private CompressionDictionary compressionDictionary(Header dictionaryHeader) {
+        int dictionaryId = CompressionDictionary.id(dictionaryHeader);
+        CompressionDictionary dictionary = compressionDictionaries.get(dictionaryId);
+        if (dictionary == null)
+            throw new KafkaException("Record value is compressed with unknown compression dictionary " + dictionaryId
+                    + ", it must be listed in " + ConsumerConfig.COMPRESSION_DICTIONARY_FILES_CONFIG);
+        return dictionary;
+    }
+
+    /**
+     * A record whose key and value are deserialized, and whose headers are copied, the first time they are accessed.
+     * Until then it keeps the fetched record, whose key and value are views of the fetched bytes. A deserialization
+     * error is thrown on every access, so that the caller can skip the record just like when {@link #poll} fails.
+     */
+    private class LazyConsumerRecord extends ConsumerRecord<K, V> {
+        private final Header[] recordHeaders;
+        private final ByteBuffer keyBytes;
+        private final ByteBuffer valueBytes;
+        /**
+         * 记录的压缩字典header，value 还原后从headers中移除
+         */
+        private final Header dictionaryHeader;
+        private Headers headers;
+        private K key;
+        private V value;
+        private boolean keyDeserialized;
+        private boolean valueDeserialized;
+
+        private LazyConsumerRecord(TopicPartition partition, RecordBatch batch, Record record) {
+            this(partition, batch, record, record.hasValue() ? lastDictionaryHeader(record.headers()) : null);
+        }
+
+        private LazyConsumerRecord(TopicPartition partition, RecordBatch batch, Record record, Header dictionaryHeader) {
+            super(partition.topic(), partition.partition(), record.offset(), record.timestamp(), batch.timestampType(),
+                    record.checksumOrNull(), record.keySize(),
+                    dictionaryHeader == null ? record.valueSize() : CompressionDictionary.decompressedSize(record.value()),
+                    null, null, null);
+            this.recordHeaders = detachedHeaders(record);
+            this.keyBytes = detached(record.key());
+            this.valueBytes = detached(record.value());
+            this.dictionaryHeader = dictionaryHeader;
+        }
+
+        @Override
+        public synchronized Headers headers() {
+            if (headers == null) {
+                headers = new RecordHeaders(recordHeaders);
+                if (dictionaryHeader != null)
+                    headers.remove(CompressionDictionary.HEADER_KEY);
+            }
+            return headers;
+        }
+
+        @Override
+        public synchronized K key() {
+            if (!keyDeserialized) {
+                try {
+                    key = keyBytes == null ? null : deserialize(keyDeserializer, topic(), headers(), keyBytes.duplicate());
+                } catch (RuntimeException e) {
+                    throw deserializationError(new TopicPartition(topic(), partition()), offset(), e);
+                }
+                keyDeserialized = true;
+            }
+            return key;
+        }
+
+        @Override
+        public synchronized V value() {
+            if (!valueDeserialized) {
+                ByteBuffer valueBytes = this.valueBytes == null ? null : this.valueBytes.duplicate();
+                try {
+                    if (valueBytes != null) {
+                        if (dictionaryHeader != null)
+                            valueBytes = ByteBuffer.wrap(compressionDictionary(dictionaryHeader).decompress(valueBytes));
+                        value = deserialize(valueDeserializer, topic(), headers(), valueBytes);
+                    }
+                } catch (RuntimeException e) {
+                    throw deserializationError(new TopicPartition(topic(), partition()), offset(), e);
+                }
+                valueDeserialized = true;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * The headers of a record, with their values copied out of the fetch response if it was received into pooled
+     * memory, which is reused once the records of the response are handed out.
+     */
+    private Header[] detachedHeaders(Record record) {
+        Header[] headers = record.headers();
+        if (fetchBuffersPooled) {
+            for (Header header : headers)
+                header.value();
         }
+        return headers;
+    }
+
+    /**
+     * A key or value that can be kept after the records of its fetch response are handed out
+     */
+    private ByteBuffer detached(ByteBuffer bytes) {
+        if (bytes == null || !fetchBuffersPooled)
+            return bytes;
+        ByteBuffer copy = ByteBuffer.allocate(bytes.remaining());
+        copy.put(bytes.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    private static Header lastDictionaryHeader(Header[] headers) {
+        for (int i = headers.length - 1; i >= 0; i--) {
+            if (CompressionDictionary.HEADER_KEY.equals(headers[i].key()))
+                return headers[i];
+        }
+        return null;
     }
 
     @Override
@@ -1101,12 +1456,17 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
         private final TopicPartition partition;
         private final CompletedFetch completedFetch;
         private final Iterator<? extends RecordBatch> batches;
+        /**
+         * 解析线程预先解析的batch，与batches 按顺序一一对应，可能少于batches
+         */
+        private final Iterator<DecodedBatch> decodedBatches;
         private final Set<Long> abortedProducerIds;
         private final PriorityQueue<FetchResponse.AbortedTransaction> abortedTransactions;
 
         private int recordsRead;
         private int bytesRead;
         private RecordBatch currentBatch;
+        private DecodedBatch currentDecodedBatch;
         private Record lastRecord;
         private CloseableIterator<Record> records;
         private long nextFetchOffset;
@@ -1116,10 +1476,12 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
 
         private PartitionRecords(TopicPartition partition,
                                  CompletedFetch completedFetch,
-                                 Iterator<? extends RecordBatch> batches) {
+                                 Iterator<? extends RecordBatch> batches,
+                                 List<DecodedBatch> decodedBatches) {
             this.partition = partition;
             this.completedFetch = completedFetch;
             this.batches = batches;
+            this.decodedBatches = decodedBatches == null ? null : decodedBatches.iterator();
             this.nextFetchOffset = completedFetch.fetchedOffset;
             this.abortedProducerIds = new HashSet<>();
             this.abortedTransactions = abortedTransactions(completedFetch.partitionData);
@@ -1131,6 +1493,7 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
                 cachedRecordException = null;
                 this.isFetched = true;
                 this.completedFetch.metricAggregator.record(partition, bytesRead, recordsRead);
+                this.completedFetch.release();
 
                 // we move the partition to the end if we received some bytes. This way, it's more likely that partitions
                 // for the same topic can remain together (allowing for more efficient serialization).
@@ -1186,6 +1549,7 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
                     }
 
                     currentBatch = batches.next();
+                    currentDecodedBatch = decodedBatches != null && decodedBatches.hasNext() ? decodedBatches.next() : null;
                     maybeEnsureValid(currentBatch);
 
                     if (isolationLevel == IsolationLevel.READ_COMMITTED && currentBatch.hasProducerId()) {
@@ -1206,7 +1570,10 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
                         }
                     }
 
-                    records = currentBatch.streamingIterator(decompressionBufferSupplier);
+                    if (currentDecodedBatch != null)
+                        records = currentDecodedBatch.iterator();
+                    else
+                        records = currentBatch.streamingIterator(decompressionBufferSupplier);
                 } else {
                     Record record = records.next();
                     // skip any records out of range
@@ -1248,7 +1615,8 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
                     }
                     if (lastRecord == null)
                         break;
-                    records.add(parseRecord(partition, currentBatch, lastRecord));
+                    ConsumerRecord<K, V> record = currentDecodedBatch == null ? null : currentDecodedBatch.parsed(lastRecord);
+                    records.add(record != null ? record : parseRecord(partition, currentBatch, lastRecord));
                     recordsRead++;
                     bytesRead += lastRecord.sizeInBytes();
                     nextFetchOffset = lastRecord.offset() + 1;
@@ -1315,23 +1683,148 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
         }
     }
 
-    private static class CompletedFetch {
+    private class CompletedFetch {
         private final TopicPartition partition;
         private final long fetchedOffset;
         private final FetchResponse.PartitionData<Records> partitionData;
         private final FetchResponseMetricAggregator metricAggregator;
         private final short responseVersion;
+        /**
+         * 计入bufferedBytes 的数据量
+         */
+        private final long sizeInBytes;
+        /**
+         * 解析线程的解析结果及其计入decodeBufferedBytes 的数据量
+         */
+        private Future<List<DecodedBatch>> decoded;
+        private long decodedBytes;
+        private boolean released;
+        /**
+         * 所属fetch 响应的接收缓冲区
+         */
+        private final FetchPayload payload;
 
         private CompletedFetch(TopicPartition partition,
                                long fetchedOffset,
                                FetchResponse.PartitionData<Records> partitionData,
                                FetchResponseMetricAggregator metricAggregator,
-                               short responseVersion) {
+                               short responseVersion,
+                               FetchPayload payload) {
             this.partition = partition;
             this.fetchedOffset = fetchedOffset;
             this.partitionData = partitionData;
             this.metricAggregator = metricAggregator;
             this.responseVersion = responseVersion;
+            this.payload = payload;
+            this.sizeInBytes = partitionData.records == null ? 0 : partitionData.records.sizeInBytes();
+            payload.retain();
+            updateBufferedBytes(partition, sizeInBytes);
+        }
+
+        private synchronized boolean reserveDecoded(long bytes) {
+            if (released)
+                return false;
+            decodedBytes += bytes;
+            decodeBufferedBytes.addAndGet(bytes);
+            return true;
+        }
+
+        /**
+         * Give back the memory counted for the decoded records and this fetch's share of the response once its records
+         * are handed out or discarded
+         */
+        private synchronized void release() {
+            if (released)
+                return;
+            released = true;
+            decodeBufferedBytes.addAndGet(-decodedBytes);
+            decodedBytes = 0;
+            updateBufferedBytes(partition, -sizeInBytes);
+            payload.release();
+        }
+
+        private synchronized boolean isReleased() {
+            return released;
+        }
+
+        /**
+         * Wait for the decode threads to finish with this fetch, if it was handed to them. Returns null if it was not,
+         * or if they failed, in which case the caller decodes the records itself.
+         */
+        private List<DecodedBatch> awaitDecoded() {
+            if (decoded == null)
+                return null;
+            try {
+                return decoded.get();
+            } catch (InterruptedException e) {
+                throw new InterruptException(e);
+            } catch (ExecutionException | CancellationException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 一个fetch 响应的接收缓冲区，其各分区的CompletedFetch 及解析任务都用完后归还内存池
+     */
+    private static class FetchPayload {
+        private final ClientResponse response;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private FetchPayload(ClientResponse response) {
+            this.response = response;
+        }
+
+        private void retain() {
+            references.incrementAndGet();
+        }
+
+        private void release() {
+            if (references.decrementAndGet() == 0)
+                response.releasePayload();
+        }
+    }
+
+    /**
+     * 解析线程解压、反序列化后的batch
+     * <p>
+     * The records of a batch decompressed by a decode thread, along with the consumer records parsed from them. A
+     * record whose key or value failed to deserialize has no consumer record, so that parsing it again on the thread
+     * calling {@link #poll} fails the same way as without the decode threads.
+     */
+    private class DecodedBatch {
+        private final List<Record> records = new ArrayList<>();
+        private final List<ConsumerRecord<K, V>> parsed = new ArrayList<>();
+        private int next;
+
+        private CloseableIterator<Record> iterator() {
+            return new CloseableIterator<Record>() {
+                @Override
+                public boolean hasNext() {
+                    return next < records.size();
+                }
+
+                @Override
+                public Record next() {
+                    return records.get(next++);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void close() {}
+            };
+        }
+
+        /**
+         * The consumer record parsed from the record last returned by the iterator
+         */
+        private ConsumerRecord<K, V> parsed(Record record) {
+            int last = next - 1;
+            return last >= 0 && records.get(last) == record ? parsed.get(last) : null;
         }
     }
 
@@ -1402,12 +1895,18 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
         private final Sensor fetchLatency;
         private final Sensor recordsFetchLag;
         private final Sensor recordsFetchLead;
+        private final Sensor fetchDeferred;
+        private final Map<TopicPartition, AtomicLong> partitionBufferedBytes;
 
         private Set<TopicPartition> assignedPartitions;
 
-        private FetchManagerMetrics(Metrics metrics, FetcherMetricsRegistry metricsRegistry) {
+        private FetchManagerMetrics(Metrics metrics,
+                                    FetcherMetricsRegistry metricsRegistry,
+                                    final AtomicLong bufferedBytes,
+                                    Map<TopicPartition, AtomicLong> partitionBufferedBytes) {
             this.metrics = metrics;
             this.metricsRegistry = metricsRegistry;
+            this.partitionBufferedBytes = partitionBufferedBytes;
 
             this.bytesFetched = metrics.sensor("bytes-fetched");
             this.bytesFetched.add(metrics.metricInstance(metricsRegistry.fetchSizeAvg), new Avg());
@@ -1431,6 +1930,15 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
 
             this.recordsFetchLead = metrics.sensor("records-lead");
             this.recordsFetchLead.add(metrics.metricInstance(metricsRegistry.recordsLeadMin), new Min());
+
+            metrics.addMetric(metrics.metricInstance(metricsRegistry.bufferedBytes), new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return bufferedBytes.get();
+                }
+            });
+            this.fetchDeferred = metrics.sensor("fetch-deferred");
+            this.fetchDeferred.add(new Meter(metrics.metricInstance(metricsRegistry.fetchDeferredRate),
+                    metrics.metricInstance(metricsRegistry.fetchDeferredTotal)));
         }
 
         private void recordTopicFetchMetrics(String topic, int bytes, int records) {
@@ -1472,12 +1980,31 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
                     if (!assignedPartitions.contains(tp)) {
                         metrics.removeSensor(partitionLagMetricName(tp));
                         metrics.removeSensor(partitionLeadMetricName(tp));
+                        metrics.removeMetric(metrics.metricInstance(metricsRegistry.partitionBufferedBytes, partitionTags(tp)));
                     }
                 }
             }
+            for (final TopicPartition tp : assignedPartitions) {
+                if (this.assignedPartitions == null || !this.assignedPartitions.contains(tp)) {
+                    metrics.addMetric(metrics.metricInstance(metricsRegistry.partitionBufferedBytes, partitionTags(tp)),
+                            new Measurable() {
+                                public double measure(MetricConfig config, long now) {
+                                    AtomicLong bytes = partitionBufferedBytes.get(tp);
+                                    return bytes == null ? 0 : bytes.get();
+                                }
+                            });
+                }
+            }
             this.assignedPartitions = assignedPartitions;
         }
 
+        private static Map<String, String> partitionTags(TopicPartition tp) {
+            Map<String, String> metricTags = new HashMap<>(2);
+            metricTags.put("topic", tp.topic().replace('.', '_'));
+            metricTags.put("partition", String.valueOf(tp.partition()));
+            return metricTags;
+        }
+
         private void recordPartitionLead(TopicPartition tp, long lead) {
             this.recordsFetchLead.record(lead);
 
@@ -1530,7 +2057,13 @@ public class Fetcher<K, V> implements SubscriptionState.Listener, Closeable {
     public void close() {
         if (nextInLineRecords != null)
             nextInLineRecords.drain();
+        if (decodeExecutor != null)
+            decodeExecutor.shutdownNow();
+        for (CompletedFetch completedFetch : completedFetches)
+            completedFetch.release();
         decompressionBufferSupplier.close();
+        for (CompressionDictionary dictionary : compressionDictionaries.values())
+            dictionary.close();
     }
 
 }
@@ -41,6 +41,12 @@ public class FetcherMetricsRegistry {
     public MetricNameTemplate recordsLeadMin;
     public MetricNameTemplate fetchThrottleTimeAvg;
     public MetricNameTemplate fetchThrottleTimeMax;
+    public MetricNameTemplate decodeBufferedBytes;
+    public MetricNameTemplate decodeTimeAvg;
+    public MetricNameTemplate decodeTimeMax;
+    public MetricNameTemplate bufferedBytes;
+    public MetricNameTemplate fetchDeferredRate;
+    public MetricNameTemplate fetchDeferredTotal;
     public MetricNameTemplate topicFetchSizeAvg;
     public MetricNameTemplate topicFetchSizeMax;
     public MetricNameTemplate topicBytesConsumedRate;
@@ -54,6 +60,7 @@ public class FetcherMetricsRegistry {
     public MetricNameTemplate partitionRecordsLead;
     public MetricNameTemplate partitionRecordsLeadMin;
     public MetricNameTemplate partitionRecordsLeadAvg;
+    public MetricNameTemplate partitionBufferedBytes;
 
     public FetcherMetricsRegistry() {
         this(new HashSet<String>(), "");
@@ -104,6 +111,20 @@ public class FetcherMetricsRegistry {
         this.fetchThrottleTimeMax = new MetricNameTemplate("fetch-throttle-time-max", groupName,
                 "The maximum throttle time in ms", tags);
 
+        this.decodeBufferedBytes = new MetricNameTemplate("decode-buffered-bytes", groupName,
+                "The amount of fetched record data decoded by the decode threads that has not been consumed yet", tags);
+        this.decodeTimeAvg = new MetricNameTemplate("decode-time-avg", groupName,
+                "The average time in ms the decode threads took to decompress and deserialize a fetched partition", tags);
+        this.decodeTimeMax = new MetricNameTemplate("decode-time-max", groupName,
+                "The maximum time in ms the decode threads took to decompress and deserialize a fetched partition", tags);
+
+        this.bufferedBytes = new MetricNameTemplate("buffered-bytes", groupName,
+                "The amount of fetched record data that has not been returned by poll() yet", tags);
+        this.fetchDeferredRate = new MetricNameTemplate("fetch-deferred-rate", groupName,
+                "The number of partitions per second left out of fetch requests because the buffered record data reached its limit", tags);
+        this.fetchDeferredTotal = new MetricNameTemplate("fetch-deferred-total", groupName,
+                "The total number of partitions left out of fetch requests because the buffered record data reached its limit", tags);
+
         /***** Topic level *****/
         Set<String> topicTags = new LinkedHashSet<>(tags);
         topicTags.add("topic");
@@ -139,6 +160,8 @@ public class FetcherMetricsRegistry {
                 "The min lead of the partition", partitionTags);
         this.partitionRecordsLeadAvg = new MetricNameTemplate("records-lead-avg", groupName,
                 "The average lead of the partition", partitionTags);
+        this.partitionBufferedBytes = new MetricNameTemplate("buffered-bytes", groupName,
+                "The amount of fetched record data of the partition that has not been returned by poll() yet", partitionTags);
 
     }
 
@@ -159,6 +182,12 @@ public class FetcherMetricsRegistry {
                 recordsLeadMin,
                 fetchThrottleTimeAvg,
                 fetchThrottleTimeMax,
+                decodeBufferedBytes,
+                decodeTimeAvg,
+                decodeTimeMax,
+                bufferedBytes,
+                fetchDeferredRate,
+                fetchDeferredTotal,
                 topicFetchSizeAvg,
                 topicFetchSizeMax,
                 topicBytesConsumedRate,
@@ -171,7 +200,8 @@ public class FetcherMetricsRegistry {
                 partitionRecordsLagMax,
                 partitionRecordsLead,
                 partitionRecordsLeadMin,
-                partitionRecordsLeadAvg
+                partitionRecordsLeadAvg,
+                partitionBufferedBytes
         );
     }
 
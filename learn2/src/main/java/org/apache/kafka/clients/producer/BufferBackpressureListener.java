@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.clients.producer;
+
+/**
+ * A listener that is told when the producer's buffer memory runs out for {@link KafkaProducer#trySend(ProducerRecord,
+ * Callback)} and when it is available again, so that a caller that must not block can stop taking in new work
+ * instead. Register it with {@link KafkaProducer#addBackpressureListener(BufferBackpressureListener)}.
+ * <p>
+ * The notifications alternate: after {@link #onBufferExhausted(long)} the next one is {@link #onBufferAvailable(long)}
+ * and vice versa. They are called after the buffer pool's lock is released, on the thread that sent the record or on
+ * a producer thread that released memory, which may be the network thread, so they should be fast and must not block,
+ * e.g. by only scheduling work on the caller's own event loop. An exception thrown by a listener is logged and
+ * otherwise ignored.
+ */
+public interface BufferBackpressureListener {
+
+    /**
+     * Called when a record was not sent by {@link KafkaProducer#trySend(ProducerRecord, Callback)} because the buffer
+     * memory did not have room for a new batch.
+     *
+     * @param availableBytes The buffer memory available at that time
+     */
+    void onBufferExhausted(long availableBytes);
+
+    /**
+     * Called once at least a batch worth of buffer memory has been released after {@link #onBufferExhausted(long)}.
+     *
+     * @param availableBytes The buffer memory available at that time
+     */
+    void onBufferAvailable(long availableBytes);
+}
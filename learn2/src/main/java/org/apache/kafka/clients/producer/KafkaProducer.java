@@ -20,10 +20,22 @@ import org.apache.kafka.clients.NetworkClient;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.clients.producer.internals.AdaptiveLinger;
+import org.apache.kafka.clients.producer.internals.AggregateSendResult;
+import org.apache.kafka.clients.producer.internals.BufferPool;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
+import org.apache.kafka.clients.producer.internals.FutureRecordMetadata;
+import org.apache.kafka.clients.producer.internals.LoadAwarePartitioner;
+import org.apache.kafka.clients.producer.internals.ParallelBatchCloser;
+import org.apache.kafka.clients.producer.internals.PartitionCompressionRatioEstimator;
+import org.apache.kafka.clients.producer.internals.ProducerCallbackExecutor;
 import org.apache.kafka.clients.producer.internals.ProducerInterceptors;
 import org.apache.kafka.clients.producer.internals.ProducerMetrics;
 import org.apache.kafka.clients.producer.internals.RecordAccumulator;
 import org.apache.kafka.clients.producer.internals.Sender;
+import org.apache.kafka.clients.producer.internals.SenderMetricsRegistry;
+import org.apache.kafka.clients.producer.internals.SlabBufferPool;
+import org.apache.kafka.clients.producer.internals.StickyPartitioner;
 import org.apache.kafka.clients.producer.internals.TransactionManager;
 import org.apache.kafka.clients.producer.internals.TransactionalRequestResult;
 import org.apache.kafka.common.Cluster;
@@ -52,12 +64,16 @@ import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.metrics.MetricsReporter;
 import org.apache.kafka.common.metrics.Sensor;
 import org.apache.kafka.common.network.ChannelBuilder;
+import org.apache.kafka.common.network.NetworkReceive;
 import org.apache.kafka.common.network.Selector;
 import org.apache.kafka.common.record.AbstractRecords;
+import org.apache.kafka.common.record.CompressionDictionary;
 import org.apache.kafka.common.record.CompressionType;
 import org.apache.kafka.common.record.RecordBatch;
 import org.apache.kafka.common.serialization.ExtendedSerializer;
+import org.apache.kafka.common.serialization.SerializedValue;
 import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.serialization.StreamingSerializer;
 import org.apache.kafka.common.utils.AppInfoParser;
 import org.apache.kafka.common.utils.KafkaThread;
 import org.apache.kafka.common.utils.LogContext;
@@ -65,11 +81,17 @@ import org.apache.kafka.common.utils.Time;
 import org.slf4j.Logger;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -241,7 +263,10 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
     private final Logger log;
     private static final AtomicInteger PRODUCER_CLIENT_ID_SEQUENCE = new AtomicInteger(1);
     private static final String JMX_PREFIX = "kafka.producer";
+    private static final String PRODUCER_METRIC_GROUP_NAME = "producer-metrics";
     public static final String NETWORK_THREAD_PREFIX = "kafka-producer-network-thread";
+    public static final String COMPRESSION_THREAD_PREFIX = "kafka-producer-compression-thread";
+    public static final String CALLBACK_THREAD_PREFIX = "kafka-producer-callback-thread";
 
     private final String clientId;
     // Visible for testing
@@ -251,13 +276,20 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
     private final long totalMemorySize;
     private final Metadata metadata;
     private final RecordAccumulator accumulator;
-    private final Sender sender;
-    private final Thread ioThread;
+    private final BufferPool bufferPool;
+    private final List<Sender> senders;
+    private final List<Thread> ioThreads;
+    /* runs the callbacks of completed batches, or null if they run on the sender threads */
+    private final ProducerCallbackExecutor callbackExecutor;
     private final CompressionType compressionType;
+    /* dictionary for compressing small record values, or null if none is configured */
+    private final CompressionDictionary compressionDictionary;
+    private final int compressionDictionaryMaxRecordBytes;
     private final Sensor errors;
     private final Time time;
     private final ExtendedSerializer<K> keySerializer;
     private final ExtendedSerializer<V> valueSerializer;
+    private final StreamingSerializer<V> streamingValueSerializer;
     private final ProducerConfig producerConfig;
     private final long maxBlockTimeMs;
     private final int requestTimeoutMs;
@@ -381,7 +413,7 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
              * config.getConfiguredInstance(),就是读取配置中的一个，接口实例
              */
 
-            this.partitioner = config.getConfiguredInstance(ProducerConfig.PARTITIONER_CLASS_CONFIG, Partitioner.class);
+            this.partitioner = configurePartitioner(config);
             // 读取retry.backoff.ms 配置，失败重试的间隔时间
             long retryBackoffMs = config.getLong(ProducerConfig.RETRY_BACKOFF_MS_CONFIG);
             if (keySerializer == null) {
@@ -408,6 +440,9 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
                 config.ignore(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG);
                 this.valueSerializer = ensureExtended(valueSerializer);
             }
+            // 支持直接写入批次缓冲区的value序列化器，省去中间的byte数组
+            this.streamingValueSerializer = this.valueSerializer instanceof StreamingSerializer
+                ? (StreamingSerializer<V>) this.valueSerializer : null;
 
             /** 用户自定义配置中加入client.id 配置 获取配置的拦截器，可能配置多个，采用list */
             userProvidedConfigs.put(ProducerConfig.CLIENT_ID_CONFIG, clientId);
@@ -423,6 +458,11 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
             this.totalMemorySize = config.getLong(ProducerConfig.BUFFER_MEMORY_CONFIG);
             // 读取压缩类型compression.type 配置
             this.compressionType = CompressionType.forName(config.getString(ProducerConfig.COMPRESSION_TYPE_CONFIG));
+            String compressionDictionaryFile = config.getString(ProducerConfig.COMPRESSION_DICTIONARY_FILE_CONFIG);
+            this.compressionDictionary = compressionDictionaryFile == null ? null
+                : CompressionDictionary.load(compressionDictionaryFile);
+            this.compressionDictionaryMaxRecordBytes =
+                config.getInt(ProducerConfig.COMPRESSION_DICTIONARY_MAX_RECORD_BYTES_CONFIG);
             // 读取最大阻塞时间配置 max.block.ms
             this.maxBlockTimeMs = config.getLong(ProducerConfig.MAX_BLOCK_MS_CONFIG);
             /**
@@ -447,7 +487,7 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
              * <li>读取max.in.flight.requests.per.connection 配置</li>
              * <li>限制客户端在单个连接上能够发送的未响应请求的个数</li>
              * <li>默认值是5，也就是5个 请求未返回，producer将会被阻塞，</li>
-             * <li>使用了事务，该值不允许大于 5</li>
+             * <li>使用了幂等，每个分区最多5个在途batch，由RecordAccumulator在drain时限制</li>
              * <li>max.in.flight.requests.per.connection设置1 就表明 :只能等上个消息得到response 之后，才能发生下一个请求
              * 这样可以保证消息的顺序性，但是吞吐量会下降很多</li>
              * </ul>
@@ -476,10 +516,16 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
 
             this.apiVersions = new ApiVersions();
 
-            // 初始化accumulator
+            // 初始化缓冲池和accumulator
+            this.callbackExecutor = configureCallbackExecutor(config, clientId, metricsRegistry.senderMetrics);
+            this.bufferPool = configureBufferPool(config, this.totalMemorySize, metrics, time);
             this.accumulator = new RecordAccumulator(logContext, config.getInt(ProducerConfig.BATCH_SIZE_CONFIG),
-                this.totalMemorySize, this.compressionType, config.getLong(ProducerConfig.LINGER_MS_CONFIG),
-                retryBackoffMs, metrics, time, apiVersions, transactionManager);
+                this.bufferPool, this.compressionType, config.getLong(ProducerConfig.LINGER_MS_CONFIG),
+                configureAdaptiveLinger(config), configureCompressionRatioEstimator(config, this.compressionType),
+                retryBackoffMs, metrics, time, apiVersions, transactionManager,
+                "combining".equals(config.getString(ProducerConfig.APPEND_MODE_CONFIG)),
+                config.getBoolean(ProducerConfig.BATCH_COALESCING_ENABLE_CONFIG),
+                "all".equals(config.getString(ProducerConfig.BUFFER_MEMORY_ACCOUNTING_CONFIG)), this.callbackExecutor);
             /** 获取服务器地址列表 */
             List<InetSocketAddress> addresses =
                 ClientUtils.parseAndValidateAddresses(config.getList(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG));
@@ -514,69 +560,85 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
              * producer 与broker 建立的网络连接这块底层知识 比较难， 暂不深入分析，后期会细节突破
              */
                
-            // 获取一个selector connections.max.idle.ms
-            Selector selector = new Selector(config.getLong(ProducerConfig.CONNECTIONS_MAX_IDLE_MS_CONFIG),
-                this.metrics, time, "producer", channelBuilder, logContext);
+            // sender.threads 每个sender线程负责一部分broker节点，各自持有selector和NetworkClient
+            int senderThreads = configureSenderThreads(config, transactionManager);
+            ParallelBatchCloser batchCloser = configureBatchCloser(config, clientId, metricsRegistry.senderMetrics);
+            AtomicInteger runningSenderThreads = senderThreads > 1 ? new AtomicInteger(senderThreads) : null;
+            this.senders = new ArrayList<>(senderThreads);
+            this.ioThreads = new ArrayList<>(senderThreads);
+            for (int i = 0; i < senderThreads; i++) {
+                // 获取一个selector connections.max.idle.ms
+                Map<String, String> selectorTags = senderThreads > 1
+                    ? Collections.singletonMap("sender-thread", String.valueOf(i)) : Collections.<String, String>emptyMap();
+                Selector selector = new Selector(NetworkReceive.UNLIMITED,
+                    config.getLong(ProducerConfig.CONNECTIONS_MAX_IDLE_MS_CONFIG), this.metrics, time, "producer",
+                    selectorTags, true, channelBuilder, logContext);
 
-            /**
-             * 实例化KafkaClient ,一下都是KafkaClient的配置
-             *
-             * reconnect.backoff.ms
-             *
-             * reconnect.backoff.max.ms
-             *
-             * send.buffer.bytes
-             *
-             * receive.buffer.bytes
-             *
-             * request.timeout.ms
-             *
-             * max.in.flight.requests.per.connection
-             *
-             */
-            KafkaClient client = kafkaClient != null ? kafkaClient : 
-                    new NetworkClient(
-                            selector,
-                            this.metadata, clientId, maxInflightRequests,
-                            config.getLong(ProducerConfig.RECONNECT_BACKOFF_MS_CONFIG),
-                            config.getLong(ProducerConfig.RECONNECT_BACKOFF_MAX_MS_CONFIG),
-                            config.getInt(ProducerConfig.SEND_BUFFER_CONFIG),
-                            config.getInt(ProducerConfig.RECEIVE_BUFFER_CONFIG),
-                            this.requestTimeoutMs,
-                            time, 
-                            true,
-                            apiVersions, 
-                            throttleTimeSensor, 
-                            logContext
-                    );
+                /**
+                 * 实例化KafkaClient ,一下都是KafkaClient的配置
+                 *
+                 * reconnect.backoff.ms
+                 *
+                 * reconnect.backoff.max.ms
+                 *
+                 * send.buffer.bytes
+                 *
+                 * receive.buffer.bytes
+                 *
+                 * request.timeout.ms
+                 *
+                 * max.in.flight.requests.per.connection
+                 *
+                 */
+                KafkaClient client = kafkaClient != null && i == 0 ? kafkaClient : 
+                        new NetworkClient(
+                                selector,
+                                this.metadata, clientId, maxInflightRequests,
+                                config.getLong(ProducerConfig.RECONNECT_BACKOFF_MS_CONFIG),
+                                config.getLong(ProducerConfig.RECONNECT_BACKOFF_MAX_MS_CONFIG),
+                                config.getInt(ProducerConfig.SEND_BUFFER_CONFIG),
+                                config.getInt(ProducerConfig.RECEIVE_BUFFER_CONFIG),
+                                this.requestTimeoutMs,
+                                time, 
+                                true,
+                                apiVersions, 
+                                throttleTimeSensor, 
+                                logContext
+                        );
 
 
 
-            /**
-             * 初始化sender线程
-             * 
-             * 这个线程中将从broker获取metadata 信息 <br>
-             * 从accumulator中获取消息并发送给broker
-             *
-             * max.request.size
-             * request.timeout.ms
-             * retry.backoff.ms
-             */
-            this.sender = new Sender(logContext, client, this.metadata, this.accumulator, maxInflightRequests == 1,
-                config.getInt(ProducerConfig.MAX_REQUEST_SIZE_CONFIG), acks, retries, metricsRegistry.senderMetrics,
-                Time.SYSTEM, this.requestTimeoutMs, config.getLong(ProducerConfig.RETRY_BACKOFF_MS_CONFIG),
-                this.transactionManager, apiVersions);
+                /**
+                 * 初始化sender线程
+                 * 
+                 * 这个线程中将从broker获取metadata 信息 <br>
+                 * 从accumulator中获取消息并发送给broker
+                 *
+                 * max.request.size
+                 * request.timeout.ms
+                 * retry.backoff.ms
+                 */
+                Sender sender = new Sender(logContext, client, this.metadata, this.accumulator, maxInflightRequests == 1,
+                    config.getInt(ProducerConfig.MAX_REQUEST_SIZE_CONFIG), acks, retries, metricsRegistry.senderMetrics,
+                    Time.SYSTEM, this.requestTimeoutMs, config.getLong(ProducerConfig.RETRY_BACKOFF_MS_CONFIG),
+                    this.transactionManager, apiVersions, partitioner instanceof LoadAwarePartitioner
+                        ? ((LoadAwarePartitioner) partitioner).loadStats() : null,
+                    batchCloser, i, senderThreads, runningSenderThreads);
 
-            String ioThreadName = NETWORK_THREAD_PREFIX + " | " + clientId;
+                String ioThreadName = NETWORK_THREAD_PREFIX + " | " + clientId + (senderThreads > 1 ? "-" + i : "");
 
-            /**
-             * 开启sender线程，并设置为主线程的守护线程
-             * 这里设置成守护线程有很多好处。我们只需要维护producer线程就可以了，不需要另外维护
-             * sender线程，在一些后台功能的线程中守护线程的应用场景很多：
-             * 比如：JVM 的GC线程，比如心跳管理线程。
-             */
-            this.ioThread = new KafkaThread(ioThreadName, this.sender, true);
-            this.ioThread.start();
+                /**
+                 * 开启sender线程，并设置为主线程的守护线程
+                 * 这里设置成守护线程有很多好处。我们只需要维护producer线程就可以了，不需要另外维护
+                 * sender线程，在一些后台功能的线程中守护线程的应用场景很多：
+                 * 比如：JVM 的GC线程，比如心跳管理线程。
+                 */
+                Thread ioThread = new KafkaThread(ioThreadName, sender, true);
+                this.senders.add(sender);
+                this.ioThreads.add(ioThread);
+            }
+            for (Thread ioThread : this.ioThreads)
+                ioThread.start();
 
             this.errors = this.metrics.sensor("errors");
             config.logUnused();
@@ -665,11 +727,8 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
      * @return
      */
     private static int configureInflightRequests(ProducerConfig config, boolean idempotenceEnabled) {
-        // 存在事务的情况下，只能设置小于5
-        if (idempotenceEnabled && 5 < config.getInt(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION)) {
-            throw new ConfigException("Must set " + ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION
-                + " to at most 5" + " to use the idempotent producer.");
-        }
+        // 幂等生产者不再限制连接上的在途请求数，每个分区的在途batch数由RecordAccumulator限制在
+        // TransactionManager.MAX_IN_FLIGHT_BATCHES_PER_PARTITION以内
         // 获取配置值
         return config.getInt(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION);
     }
@@ -709,6 +768,93 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
      * @param acksString
      * @return
      */
+    /**
+     * 根据buffer.pool.type 创建缓冲池：默认只缓存batch.size 大小的buffer；slab 模式按batch.size 的倍数分级缓存
+     */
+    private static BufferPool configureBufferPool(ProducerConfig config, long totalMemorySize, Metrics metrics, Time time) {
+        int batchSize = config.getInt(ProducerConfig.BATCH_SIZE_CONFIG);
+        // batch.size=0 disables batching, so there is nothing worth pooling by size class
+        if (!"slab".equals(config.getString(ProducerConfig.BUFFER_POOL_TYPE_CONFIG)) || batchSize <= 0)
+            return new BufferPool(totalMemorySize, batchSize, metrics, time, PRODUCER_METRIC_GROUP_NAME);
+        int[] sizeClasses = SlabBufferPool.doublingSizeClasses(batchSize,
+            config.getInt(ProducerConfig.MAX_REQUEST_SIZE_CONFIG));
+        return new SlabBufferPool(totalMemorySize, sizeClasses,
+            config.getBoolean(ProducerConfig.BUFFER_POOL_DIRECT_MEMORY_CONFIG), metrics, time, PRODUCER_METRIC_GROUP_NAME);
+    }
+
+    /**
+     * adaptive.linger.enable 开启时按分区流量计算linger时间，范围为[adaptive.linger.min.ms, linger.ms]
+     */
+    private static AdaptiveLinger configureAdaptiveLinger(ProducerConfig config) {
+        if (!config.getBoolean(ProducerConfig.ADAPTIVE_LINGER_ENABLE_CONFIG))
+            return null;
+        long maxLingerMs = config.getLong(ProducerConfig.LINGER_MS_CONFIG);
+        long minLingerMs = config.getLong(ProducerConfig.ADAPTIVE_LINGER_MIN_MS_CONFIG);
+        if (minLingerMs > maxLingerMs)
+            throw new ConfigException("Must set " + ProducerConfig.LINGER_MS_CONFIG + " to at least the value of "
+                + ProducerConfig.ADAPTIVE_LINGER_MIN_MS_CONFIG + " when adaptive linger is enabled.");
+        return new AdaptiveLinger(config.getInt(ProducerConfig.BATCH_SIZE_CONFIG), minLingerMs, maxLingerMs);
+    }
+
+    /**
+     * partitioner.sticky.enable 开启且未自定义分区器时，使用粘性分区器处理没有key 的消息
+     */
+    private static Partitioner configurePartitioner(ProducerConfig config) {
+        if (config.getBoolean(ProducerConfig.PARTITIONER_STICKY_ENABLE_CONFIG)
+            && config.getClass(ProducerConfig.PARTITIONER_CLASS_CONFIG) == DefaultPartitioner.class) {
+            Partitioner partitioner = new StickyPartitioner();
+            partitioner.configure(config.originals());
+            return partitioner;
+        }
+        return config.getConfiguredInstance(ProducerConfig.PARTITIONER_CLASS_CONFIG, Partitioner.class);
+    }
+
+    /**
+     * compression.ratio.estimator 为partition 时按分区及消息大小估算压缩率
+     */
+    private static PartitionCompressionRatioEstimator configureCompressionRatioEstimator(ProducerConfig config,
+                                                                                        CompressionType compressionType) {
+        if (compressionType == CompressionType.NONE
+            || !"partition".equals(config.getString(ProducerConfig.COMPRESSION_RATIO_ESTIMATOR_CONFIG)))
+            return null;
+        return new PartitionCompressionRatioEstimator(compressionType);
+    }
+
+    /**
+     * compression.threads 大于0 时，drain 出的batch 在压缩线程池中并行关闭
+     */
+    private static ParallelBatchCloser configureBatchCloser(ProducerConfig config, String clientId,
+                                                           SenderMetricsRegistry metricsRegistry) {
+        int compressionThreads = config.getInt(ProducerConfig.COMPRESSION_THREADS_CONFIG);
+        if (compressionThreads == 0)
+            return null;
+        return new ParallelBatchCloser(compressionThreads, COMPRESSION_THREAD_PREFIX + " | " + clientId,
+            metricsRegistry, Time.SYSTEM);
+    }
+
+    /**
+     * callback.threads 大于0 时，batch 的回调在回调线程池中执行
+     */
+    private static ProducerCallbackExecutor configureCallbackExecutor(ProducerConfig config, String clientId,
+                                                                      SenderMetricsRegistry metricsRegistry) {
+        int callbackThreads = config.getInt(ProducerConfig.CALLBACK_THREADS_CONFIG);
+        if (callbackThreads == 0)
+            return null;
+        return new ProducerCallbackExecutor(callbackThreads, CALLBACK_THREAD_PREFIX + " | " + clientId,
+            metricsRegistry, Time.SYSTEM);
+    }
+
+    /**
+     * sender.threads 大于1 时不支持事务
+     */
+    private static int configureSenderThreads(ProducerConfig config, TransactionManager transactionManager) {
+        int senderThreads = config.getInt(ProducerConfig.SENDER_THREADS_CONFIG);
+        if (senderThreads > 1 && transactionManager != null && transactionManager.isTransactional())
+            throw new ConfigException("Must set " + ProducerConfig.SENDER_THREADS_CONFIG + " to 1 in order to use "
+                + "the transactional producer.");
+        return senderThreads;
+    }
+
     private static int parseAcks(String acksString) {
         try {
 
@@ -747,7 +893,7 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
         throwIfNoTransactionManager();
         if (initTransactionsResult == null) {
             initTransactionsResult = transactionManager.initializeTransactions();
-            sender.wakeup();
+            wakeupSenders();
         }
 
         try {
@@ -809,7 +955,7 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
         throws ProducerFencedException {
         throwIfNoTransactionManager();
         TransactionalRequestResult result = transactionManager.sendOffsetsToTransaction(offsets, consumerGroupId);
-        sender.wakeup();
+        wakeupSenders();
         result.await();
     }
 
@@ -833,7 +979,7 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
     public void commitTransaction() throws ProducerFencedException {
         throwIfNoTransactionManager();
         TransactionalRequestResult result = transactionManager.beginCommit();
-        sender.wakeup();
+        wakeupSenders();
         result.await();
     }
 
@@ -854,7 +1000,7 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
     public void abortTransaction() throws ProducerFencedException {
         throwIfNoTransactionManager();
         TransactionalRequestResult result = transactionManager.beginAbort();
-        sender.wakeup();
+        wakeupSenders();
         result.await();
     }
 
@@ -980,122 +1126,432 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
     public Future<RecordMetadata> send(ProducerRecord<K, V> record, Callback callback) {
         //拦截器处理
         ProducerRecord<K, V> interceptedRecord = this.interceptors.onSend(record);
-        return doSend(interceptedRecord, callback);
+        return doSend(interceptedRecord, callback, true);
+    }
+
+    /**
+     * Asynchronously send a record like {@link #send(ProducerRecord, Callback)}, but without ever blocking the calling
+     * thread, for callers such as event loops that must not block. Instead of waiting up to <code>max.block.ms</code>:
+     * <ul>
+     * <li>if the metadata of the topic is not available, an update is requested and the returned future fails with a
+     * {@link TimeoutException}, as with a <code>max.block.ms</code> of 0</li>
+     * <li>if the record needs a new batch and the buffer memory does not have room for it, the record is not sent,
+     * the callback is not called and null is returned. The listeners registered with
+     * {@link #addBackpressureListener(BufferBackpressureListener)} are told when this starts happening and when memory
+     * is available again, so that the caller can stop taking in new work in the meantime.</li>
+     * </ul>
+     *
+     * @param record The record to send
+     * @param callback A user-supplied callback to execute when the record has been acknowledged by the server (null
+     *            indicates no callback)
+     * @return The future of the record, or null if the buffer memory is exhausted
+     * @throws IllegalStateException if a transactional.id has been configured and no transaction has been started, or
+     *             when send is invoked after producer has been closed.
+     * @throws SerializationException If the key or value are not valid objects given the configured serializers
+     * @throws KafkaException If a Kafka related error occurs that does not belong to the public API exceptions.
+     */
+    public Future<RecordMetadata> trySend(ProducerRecord<K, V> record, Callback callback) {
+        ProducerRecord<K, V> interceptedRecord = this.interceptors.onSend(record);
+        return doSend(interceptedRecord, callback, false);
+    }
+
+    /**
+     * Register a listener to be told when {@link #trySend(ProducerRecord, Callback)} stops sending records because the
+     * buffer memory is exhausted, and when memory is available again.
+     *
+     * @param listener The listener, which must be fast and must not block
+     */
+    public void addBackpressureListener(BufferBackpressureListener listener) {
+        this.bufferPool.addBackpressureListener(listener);
+    }
+
+    /**
+     * Asynchronously send a record to a topic, returning a stage that completes with the metadata of the record once
+     * it has been acknowledged, or exceptionally with the error the send failed with. The stage is completed directly
+     * by the producer when the record's batch completes, so unlike wrapping {@link #send(ProducerRecord, Callback)}
+     * no callback is needed. Dependent actions that are not async run on the thread completing the batch, the same as
+     * callbacks, so they should be fast.
+     *
+     * @param record The record to send
+     * @throws IllegalStateException if a transactional.id has been configured and no transaction has been started, or
+     *             when send is invoked after producer has been closed.
+     * @throws InterruptException If the thread is interrupted while blocked
+     * @throws SerializationException If the key or value are not valid objects given the configured serializers
+     * @throws KafkaException If a Kafka related error occurs that does not belong to the public API exceptions.
+     */
+    public CompletionStage<RecordMetadata> sendAsync(ProducerRecord<K, V> record) {
+        Future<RecordMetadata> future = send(record, null);
+        if (future instanceof FutureRecordMetadata)
+            return ((FutureRecordMetadata) future).toCompletionStage();
+        CompletableFuture<RecordMetadata> failed = new CompletableFuture<>();
+        failed.completeExceptionally(((FutureFailure) future).exception.getCause());
+        return failed;
+    }
+
+    /**
+     * Asynchronously send a group of records, returning one stage that completes with the metadata of the records, in
+     * the order of the collection, once all of them are done. It completes exceptionally with the error of the first
+     * record that failed, in which case the other records may or may not have been written. The records are sent
+     * with {@link #sendAll(Collection)}, without a callback or a stage per record.
+     *
+     * @param records The records to send
+     * @throws IllegalStateException if a transactional.id has been configured and no transaction has been started, or
+     *             when send is invoked after producer has been closed.
+     * @throws InterruptException If the thread is interrupted while blocked
+     * @throws SerializationException If the key or value are not valid objects given the configured serializers
+     * @throws KafkaException If a Kafka related error occurs that does not belong to the public API exceptions.
+     */
+    public CompletionStage<List<RecordMetadata>> sendAsync(Collection<ProducerRecord<K, V>> records) {
+        return AggregateSendResult.of(sendAll(records));
     }
 
     // Verify that this producer instance has not been closed. This method throws IllegalStateException if the producer
     // has already been closed.
     private void throwIfProducerClosed() {
-        if (ioThread == null || !ioThread.isAlive())
+        if (ioThreads == null || ioThreads.isEmpty() || !ioThreads.get(0).isAlive())
             throw new IllegalStateException("Cannot perform operation after producer has been closed");
     }
 
+    private void wakeupSenders() {
+        for (Sender sender : senders)
+            sender.wakeup();
+    }
+
     /**
      * 将消息追加到RecordAccumulator缓存队列，并唤醒sender线程
      * 
      * @param record
      * @param callback
+     * @param block 是否阻塞等待metadata及缓冲池内存，为false时内存不足返回null
      * @return
      */
-    private Future<RecordMetadata> doSend(ProducerRecord<K, V> record, Callback callback) {
+    private Future<RecordMetadata> doSend(ProducerRecord<K, V> record, Callback callback, boolean block) {
         TopicPartition tp = null;
         try {
             throwIfProducerClosed();
-            // first make sure the metadata for the topic is available
-            // 在数据发送前，需要先该 topic 是可用的
-            ClusterAndWaitTime clusterAndWaitTime;
-            try {
-                /**
-                 * 等待metadata的更新
-                 *
-                 * 这里就是更新的是Kafka的Cluster的信息，还有包括一些对应关系，关联联系，和一些逻辑数据
-                 */
-                clusterAndWaitTime = waitOnMetadata(record.topic(), record.partition(), maxBlockTimeMs);
-            } catch (KafkaException e) {
-                if (metadata.isClosed())
-                    throw new KafkaException("Producer closed while send in progress", e);
-                throw e;
-            }
-            long remainingWaitMs = Math.max(0, maxBlockTimeMs - clusterAndWaitTime.waitedOnMetadataMs);
-            // 获取Cluster数据
-            Cluster cluster = clusterAndWaitTime.cluster;
-            byte[] serializedKey;
-            try {
-                // 序列化key
-                serializedKey = keySerializer.serialize(record.topic(), record.headers(), record.key());
-            } catch (ClassCastException cce) {
-                throw new SerializationException("Can't convert key of class " + record.key().getClass().getName()
-                    + " to class " + producerConfig.getClass(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG).getName()
-                    + " specified in key.serializer", cce);
-            }
-            byte[] serializedValue;
-            try {
-                // 序列化value
-                serializedValue = valueSerializer.serialize(record.topic(), record.headers(), record.value());
-            } catch (ClassCastException cce) {
-                throw new SerializationException("Can't convert value of class " + record.value().getClass().getName()
-                    + " to class " + producerConfig.getClass(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG).getName()
-                    + " specified in value.serializer", cce);
-            }
-            // 计算分区号
-            int partition = partition(record, serializedKey, serializedValue, cluster);
-            tp = new TopicPartition(record.topic(), partition);
-            //设置消息头为只读
-            setReadOnly(record.headers());
-            Header[] headers = record.headers().toArray();
-            //估算消息大小
-            int serializedSize = AbstractRecords.estimateSizeInBytesUpperBound(apiVersions.maxUsableProduceMagic(),
-                compressionType, serializedKey, serializedValue, headers);
-           log.info("消息大小===>"+serializedSize);
+            PreparedRecord prepared = prepare(record, block ? maxBlockTimeMs : 0L);
+            Cluster cluster = prepared.cluster;
+            byte[] serializedKey = prepared.serializedKey;
+            byte[] serializedValue = prepared.serializedValue;
+            SerializedValue streamedValue = prepared.streamedValue;
+            Header[] headers = prepared.headers;
+            long remainingWaitMs = prepared.remainingWaitMs;
+            int partition = prepared.tp.partition();
+            tp = prepared.tp;
             // 校验消息数据大小
-            ensureValidRecordSize(serializedSize);
-            long timestamp = record.timestamp() == null ? time.milliseconds() : record.timestamp();
+            ensureValidRecordSize(prepared.serializedSize);
+            long timestamp = prepared.timestamp;
             log.trace("Sending record {} with callback {} to topic {} partition {}", record, callback, record.topic(),
                 partition);
             // producer callback will make sure to call both 'callback' and interceptor callback
             // 拦截器回调函数
-            Callback interceptCallback = new InterceptorCallback<>(callback, this.interceptors, tp);
+            Callback interceptCallback = interceptCallback(callback, tp);
 
             if (transactionManager != null && transactionManager.isTransactional())
                 transactionManager.maybeAddPartitionToTransaction(tp);
+            // 粘性分区器需要在新建batch 前切换分区，由partitioner 选出的分区才允许放弃追加
+            boolean abortOnNewBatch = record.partition() == null && partitioner instanceof StickyPartitioner;
             // 追加消息到RecordAccumulator缓存
-            RecordAccumulator.RecordAppendResult result = accumulator.append(tp, timestamp, serializedKey,
-                serializedValue, headers, interceptCallback, remainingWaitMs);
+            RecordAccumulator.RecordAppendResult result = appendToAccumulator(tp, timestamp, serializedKey,
+                serializedValue, streamedValue, headers, interceptCallback, remainingWaitMs, block, abortOnNewBatch);
+            if (result == null)
+                return rejectSend(record, tp);
+
+            if (result.abortForNewBatch) {
+                int prevPartition = partition;
+                partitioner.onNewBatch(record.topic(), cluster, prevPartition);
+                partition = partition(record, serializedKey, serializedValue, cluster);
+                tp = new TopicPartition(record.topic(), partition);
+                if (log.isTraceEnabled()) {
+                    log.trace("Retrying append due to new batch creation for topic {} partition {}. The old partition was {}",
+                        record.topic(), partition, prevPartition);
+                }
+                // producer callback will make sure to call both 'callback' and interceptor callback
+                interceptCallback = interceptCallback(callback, tp);
+
+                if (transactionManager != null && transactionManager.isTransactional())
+                    transactionManager.maybeAddPartitionToTransaction(tp);
+                result = appendToAccumulator(tp, timestamp, serializedKey, serializedValue, streamedValue, headers,
+                    interceptCallback, remainingWaitMs, block, false);
+                if (result == null)
+                    return rejectSend(record, tp);
+            }
             //当RecordAccumulator满了或者新建的batch,唤醒sender线程，进行发送
             if (result.batchIsFull || result.newBatchCreated) {
                 log.trace("Waking up the sender since topic {} partition {} is either full or getting a new batch",
                     record.topic(), partition);
-                this.sender.wakeup();
+                wakeupSenders();
             }
             return result.future;
-            // handling exceptions and record the errors;
-            // for API exceptions return them in the future,
-            // for other exceptions throw directly
-        } catch (ApiException e) {
+        } catch (Exception e) {
+            return sendFailed(record, tp, callback, e);
+        }
+    }
+
+    /**
+     * Send a group of records, equivalent to sending each of them with {@link #send(ProducerRecord)} but cheaper for
+     * large groups: the records are serialized and partitioned in one pass, and the records of each partition are
+     * appended to its batches while holding the partition's lock once rather than once per record. The records of a
+     * partition keep the order they have in the collection.
+     * <p>
+     * Records that fail with an API exception, such as a record that is too large, get a failed future as with
+     * {@link #send(ProducerRecord)}. Any other exception stops the call and is rethrown: the records that were already
+     * appended are still sent, but their futures are not returned, and every record that already went through the
+     * interceptors' {@link ProducerInterceptor#onSend(ProducerRecord) onSend} but was not appended is dropped and
+     * reported to {@link ProducerInterceptor#onAcknowledgement(RecordMetadata, Exception) onAcknowledgement} as a send
+     * error. The records after the one that failed are not passed to the interceptors at all.
+     * <p>
+     * The whole call blocks for at most <code>max.block.ms</code> waiting for metadata and buffer memory, however
+     * many records or partitions it covers.
+     *
+     * @param records The records to send
+     * @return The futures of the records, in the order of the collection
+     * @throws IllegalStateException if a transactional.id has been configured and no transaction has been started, or
+     *             when send is invoked after producer has been closed.
+     * @throws InterruptException If the thread is interrupted while blocked
+     * @throws SerializationException If the key or value are not valid objects given the configured serializers
+     * @throws KafkaException If a Kafka related error occurs that does not belong to the public API exceptions.
+     */
+    public List<Future<RecordMetadata>> sendAll(Collection<ProducerRecord<K, V>> records) {
+        List<Future<RecordMetadata>> futures = new ArrayList<>(records.size());
+        if (streamingValueSerializer != null) {
+            // streamed values are written into the batch one by one
+            for (ProducerRecord<K, V> record : records)
+                futures.add(send(record, null));
+            return futures;
+        }
+
+        // the whole call blocks for at most max.block.ms, not max.block.ms per record or partition
+        long deadlineMs = time.milliseconds() + maxBlockTimeMs;
+        // serialize and partition all the records first, grouping them by partition
+        Map<TopicPartition, RecordGroup<K, V>> groups = new LinkedHashMap<>();
+        for (ProducerRecord<K, V> record : records) {
+            ProducerRecord<K, V> interceptedRecord = this.interceptors.onSend(record);
+            TopicPartition tp = null;
+            try {
+                throwIfProducerClosed();
+                PreparedRecord prepared = prepare(interceptedRecord, Math.max(0, deadlineMs - time.milliseconds()));
+                tp = prepared.tp;
+                ensureValidRecordSize(prepared.serializedSize);
+                RecordGroup<K, V> group = groups.get(tp);
+                if (group == null) {
+                    group = new RecordGroup<>(tp);
+                    groups.put(tp, group);
+                }
+                group.add(futures.size(), interceptedRecord, prepared, interceptCallback(null, tp));
+                futures.add(null);
+            } catch (Exception e) {
+                // 非API异常会直接抛出，已经分组但还没追加的消息不会再发送
+                if (!(e instanceof ApiException))
+                    abandonUnappended(groups.values(), e);
+                futures.add(sendFailed(interceptedRecord, tp, null, e));
+            }
+        }
+
+        // then append the records of each partition at once
+        boolean wakeup = false;
+        for (RecordGroup<K, V> group : groups.values()) {
+            FutureRecordMetadata[] appended = new FutureRecordMetadata[group.count];
+            group.appended = appended;
+            try {
+                if (transactionManager != null && transactionManager.isTransactional())
+                    transactionManager.maybeAddPartitionToTransaction(group.tp);
+                wakeup |= accumulator.appendAll(group.tp, group.timestamps, group.keys, group.values, group.headers,
+                    group.callbacks, group.count, appended, Math.max(0, deadlineMs - time.milliseconds()));
+            } catch (Exception e) {
+                if (wakeup)
+                    wakeupSenders();
+                if (!(e instanceof ApiException)) {
+                    // 这个分区剩下的消息和之后分区的消息都不会再追加
+                    abandonUnappended(groups.values(), e);
+                    throw sendException(e);
+                }
+                // fail the records of the partition that were not appended
+                for (int i = 0; i < group.count; i++) {
+                    if (appended[i] == null)
+                        futures.set(group.indexes[i], sendFailed(group.records.get(i), group.tp, null, e));
+                }
+            }
+            for (int i = 0; i < group.count; i++) {
+                if (appended[i] != null)
+                    futures.set(group.indexes[i], appended[i]);
+            }
+            group.completed = true;
+        }
+        if (wakeup) {
+            log.trace("Waking up the sender since batches are either full or new batches were created");
+            wakeupSenders();
+        }
+        return futures;
+    }
+
+    /**
+     * handling exceptions and record the errors;
+     * for API exceptions return them in the future,
+     * for other exceptions throw directly
+     */
+    private Future<RecordMetadata> sendFailed(ProducerRecord<K, V> record, TopicPartition tp, Callback callback,
+                                              Exception e) {
+        if (e instanceof ApiException) {
             log.debug("Exception occurred during message send:", e);
             if (callback != null)
                 callback.onCompletion(null, e);
             this.errors.record();
             this.interceptors.onSendError(record, tp, e);
             return new FutureFailure(e);
-        } catch (InterruptedException e) {
-            this.errors.record();
-            this.interceptors.onSendError(record, tp, e);
-            throw new InterruptException(e);
-        } catch (BufferExhaustedException e) {
+        } else {
+            recordSendError(record, tp, e);
+            throw sendException(e);
+        }
+    }
+
+    /**
+     * 记录非API异常导致的发送失败，并通知拦截器
+     */
+    private void recordSendError(ProducerRecord<K, V> record, TopicPartition tp, Exception e) {
+        if (e instanceof InterruptedException || e instanceof KafkaException)
             this.errors.record();
+        if (e instanceof BufferExhaustedException)
             this.metrics.sensor("buffer-exhausted-records").record();
-            this.interceptors.onSendError(record, tp, e);
-            throw e;
+        // we notify interceptor about all exceptions, since onSend is called before anything else in this method
+        this.interceptors.onSendError(record, tp, e);
+    }
+
+    /**
+     * 非API异常直接抛给调用者，InterruptedException 转换为 InterruptException
+     */
+    private static RuntimeException sendException(Exception e) {
+        if (e instanceof InterruptedException)
+            return new InterruptException((InterruptedException) e);
+        return (RuntimeException) e;
+    }
+
+    /**
+     * sendAll 因非API异常中断时，已经过拦截器但还没追加的消息都不会再发送，逐条通知拦截器发送失败
+     */
+    private void abandonUnappended(Collection<RecordGroup<K, V>> groups, Exception e) {
+        for (RecordGroup<K, V> group : groups) {
+            if (group.completed)
+                continue;
+            for (int i = 0; i < group.count; i++) {
+                if (group.appended == null || group.appended[i] == null)
+                    recordSendError(group.records.get(i), group.tp, e);
+            }
+        }
+    }
+
+    /**
+     * 等待metadata、序列化key/value 并计算分区，得到追加到RecordAccumulator 所需的数据
+     */
+    private PreparedRecord prepare(ProducerRecord<K, V> record, long maxBlockTimeMs) throws InterruptedException {
+        // first make sure the metadata for the topic is available
+        // 在数据发送前，需要先该 topic 是可用的
+        ClusterAndWaitTime clusterAndWaitTime;
+        try {
+            /**
+             * 等待metadata的更新
+             *
+             * 这里就是更新的是Kafka的Cluster的信息，还有包括一些对应关系，关联联系，和一些逻辑数据
+             */
+            clusterAndWaitTime = waitOnMetadata(record.topic(), record.partition(), maxBlockTimeMs);
         } catch (KafkaException e) {
-            this.errors.record();
-            this.interceptors.onSendError(record, tp, e);
-            throw e;
-        } catch (Exception e) {
-            // we notify interceptor about all exceptions, since onSend is called before anything else in this method
-            this.interceptors.onSendError(record, tp, e);
+            if (metadata.isClosed())
+                throw new KafkaException("Producer closed while send in progress", e);
             throw e;
         }
+        long remainingWaitMs = Math.max(0, maxBlockTimeMs - clusterAndWaitTime.waitedOnMetadataMs);
+        // 获取Cluster数据
+        Cluster cluster = clusterAndWaitTime.cluster;
+        byte[] serializedKey;
+        try {
+            // 序列化key
+            serializedKey = keySerializer.serialize(record.topic(), record.headers(), record.key());
+        } catch (ClassCastException cce) {
+            throw new SerializationException("Can't convert key of class " + record.key().getClass().getName()
+                + " to class " + producerConfig.getClass(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG).getName()
+                + " specified in key.serializer", cce);
+        }
+        byte[] serializedValue = null;
+        SerializedValue streamedValue = null;
+        try {
+            // 序列化value
+            if (streamingValueSerializer != null && record.value() != null)
+                streamedValue = streamingValueSerializer.prepare(record.topic(), record.headers(), record.value());
+            else
+                serializedValue = valueSerializer.serialize(record.topic(), record.headers(), record.value());
+        } catch (ClassCastException cce) {
+            throw new SerializationException("Can't convert value of class " + record.value().getClass().getName()
+                + " to class " + producerConfig.getClass(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG).getName()
+                + " specified in value.serializer", cce);
+        }
+        // 计算分区号
+        int partition = partition(record, serializedKey, serializedValue, cluster);
+        TopicPartition tp = new TopicPartition(record.topic(), partition);
+        //设置消息头为只读
+        setReadOnly(record.headers());
+        Header[] headers = record.headers().toArray();
+        // 小消息的value使用压缩字典单独压缩，并通过消息头记录字典id
+        if (compressionDictionary != null && serializedValue != null
+            && serializedValue.length <= compressionDictionaryMaxRecordBytes
+            && apiVersions.maxUsableProduceMagic() >= RecordBatch.MAGIC_VALUE_V2) {
+            byte[] compressedValue = compressionDictionary.compress(serializedValue);
+            if (compressedValue != null) {
+                serializedValue = compressedValue;
+                headers = Arrays.copyOf(headers, headers.length + 1);
+                headers[headers.length - 1] = compressionDictionary.header();
+            }
+        }
+        //估算消息大小
+        int serializedSize = streamedValue != null
+            ? AbstractRecords.estimateSizeInBytesUpperBound(apiVersions.maxUsableProduceMagic(), compressionType,
+                serializedKey == null ? -1 : serializedKey.length, streamedValue.sizeInBytes(), headers)
+            : AbstractRecords.estimateSizeInBytesUpperBound(apiVersions.maxUsableProduceMagic(), compressionType,
+                serializedKey, serializedValue, headers);
+        if (log.isTraceEnabled())
+            log.trace("消息大小===>{}", serializedSize);
+        long timestamp = record.timestamp() == null ? time.milliseconds() : record.timestamp();
+        return new PreparedRecord(tp, cluster, timestamp, serializedKey, serializedValue, streamedValue, headers,
+            serializedSize, remainingWaitMs);
+    }
+
+    private RecordAccumulator.RecordAppendResult appendToAccumulator(TopicPartition tp, long timestamp,
+        byte[] serializedKey, byte[] serializedValue, SerializedValue streamedValue, Header[] headers,
+        Callback interceptCallback, long remainingWaitMs, boolean block, boolean abortOnNewBatch)
+        throws InterruptedException {
+        if (!block) {
+            if (streamedValue != null)
+                return accumulator.offer(tp, timestamp, serializedKey, streamedValue, headers, interceptCallback,
+                    abortOnNewBatch);
+            return accumulator.offer(tp, timestamp, serializedKey, serializedValue, headers, interceptCallback,
+                abortOnNewBatch);
+        }
+        if (streamedValue != null)
+            return accumulator.append(tp, timestamp, serializedKey, streamedValue, headers, interceptCallback,
+                remainingWaitMs, abortOnNewBatch);
+        return accumulator.append(tp, timestamp, serializedKey, serializedValue, headers, interceptCallback,
+            remainingWaitMs, abortOnNewBatch);
+    }
+
+    /**
+     * 非阻塞发送因缓冲池内存不足未追加消息，通知拦截器该消息未发送
+     */
+    private Future<RecordMetadata> rejectSend(ProducerRecord<K, V> record, TopicPartition tp) {
+        log.trace("Not sending record {} to topic {} partition {} since the buffer memory is exhausted", record,
+            record.topic(), tp.partition());
+        if (!this.interceptors.isEmpty())
+            this.interceptors.onSendError(record, tp,
+                new BufferExhaustedException("The buffer memory is exhausted, the record was not sent."));
+        return null;
+    }
+
+    /**
+     * The callback to append with a record. Without interceptors and a user callback there is nothing to call back,
+     * so no callback is allocated for the record.
+     */
+    private Callback interceptCallback(Callback callback, TopicPartition tp) {
+        if (callback == null && this.interceptors.isEmpty())
+            return null;
+        return new InterceptorCallback<>(callback, this.interceptors, tp);
     }
 
     private void setReadOnly(Headers headers) {
@@ -1172,7 +1628,7 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
             //获取版本号，并且设置将更新标志设置为true this.needUpdate = true;
             int version = metadata.requestUpdate();
             //唤醒sender线程
-            sender.wakeup();
+            wakeupSenders();
             try {
                 //等待更新cluster信息的阻塞方法
                 metadata.awaitUpdate(version, remainingWaitMs);
@@ -1253,7 +1709,7 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
     public void flush() {
         log.trace("Flushing accumulated records in producer.");
         this.accumulator.beginFlush();
-        this.sender.wakeup();
+        wakeupSenders();
         try {
             this.accumulator.awaitFlushCompletion();
         } catch (InterruptedException e) {
@@ -1331,7 +1787,8 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
         log.info("Closing the Kafka producer with timeoutMillis = {} ms.", timeUnit.toMillis(timeout));
         // this will keep track of the first encountered exception
         AtomicReference<Throwable> firstException = new AtomicReference<>();
-        boolean invokedFromCallback = Thread.currentThread() == this.ioThread;
+        boolean invokedFromCallback = (this.ioThreads != null && this.ioThreads.contains(Thread.currentThread()))
+            || (this.callbackExecutor != null && this.callbackExecutor.isCallbackThread(Thread.currentThread()));
         if (timeout > 0) {
             if (invokedFromCallback) {
                 log.warn(
@@ -1340,11 +1797,19 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
                     timeout);
             } else {
                 // Try to close gracefully.
-                if (this.sender != null)
-                    this.sender.initiateClose();
-                if (this.ioThread != null) {
+                if (this.senders != null) {
+                    for (Sender sender : this.senders)
+                        sender.initiateClose();
+                }
+                if (this.ioThreads != null) {
+                    long deadlineMs = time.milliseconds() + timeUnit.toMillis(timeout);
                     try {
-                        this.ioThread.join(timeUnit.toMillis(timeout));
+                        for (Thread ioThread : this.ioThreads) {
+                            long remainingMs = deadlineMs - time.milliseconds();
+                            if (remainingMs <= 0)
+                                break;
+                            ioThread.join(remainingMs);
+                        }
                     } catch (InterruptedException t) {
                         firstException.compareAndSet(null, new InterruptException(t));
                         log.error("Interrupted while joining ioThread", t);
@@ -1353,25 +1818,40 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
             }
         }
 
-        if (this.sender != null && this.ioThread != null && this.ioThread.isAlive()) {
-            log.info("Proceeding to force close the producer since pending requests could not be completed "
-                + "within timeout {} ms.", timeout);
-            this.sender.forceClose();
-            // Only join the sender thread when not calling from callback.
-            if (!invokedFromCallback) {
+        if (this.senders != null && this.ioThreads != null) {
+            boolean forced = false;
+            for (int i = 0; i < this.ioThreads.size(); i++) {
+                Thread ioThread = this.ioThreads.get(i);
+                if (!ioThread.isAlive())
+                    continue;
+                if (!forced) {
+                    log.info("Proceeding to force close the producer since pending requests could not be completed "
+                        + "within timeout {} ms.", timeout);
+                    forced = true;
+                }
+                this.senders.get(i).forceClose();
+            }
+            // Only join the sender threads when not calling from callback.
+            if (forced && !invokedFromCallback) {
                 try {
-                    this.ioThread.join();
+                    for (Thread ioThread : this.ioThreads)
+                        ioThread.join();
                 } catch (InterruptedException e) {
                     firstException.compareAndSet(null, new InterruptException(e));
                 }
             }
         }
 
+        // run the callbacks of the batches completed while closing before the interceptors are closed
+        if (this.callbackExecutor != null)
+            this.callbackExecutor.shutdown(invokedFromCallback ? 0 : timeUnit.toMillis(timeout));
+
         ClientUtils.closeQuietly(interceptors, "producer interceptors", firstException);
         ClientUtils.closeQuietly(metrics, "producer metrics", firstException);
         ClientUtils.closeQuietly(keySerializer, "producer keySerializer", firstException);
         ClientUtils.closeQuietly(valueSerializer, "producer valueSerializer", firstException);
         ClientUtils.closeQuietly(partitioner, "producer partitioner", firstException);
+        ClientUtils.closeQuietly(compressionDictionary, "producer compression dictionary", firstException);
         AppInfoParser.unregisterAppInfo(JMX_PREFIX, clientId, metrics);
         log.debug("Kafka producer has been closed");
         Throwable exception = firstException.get();
@@ -1425,6 +1905,76 @@ public class KafkaProducer<K, V> implements Producer<K, V> {
         }
     }
 
+    /**
+     * 已序列化并确定分区，等待追加到RecordAccumulator 的消息
+     */
+    private static class PreparedRecord {
+        final TopicPartition tp;
+        final Cluster cluster;
+        final long timestamp;
+        final byte[] serializedKey;
+        final byte[] serializedValue;
+        final SerializedValue streamedValue;
+        final Header[] headers;
+        final int serializedSize;
+        final long remainingWaitMs;
+
+        PreparedRecord(TopicPartition tp, Cluster cluster, long timestamp, byte[] serializedKey, byte[] serializedValue,
+                       SerializedValue streamedValue, Header[] headers, int serializedSize, long remainingWaitMs) {
+            this.tp = tp;
+            this.cluster = cluster;
+            this.timestamp = timestamp;
+            this.serializedKey = serializedKey;
+            this.serializedValue = serializedValue;
+            this.streamedValue = streamedValue;
+            this.headers = headers;
+            this.serializedSize = serializedSize;
+            this.remainingWaitMs = remainingWaitMs;
+        }
+    }
+
+    /**
+     * sendAll 中同一分区的消息，按发送顺序保存
+     */
+    private static class RecordGroup<K, V> {
+        final TopicPartition tp;
+        final List<ProducerRecord<K, V>> records = new ArrayList<>();
+        int count = 0;
+        int[] indexes = new int[8];
+        long[] timestamps = new long[8];
+        byte[][] keys = new byte[8][];
+        byte[][] values = new byte[8][];
+        Header[][] headers = new Header[8][];
+        Callback[] callbacks = new Callback[8];
+        // 追加时才创建，completed 表示这个分区的消息都已经追加或者以API异常失败
+        FutureRecordMetadata[] appended;
+        boolean completed = false;
+
+        RecordGroup(TopicPartition tp) {
+            this.tp = tp;
+        }
+
+        void add(int index, ProducerRecord<K, V> record, PreparedRecord prepared, Callback callback) {
+            if (count == indexes.length) {
+                int capacity = count * 2;
+                indexes = Arrays.copyOf(indexes, capacity);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                keys = Arrays.copyOf(keys, capacity);
+                values = Arrays.copyOf(values, capacity);
+                headers = Arrays.copyOf(headers, capacity);
+                callbacks = Arrays.copyOf(callbacks, capacity);
+            }
+            records.add(record);
+            indexes[count] = index;
+            timestamps[count] = prepared.timestamp;
+            keys[count] = prepared.serializedKey;
+            values[count] = prepared.serializedValue;
+            headers[count] = prepared.headers;
+            callbacks[count] = callback;
+            count++;
+        }
+    }
+
     private static class FutureFailure implements Future<RecordMetadata> {
 
         private final ExecutionException exception;
@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.clients.producer;
+
+/**
+ * 负载感知分区器使用的权重函数
+ * <p>
+ * Computes how likely a partition is to be chosen for a keyless record by the load-aware partitioner, from the load
+ * observed by the producer. Partitions are picked with a probability proportional to their weight, so a partition
+ * with weight 0 is never chosen unless every partition has weight 0.
+ * <p>
+ * A class that implements this interface is expected to have a constructor with no parameters.
+ */
+public interface PartitionWeigher {
+
+    /**
+     * Compute the weight of a partition.
+     *
+     * @param queuedBatches    The number of batches waiting in the accumulator for the partition
+     * @param inFlightRequests The number of requests in flight to the leader of the partition
+     * @param latencyMs        The recent average produce request latency of the leader of the partition, or the
+     *                         time its oldest produce request has been in flight if that is longer, or 0 if no
+     *                         request has been sent yet
+     * @return a non-negative weight
+     */
+    double weight(int queuedBatches, int inFlightRequests, double latencyMs);
+}
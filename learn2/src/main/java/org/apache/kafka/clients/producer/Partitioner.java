@@ -41,4 +41,15 @@ public interface Partitioner extends Configurable, Closeable {
      */
     public void close();
 
+    /**
+     * Notifies the partitioner a new batch is about to be created. When using the sticky partitioner,
+     * this method can change the chosen sticky partition for the new batch.
+     * 新建batch 前的回调，粘性分区器借此切换分区
+     * @param topic The topic name
+     * @param cluster The current cluster metadata
+     * @param prevPartition The partition previously selected for the record that triggered a new batch
+     */
+    default public void onNewBatch(String topic, Cluster cluster, int prevPartition) {
+    }
+
 }
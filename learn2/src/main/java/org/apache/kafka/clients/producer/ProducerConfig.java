@@ -13,6 +13,7 @@
 package org.apache.kafka.clients.producer;
 
 import org.apache.kafka.clients.CommonClientConfigs;
+import org.apache.kafka.clients.producer.internals.DefaultPartitionWeigher;
 import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
 import org.apache.kafka.common.config.AbstractConfig;
 import org.apache.kafka.common.config.ConfigDef;
@@ -173,7 +174,7 @@ public class ProducerConfig extends AbstractConfig {
     public static final String COMPRESSION_TYPE_CONFIG = "compression.type";
     private static final String COMPRESSION_TYPE_DOC =
         "The compression type for all data generated by the producer. The default is none (i.e. no compression). Valid "
-            + " values are <code>none</code>, <code>gzip</code>, <code>snappy</code>, or <code>lz4</code>. "
+            + " values are <code>none</code>, <code>gzip</code>, <code>snappy</code>, <code>lz4</code>, or <code>zstd</code>. "
             + "Compression is of full batches of data, so the efficacy of batching will also impact the compression ratio (more batching means better compression).";
 
     /**
@@ -203,7 +204,8 @@ public class ProducerConfig extends AbstractConfig {
     private static final String MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION_DOC =
         "The maximum number of unacknowledged requests the client will send on a single connection before blocking."
             + " Note that if this setting is set to be greater than 1 and there are failed sends, there is a risk of"
-            + " message re-ordering due to retries (i.e., if retries are enabled).";
+            + " message re-ordering due to retries (i.e., if retries are enabled). With idempotence enabled this may be"
+            + " greater than 5, but at most 5 batches of each partition are in flight at a time.";
 
     /**
      * <code>retries</code>
@@ -266,8 +268,7 @@ public class ProducerConfig extends AbstractConfig {
     public static final String ENABLE_IDEMPOTENCE_DOC =
         "When set to 'true', the producer will ensure that exactly one copy of each message is written in the stream. If 'false', producer "
             + "retries due to broker failures, etc., may write duplicates of the retried message in the stream. "
-            + "Note that enabling idempotence requires <code>" + MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION
-            + "</code> to be less than or equal to 5, " + "<code>" + RETRIES_CONFIG
+            + "Note that enabling idempotence requires <code>" + RETRIES_CONFIG
             + "</code> to be greater than 0 and " + ACKS_CONFIG + " must be 'all'. If these values "
             + "are not explicitly set by the user, suitable values will be chosen. If incompatible values are set, "
             + "a ConfigException will be thrown.";
@@ -290,6 +291,163 @@ public class ProducerConfig extends AbstractConfig {
             + "The default is <code>null</code>, which means transactions cannot be used. "
             + "Note that transactions requires a cluster of at least three brokers by default what is the recommended setting for production; for development you can change this, by adjusting broker setting `transaction.state.log.replication.factor`.";
 
+    /**
+     * <code>append.mode</code>
+     */
+    public static final String APPEND_MODE_CONFIG = "append.mode";
+    private static final String APPEND_MODE_DOC =
+        "Controls how concurrent <code>send()</code> calls append records to the open batch of a partition. With "
+            + "<code>locking</code> every caller takes the lock of the partition's batch queue to append its own record. With "
+            + "<code>combining</code> callers publish their record to a per-partition queue and whichever caller claims the "
+            + "partition appends every queued record under a single lock acquisition, so many threads producing to the same "
+            + "partition no longer hand the lock over once per record.";
+
+    /**
+     * <code>buffer.pool.type</code>
+     */
+    public static final String BUFFER_POOL_TYPE_CONFIG = "buffer.pool.type";
+    private static final String BUFFER_POOL_TYPE_DOC =
+        "The kind of pool used to recycle the batch buffers allocated from <code>buffer.memory</code>. With "
+            + "<code>default</code> only buffers of exactly <code>batch.size</code> bytes are kept for reuse. With "
+            + "<code>slab</code> buffers are rounded up to size classes that double from <code>batch.size</code> "
+            + "up to <code>max.request.size</code> and each size class keeps its own free list, so batches "
+            + "enlarged for big records are recycled too at the cost of some unused space per buffer.";
+
+    /**
+     * <code>buffer.pool.direct.memory</code>
+     */
+    public static final String BUFFER_POOL_DIRECT_MEMORY_CONFIG = "buffer.pool.direct.memory";
+    private static final String BUFFER_POOL_DIRECT_MEMORY_DOC =
+        "Whether pooled batch buffers are allocated off-heap. Only applies when <code>" + BUFFER_POOL_TYPE_CONFIG + "</code>"
+            + " is <code>slab</code>. Note that <code>buffer.memory</code> then counts against the "
+            + "JVM's direct memory limit rather than the heap.";
+
+    /**
+     * <code>adaptive.linger.enable</code>
+     */
+    public static final String ADAPTIVE_LINGER_ENABLE_CONFIG = "adaptive.linger.enable";
+    private static final String ADAPTIVE_LINGER_ENABLE_DOC =
+        "When set to 'true', the linger time of each partition is derived from its recent traffic instead of always "
+            + "being <code>" + LINGER_MS_CONFIG + "</code>. The producer tracks the rate at which bytes arrive for a "
+            + "partition and lingers roughly as long as a batch takes to fill at that rate, between <code>"
+            + "adaptive.linger.min.ms</code> and <code>" + LINGER_MS_CONFIG + "</code>. Partitions that cannot fill a batch "
+            + "within <code>" + LINGER_MS_CONFIG + "</code> use the minimum, so low traffic does not pay the full linger "
+            + "latency.";
+
+    /**
+     * <code>adaptive.linger.min.ms</code>
+     */
+    public static final String ADAPTIVE_LINGER_MIN_MS_CONFIG = "adaptive.linger.min.ms";
+    private static final String ADAPTIVE_LINGER_MIN_MS_DOC =
+        "The smallest linger time used for a partition when <code>" + ADAPTIVE_LINGER_ENABLE_CONFIG + "</code> is "
+            + "true. <code>" + LINGER_MS_CONFIG + "</code> is the largest one and must not be smaller than this value.";
+
+    /**
+     * <code>partitioner.sticky.enable</code>
+     */
+    public static final String PARTITIONER_STICKY_ENABLE_CONFIG = "partitioner.sticky.enable";
+    private static final String PARTITIONER_STICKY_ENABLE_DOC =
+        "When set to 'true' and <code>" + PARTITIONER_CLASS_CONFIG + "</code> is left at its default, records without a "
+            + "key are sent to one partition of their topic until a new batch has to be created for it, instead of being "
+            + "spread round-robin over every partition. This produces fewer, fuller batches. Records with a key are still "
+            + "partitioned by the hash of the key. Has no effect when a custom partitioner is configured.";
+
+    /**
+     * <code>partitioner.weigher.class</code>
+     */
+    public static final String PARTITIONER_WEIGHER_CLASS_CONFIG = "partitioner.weigher.class";
+    private static final String PARTITIONER_WEIGHER_CLASS_DOC =
+        "Class that implements the <code>org.apache.kafka.clients.producer.PartitionWeigher</code> interface, used by "
+            + "<code>org.apache.kafka.clients.producer.internals.LoadAwarePartitioner</code> to weight partitions for "
+            + "records without a key by the batches queued for them, the requests in flight to their leader and the "
+            + "recent produce latency of their leader.";
+
+    /**
+     * <code>compression.ratio.estimator</code>
+     */
+    public static final String COMPRESSION_RATIO_ESTIMATOR_CONFIG = "compression.ratio.estimator";
+    private static final String COMPRESSION_RATIO_ESTIMATOR_DOC =
+        "How the compression ratio of a batch is estimated while it is filled, which decides when a compressed batch is "
+            + "full. <code>topic</code> keeps one estimate per topic. <code>partition</code> keeps a moving average and "
+            + "variance of the observed ratio per partition and record size, which avoids both undersized batches and "
+            + "splits of oversized ones when a topic mixes compressible and incompressible data.";
+
+    /**
+     * <code>compression.threads</code>
+     */
+    public static final String COMPRESSION_THREADS_CONFIG = "compression.threads";
+    private static final String COMPRESSION_THREADS_DOC =
+        "The number of threads used to close compressed batches once they are drained for sending. Closing a batch "
+            + "finishes its compression stream and checksums the result; with a value of 0 this is done one batch at a "
+            + "time on the network thread, otherwise the batches drained together are closed in parallel on this many "
+            + "threads.";
+
+    /**
+     * <code>compression.dictionary.file</code>
+     */
+    public static final String COMPRESSION_DICTIONARY_FILE_CONFIG = "compression.dictionary.file";
+    private static final String COMPRESSION_DICTIONARY_FILE_DOC =
+        "A dictionary trained with <code>org.apache.kafka.common.record.CompressionDictionaryTrainer</code> used to "
+            + "compress the values of small records individually, which compress poorly as part of a batch. Such "
+            + "records carry a <code>compression.dictionary.id</code> header, and consumers must list the same "
+            + "dictionary in their <code>compression.dictionary.files</code> to read them. Requires message format v2.";
+
+    /**
+     * <code>compression.dictionary.max.record.bytes</code>
+     */
+    public static final String COMPRESSION_DICTIONARY_MAX_RECORD_BYTES_CONFIG = "compression.dictionary.max.record.bytes";
+    private static final String COMPRESSION_DICTIONARY_MAX_RECORD_BYTES_DOC =
+        "The largest serialized value that is compressed with the <code>" + COMPRESSION_DICTIONARY_FILE_CONFIG
+            + "</code> dictionary. Larger values are left to the batch compression.";
+
+    /**
+     * <code>sender.threads</code>
+     */
+    public static final String SENDER_THREADS_CONFIG = "sender.threads";
+    private static final String SENDER_THREADS_DOC =
+        "The number of network threads that send produce requests. Each broker is assigned to one of the threads, "
+            + "which sends to it over its own connection, so that a producer writing to many brokers is not limited "
+            + "by a single thread. With more than one thread the <code>requests-in-flight</code> metric is replaced "
+            + "by <code>sender-requests-in-flight</code> per thread. Cannot be combined with <code>"
+            + "transactional.id</code>.";
+
+    /**
+     * <code>callback.threads</code>
+     */
+    public static final String CALLBACK_THREADS_CONFIG = "callback.threads";
+    private static final String CALLBACK_THREADS_DOC =
+        "The number of threads that run the callbacks of sent records and the interceptors' "
+            + "<code>onAcknowledgement</code>. The futures of the records are always completed by the network thread, "
+            + "so <code>flush()</code> does not wait for these callbacks. With a value of 0 the callbacks also run on "
+            + "the network thread, so a slow callback "
+            + "delays sending to every broker. Otherwise each partition is handled by one of the threads and its "
+            + "callbacks still run in order.";
+
+    /**
+     * <code>batch.coalescing.enable</code>
+     */
+    public static final String BATCH_COALESCING_ENABLE_CONFIG = "batch.coalescing.enable";
+    private static final String BATCH_COALESCING_ENABLE_DOC =
+        "When set to 'true', the batches queued behind the first batch of a partition that have not been sent yet are "
+            + "merged with it when it is drained, as long as the request stays within <code>" + MAX_REQUEST_SIZE_CONFIG
+            + "</code>. A produce request carries a single batch per partition, so this lets a partition that has fallen "
+            + "behind send more records per request, at the cost of copying (and, with compression, recompressing) "
+            + "its records, which is done by the compression threads if <code>" + COMPRESSION_THREADS_CONFIG
+            + "</code> is set and by the network thread otherwise. Merged batches are allocated from <code>"
+            + BUFFER_MEMORY_CONFIG + "</code>, and batches are not merged while it has no memory for them.";
+
+    /**
+     * <code>buffer.memory.accounting</code>
+     */
+    public static final String BUFFER_MEMORY_ACCOUNTING_CONFIG = "buffer.memory.accounting";
+    private static final String BUFFER_MEMORY_ACCOUNTING_DOC =
+        "What is counted against <code>" + BUFFER_MEMORY_CONFIG + "</code>. With 'batches' only the buffers the record "
+            + "batches are allocated from are counted. With 'all' the memory a batch retains beyond that buffer is counted "
+            + "as well: an estimate of the objects kept for each record until it is acknowledged, the growth of a batch "
+            + "beyond its initial buffer and batches allocated outside of the pool. That memory is taken from the pool once "
+            + "a batch is full, and may temporarily exceed the total, in which case it is paid back before any new batch is "
+            + "allocated, so the sender thread never blocks on it.";
+
     /**
      * 初始化默认配置的静态代码块 所有的配置将会被CONFIG对象包装
      *
@@ -348,7 +506,29 @@ public class ProducerConfig extends AbstractConfig {
             .define(ENABLE_IDEMPOTENCE_CONFIG, Type.BOOLEAN, false, Importance.LOW, ENABLE_IDEMPOTENCE_DOC)
             .define(TRANSACTION_TIMEOUT_CONFIG, Type.INT, 60000, Importance.LOW, TRANSACTION_TIMEOUT_DOC)
             .define(TRANSACTIONAL_ID_CONFIG, Type.STRING, null, new ConfigDef.NonEmptyString(), Importance.LOW,
-                TRANSACTIONAL_ID_DOC);
+                TRANSACTIONAL_ID_DOC)
+            .define(APPEND_MODE_CONFIG, Type.STRING, "locking", in("locking", "combining"), Importance.LOW,
+                APPEND_MODE_DOC)
+            .define(BUFFER_POOL_TYPE_CONFIG, Type.STRING, "default", in("default", "slab"), Importance.LOW,
+                BUFFER_POOL_TYPE_DOC)
+            .define(BUFFER_POOL_DIRECT_MEMORY_CONFIG, Type.BOOLEAN, false, Importance.LOW, BUFFER_POOL_DIRECT_MEMORY_DOC)
+            .define(ADAPTIVE_LINGER_ENABLE_CONFIG, Type.BOOLEAN, false, Importance.LOW, ADAPTIVE_LINGER_ENABLE_DOC)
+            .define(ADAPTIVE_LINGER_MIN_MS_CONFIG, Type.LONG, 0, atLeast(0L), Importance.LOW, ADAPTIVE_LINGER_MIN_MS_DOC)
+            .define(PARTITIONER_STICKY_ENABLE_CONFIG, Type.BOOLEAN, false, Importance.LOW, PARTITIONER_STICKY_ENABLE_DOC)
+            .define(PARTITIONER_WEIGHER_CLASS_CONFIG, Type.CLASS, DefaultPartitionWeigher.class, Importance.LOW,
+                PARTITIONER_WEIGHER_CLASS_DOC)
+            .define(COMPRESSION_RATIO_ESTIMATOR_CONFIG, Type.STRING, "topic", in("topic", "partition"), Importance.LOW,
+                COMPRESSION_RATIO_ESTIMATOR_DOC)
+            .define(COMPRESSION_THREADS_CONFIG, Type.INT, 0, atLeast(0), Importance.LOW, COMPRESSION_THREADS_DOC)
+            .define(COMPRESSION_DICTIONARY_FILE_CONFIG, Type.STRING, null, Importance.LOW,
+                COMPRESSION_DICTIONARY_FILE_DOC)
+            .define(COMPRESSION_DICTIONARY_MAX_RECORD_BYTES_CONFIG, Type.INT, 256, atLeast(0), Importance.LOW,
+                COMPRESSION_DICTIONARY_MAX_RECORD_BYTES_DOC)
+            .define(SENDER_THREADS_CONFIG, Type.INT, 1, atLeast(1), Importance.LOW, SENDER_THREADS_DOC)
+            .define(CALLBACK_THREADS_CONFIG, Type.INT, 0, atLeast(0), Importance.LOW, CALLBACK_THREADS_DOC)
+            .define(BATCH_COALESCING_ENABLE_CONFIG, Type.BOOLEAN, false, Importance.LOW, BATCH_COALESCING_ENABLE_DOC)
+            .define(BUFFER_MEMORY_ACCOUNTING_CONFIG, Type.STRING, "batches", in("batches", "all"), Importance.LOW,
+                BUFFER_MEMORY_ACCOUNTING_DOC);
     }
 
     @Override
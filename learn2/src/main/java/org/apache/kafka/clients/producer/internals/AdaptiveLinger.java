@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * 按分区自适应的linger时间
+ * <p>
+ * Computes the linger time of each partition from the batches recently drained for it, instead of applying the same
+ * fixed <code>linger.ms</code> everywhere. For every drained batch the byte arrival rate (batch size over the time the
+ * batch was open) and the fill ratio (batch size over <code>batch.size</code>) are folded into exponentially weighted
+ * moving averages.
+ * <p>
+ * The effective linger is the time a batch is expected to take to fill up at the observed arrival rate, bounded by the
+ * configured minimum and maximum. If the partition is too slow to fill a batch within the maximum, lingering would add
+ * latency without producing full batches, so the minimum is used instead. Partitions that have not been drained yet
+ * use the maximum, which is the behaviour of a fixed <code>linger.ms</code>.
+ * <p>
+ * Statistics are updated by the sender thread while draining; the current values may be read from any thread.
+ */
+public final class AdaptiveLinger {
+
+    // weight of the most recent batch in the moving averages
+    private static final double ALPHA = 0.2;
+
+    private final int batchSize;
+    private final long minLingerMs;
+    private final long maxLingerMs;
+    private final ConcurrentMap<TopicPartition, PartitionStats> partitions = new ConcurrentHashMap<>();
+
+    /**
+     * @param batchSize   The target batch size in bytes
+     * @param minLingerMs The smallest linger time that will be used
+     * @param maxLingerMs The largest linger time that will be used
+     */
+    public AdaptiveLinger(int batchSize, long minLingerMs, long maxLingerMs) {
+        if (minLingerMs > maxLingerMs)
+            throw new IllegalArgumentException("The minimum linger time " + minLingerMs + " ms must not exceed the maximum "
+                    + maxLingerMs + " ms");
+        this.batchSize = Math.max(batchSize, 1);
+        this.minLingerMs = minLingerMs;
+        this.maxLingerMs = maxLingerMs;
+    }
+
+    /**
+     * The linger time to apply to the given partition
+     */
+    public long lingerMs(TopicPartition tp) {
+        PartitionStats stats = partitions.get(tp);
+        return stats == null ? maxLingerMs : stats.lingerMs;
+    }
+
+    /**
+     * The moving average of the fill ratio of the batches drained for the given partition, or 0 if none were
+     */
+    public double fillRatio(TopicPartition tp) {
+        PartitionStats stats = partitions.get(tp);
+        return stats == null ? 0 : stats.fillRatio;
+    }
+
+    /**
+     * Update the statistics of a partition with a batch that has just been drained for the first time.
+     *
+     * @param tp          The partition of the batch
+     * @param sizeInBytes The size of the batch
+     * @param openMs      The time in milliseconds between the creation of the batch and its drain
+     */
+    void record(TopicPartition tp, int sizeInBytes, long openMs) {
+        PartitionStats stats = partitions.get(tp);
+        if (stats == null) {
+            stats = new PartitionStats();
+            PartitionStats previous = partitions.putIfAbsent(tp, stats);
+            if (previous != null)
+                stats = previous;
+        }
+        double fillRatio = Math.min(1.0, sizeInBytes / (double) batchSize);
+        double bytesPerMs = sizeInBytes / (double) Math.max(openMs, 1L);
+        if (stats.bytesPerMs < 0) {
+            stats.fillRatio = fillRatio;
+            stats.bytesPerMs = bytesPerMs;
+        } else {
+            stats.fillRatio += ALPHA * (fillRatio - stats.fillRatio);
+            stats.bytesPerMs += ALPHA * (bytesPerMs - stats.bytesPerMs);
+        }
+        stats.lingerMs = computeLingerMs(stats.bytesPerMs);
+    }
+
+    private long computeLingerMs(double bytesPerMs) {
+        if (bytesPerMs <= 0)
+            return minLingerMs;
+        double timeToFillMs = batchSize / bytesPerMs;
+        if (timeToFillMs > maxLingerMs)
+            return minLingerMs;
+        return Math.max(minLingerMs, (long) Math.ceil(timeToFillMs));
+    }
+
+    private static final class PartitionStats {
+        volatile double fillRatio = 0;
+        volatile double bytesPerMs = -1;
+        volatile long lingerMs;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.errors.InterruptException;
+
+/**
+ * 一组消息发送的聚合结果
+ * <p>
+ * The result of sending a group of records, completed once every one of them is done. Rather than a callback or a
+ * stage per record it waits on the request result of each batch the records were appended to, so records that share a
+ * batch cost nothing extra. It completes with the metadata of the records in the order they were sent, or
+ * exceptionally with the error of the first record that failed.
+ */
+public final class AggregateSendResult extends CompletableFuture<List<RecordMetadata>> implements Runnable {
+
+    private final List<Future<RecordMetadata>> futures;
+    /* the request results still to complete, plus one while the results are being registered */
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    private AggregateSendResult(List<Future<RecordMetadata>> futures) {
+        this.futures = futures;
+    }
+
+    /**
+     * The aggregate result of the given sends
+     */
+    public static CompletionStage<List<RecordMetadata>> of(List<Future<RecordMetadata>> futures) {
+        AggregateSendResult result = new AggregateSendResult(futures);
+        result.run();
+        return result;
+    }
+
+    /**
+     * Invoked once initially and then whenever one of the request results completes
+     */
+    @Override
+    public void run() {
+        if (pending.decrementAndGet() > 0)
+            return;
+
+        // wait for the request results that are not complete yet, which after the first pass are only those of the
+        // batches the records were moved to when their batch was split
+        Set<ProduceRequestResult> incomplete =
+            Collections.newSetFromMap(new IdentityHashMap<ProduceRequestResult, Boolean>());
+        for (Future<RecordMetadata> future : futures) {
+            if (future instanceof FutureRecordMetadata) {
+                ProduceRequestResult result = ((FutureRecordMetadata) future).incompleteResult();
+                if (result != null)
+                    incomplete.add(result);
+            }
+        }
+        if (!incomplete.isEmpty()) {
+            pending.set(incomplete.size() + 1);
+            for (ProduceRequestResult result : incomplete)
+                result.whenDone(this);
+            run();
+            return;
+        }
+
+        List<RecordMetadata> metadata = new ArrayList<>(futures.size());
+        for (Future<RecordMetadata> future : futures) {
+            if (future instanceof FutureRecordMetadata) {
+                FutureRecordMetadata recordFuture = (FutureRecordMetadata) future;
+                RuntimeException error = recordFuture.error();
+                if (error != null) {
+                    completeExceptionally(error);
+                    return;
+                }
+                metadata.add(recordFuture.value());
+            } else {
+                // records that failed before they were appended to a batch
+                try {
+                    metadata.add(future.get());
+                } catch (ExecutionException e) {
+                    completeExceptionally(e.getCause());
+                    return;
+                } catch (InterruptedException e) {
+                    completeExceptionally(new InterruptException(e));
+                    return;
+                }
+            }
+        }
+        complete(metadata);
+    }
+}
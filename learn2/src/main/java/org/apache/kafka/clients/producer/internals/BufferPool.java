@@ -19,16 +19,24 @@ package org.apache.kafka.clients.producer.internals;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.kafka.clients.producer.BufferBackpressureListener;
 import org.apache.kafka.common.MetricName;
 import org.apache.kafka.common.errors.TimeoutException;
 import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.metrics.Sensor;
 import org.apache.kafka.common.metrics.stats.Meter;
 import org.apache.kafka.common.utils.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
@@ -40,10 +48,16 @@ import org.apache.kafka.common.utils.Time;
  * prevents starvation or deadlock when a thread asks for a large chunk of memory and needs to block until multiple
  * buffers are deallocated.
  * </ol>
+ * The free list is managed through the protected {@link #pollFree(int)}, {@link #pushFree(ByteBuffer, int)},
+ * {@link #evictFree()} and {@link #freeListMemory()} methods so that subclasses such as {@link SlabBufferPool} can
+ * pool more than one buffer size. These methods are always called with the pool lock held.
  */
 public class BufferPool {
 
     static final String WAIT_TIME_SENSOR_NAME = "bufferpool-wait-time";
+    static final String REJECTED_SENSOR_NAME = "bufferpool-rejected";
+
+    private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
 
     private final long totalMemory;
     private final int poolableSize;
@@ -54,9 +68,29 @@ public class BufferPool {
      * Total available memory is the sum of nonPooledAvailableMemory and the number of byte buffers in free * poolableSize.
      */
     private long nonPooledAvailableMemory;
+    /**
+     * 通过reserve 计入缓冲池、但不是缓冲池buffer的内存，及其中暂时超出总内存、需由归还的内存抵扣的部分
+     * The memory taken with {@link #reserve(int)} and not released yet, and the part of it that was not available when
+     * it was taken and is deducted from the memory returned to the pool before anyone else gets it.
+     */
+    private long reservedMemory;
+    private long overdraftMemory;
     private final Metrics metrics;
     private final Time time;
     private final Sensor waitTime;
+    private final Sensor rejected;
+    private final List<BufferBackpressureListener> backpressureListeners;
+    /**
+     * 非阻塞分配因内存不足被拒绝后为true，直到释放出至少一个poolableSize 的内存
+     */
+    private boolean exhausted;
+    /**
+     * 加锁时按顺序放入的通知，释放锁后再由一个线程依次通知listener
+     * The notifications for the backpressure listeners, queued in order while holding the lock and delivered after
+     * releasing it by one thread at a time, so that a listener never runs under the pool lock.
+     */
+    private final Queue<BackpressureNotification> backpressureNotifications = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean notifyingBackpressure = new AtomicBoolean(false);
 
     /**
      * Create a new buffer pool
@@ -84,6 +118,82 @@ public class BufferPool {
                 metricGrpName,
                 "The total time an appender waits for space allocation.");
         this.waitTime.add(new Meter(TimeUnit.NANOSECONDS, rateMetricName, totalMetricName));
+        this.rejected = this.metrics.sensor(REJECTED_SENSOR_NAME);
+        this.rejected.add(new Meter(metrics.metricName("bufferpool-rejected-rate", metricGrpName,
+                "The average per-second number of records not sent by trySend because the buffer memory was exhausted."),
+            metrics.metricName("bufferpool-rejected-total", metricGrpName,
+                "The total number of records not sent by trySend because the buffer memory was exhausted.")));
+        this.backpressureListeners = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Allocate a buffer of the given size if the memory is available right away. Unlike
+     * {@link #allocate(int, long)} this never waits, and it does not take memory ahead of the threads already waiting
+     * for it. A rejected allocation tells the backpressure listeners that the memory is exhausted, unless they have
+     * not been told it is available again since the last one.
+     *
+     * @param size The buffer size to allocate in bytes
+     * @return The buffer, or null if there is not enough memory available
+     * @throws IllegalArgumentException if size is larger than the total memory controlled by the pool
+     */
+    public ByteBuffer tryAllocate(int size) {
+        return tryAllocate(size, true);
+    }
+
+    /**
+     * Allocate a buffer of the given size if the memory is available right away, like {@link #tryAllocate(int)}.
+     *
+     * @param size            The buffer size to allocate in bytes
+     * @param reportExhausted Whether a rejected allocation is counted and tells the backpressure listeners, which is
+     *                        not the case for an allocation that is merely skipped when memory is short
+     * @return The buffer, or null if there is not enough memory available
+     */
+    ByteBuffer tryAllocate(int size, boolean reportExhausted) {
+        if (size > this.totalMemory)
+            throw new IllegalArgumentException("Attempt to allocate " + size
+                    + " bytes, but there is a hard limit of "
+                    + this.totalMemory
+                    + " on memory allocations.");
+
+        int capacity = allocationSize(size);
+        ByteBuffer buffer;
+        this.lock.lock();
+        try {
+            buffer = this.waiters.isEmpty() ? pollFree(capacity) : null;
+            if (buffer != null) {
+                buffer.limit(size);
+                return buffer;
+            }
+            if (!this.waiters.isEmpty() || this.nonPooledAvailableMemory + freeListMemory() < capacity) {
+                if (!reportExhausted)
+                    return null;
+                this.rejected.record();
+                if (!this.exhausted) {
+                    this.exhausted = true;
+                    long available = this.nonPooledAvailableMemory + freeListMemory();
+                    if (!this.backpressureListeners.isEmpty())
+                        this.backpressureNotifications.add(new BackpressureNotification(true, available));
+                }
+                return null;
+            }
+            freeUp(capacity);
+            this.nonPooledAvailableMemory -= capacity;
+        } finally {
+            lock.unlock();
+            notifyBackpressureListeners();
+        }
+
+        buffer = safeAllocateByteBuffer(capacity);
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Register a listener to be told when {@link #tryAllocate(int)} runs out of memory and when memory is available
+     * again
+     */
+    public void addBackpressureListener(BufferBackpressureListener listener) {
+        this.backpressureListeners.add(listener);
     }
 
     /**
@@ -104,21 +214,26 @@ public class BufferPool {
                     + this.totalMemory
                     + " on memory allocations.");
 
+        // the pool may hand out a larger buffer than requested, e.g. rounded up to a size class
+        int capacity = allocationSize(size);
         ByteBuffer buffer = null;
         this.lock.lock();
         try {
             // check if we have a free buffer of the right size pooled
-            if (size == poolableSize && !this.free.isEmpty())
-                return this.free.pollFirst();
+            buffer = pollFree(capacity);
+            if (buffer != null) {
+                buffer.limit(size);
+                return buffer;
+            }
 
             // now check if the request is immediately satisfiable with the
             // memory on hand or if we need to block
-            int freeListSize = freeSize() * this.poolableSize;
-            if (this.nonPooledAvailableMemory + freeListSize >= size) {
+            long freeListSize = freeListMemory();
+            if (this.nonPooledAvailableMemory + freeListSize >= capacity) {
                 // we have enough unallocated or pooled memory to immediately
                 // satisfy the request, but need to allocate the buffer
-                freeUp(size);
-                this.nonPooledAvailableMemory -= size;
+                freeUp(capacity);
+                this.nonPooledAvailableMemory -= capacity;
             } else {
                 // we are out of memory and will have to block
                 int accumulated = 0;
@@ -128,7 +243,7 @@ public class BufferPool {
                     this.waiters.addLast(moreMemory);
                     // loop over and over until we have a buffer or have reserved
                     // enough memory to allocate one
-                    while (accumulated < size) {
+                    while (accumulated < capacity) {
                         long startWaitNs = time.nanoseconds();
                         long timeNs;
                         boolean waitingTimeElapsed;
@@ -148,15 +263,14 @@ public class BufferPool {
 
                         // check if we can satisfy this request from the free list,
                         // otherwise allocate memory
-                        if (accumulated == 0 && size == this.poolableSize && !this.free.isEmpty()) {
+                        if (accumulated == 0 && (buffer = pollFree(capacity)) != null) {
                             // just grab a buffer from the free list
-                            buffer = this.free.pollFirst();
-                            accumulated = size;
+                            accumulated = capacity;
                         } else {
                             // we'll need to allocate memory, but we may only get
                             // part of what we need on this iteration
-                            freeUp(size - accumulated);
-                            int got = (int) Math.min(size - accumulated, this.nonPooledAvailableMemory);
+                            freeUp(capacity - accumulated);
+                            int got = (int) Math.min(capacity - accumulated, this.nonPooledAvailableMemory);
                             this.nonPooledAvailableMemory -= got;
                             accumulated += got;
                         }
@@ -173,18 +287,21 @@ public class BufferPool {
             // signal any additional waiters if there is more memory left
             // over for them
             try {
-                if (!(this.nonPooledAvailableMemory == 0 && this.free.isEmpty()) && !this.waiters.isEmpty())
+                if (!(this.nonPooledAvailableMemory == 0 && freeListMemory() == 0) && !this.waiters.isEmpty())
                     this.waiters.peekFirst().signal();
+                else if (this.exhausted && this.waiters.isEmpty())
+                    maybeNotifyAvailable();
             } finally {
                 // Another finally... otherwise find bugs complains
                 lock.unlock();
+                notifyBackpressureListeners();
             }
         }
 
         if (buffer == null)
-            return safeAllocateByteBuffer(size);
-        else
-            return buffer;
+            buffer = safeAllocateByteBuffer(capacity);
+        buffer.limit(size);
+        return buffer;
     }
 
     /**
@@ -221,8 +338,58 @@ public class BufferPool {
      * buffers (if needed)
      */
     private void freeUp(int size) {
-        while (!this.free.isEmpty() && this.nonPooledAvailableMemory < size)
-            this.nonPooledAvailableMemory += this.free.pollLast().capacity();
+        while (this.nonPooledAvailableMemory < size) {
+            ByteBuffer evicted = evictFree();
+            if (evicted == null)
+                break;
+            this.nonPooledAvailableMemory += evicted.capacity();
+        }
+    }
+
+    /**
+     * The capacity of the buffer handed out for a request of the given size. The returned buffer's limit is still set
+     * to the requested size.
+     */
+    protected int allocationSize(int size) {
+        return size;
+    }
+
+    /**
+     * Take a pooled buffer of exactly the given capacity from the free list, or return null if there is none.
+     */
+    protected ByteBuffer pollFree(int capacity) {
+        if (capacity == this.poolableSize)
+            return this.free.pollFirst();
+        return null;
+    }
+
+    /**
+     * Add a returned buffer to the free list.
+     *
+     * @return false if the buffer is not poolable and its memory should be released instead
+     */
+    protected boolean pushFree(ByteBuffer buffer, int size) {
+        if (size == this.poolableSize && size == buffer.capacity()) {
+            buffer.clear();
+            this.free.add(buffer);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove a buffer from the free list so that its memory can be used for another allocation, or return null if the
+     * free list is empty.
+     */
+    protected ByteBuffer evictFree() {
+        return this.free.pollLast();
+    }
+
+    /**
+     * The total capacity of the buffers in the free list
+     */
+    protected long freeListMemory() {
+        return freeSize() * (long) this.poolableSize;
     }
 
     /**
@@ -236,17 +403,17 @@ public class BufferPool {
     public void deallocate(ByteBuffer buffer, int size) {
         lock.lock();
         try {
-            if (size == this.poolableSize && size == buffer.capacity()) {
-                buffer.clear();
-                this.free.add(buffer);
-            } else {
+            if (!pushFree(buffer, size))
                 this.nonPooledAvailableMemory += size;
-            }
+            settleOverdraft();
             Condition moreMem = this.waiters.peekFirst();
             if (moreMem != null)
                 moreMem.signal();
+            else if (this.exhausted)
+                maybeNotifyAvailable();
         } finally {
             lock.unlock();
+            notifyBackpressureListeners();
         }
     }
 
@@ -254,13 +421,132 @@ public class BufferPool {
         deallocate(buffer, buffer.capacity());
     }
 
+    /**
+     * Count memory that is retained outside the pool's buffers, e.g. by the objects kept for each record or by a batch
+     * allocated on the heap, against the pool's total without waiting for it. The part of it that is not available
+     * right now is deducted from the memory returned to the pool before any allocation gets it, so that allocations
+     * block until the total memory in use is back within the limit.
+     *
+     * @param size The memory to count in bytes
+     */
+    public void reserve(int size) {
+        lock.lock();
+        try {
+            freeUp(size);
+            long taken = Math.min(size, this.nonPooledAvailableMemory);
+            this.nonPooledAvailableMemory -= taken;
+            this.overdraftMemory += size - taken;
+            this.reservedMemory += size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return memory counted with {@link #reserve(int)} to the pool
+     *
+     * @param size The memory to return in bytes
+     */
+    public void release(int size) {
+        lock.lock();
+        try {
+            this.reservedMemory -= size;
+            this.nonPooledAvailableMemory += size;
+            settleOverdraft();
+            Condition moreMem = this.waiters.peekFirst();
+            if (moreMem != null)
+                moreMem.signal();
+            else if (this.exhausted)
+                maybeNotifyAvailable();
+        } finally {
+            lock.unlock();
+            notifyBackpressureListeners();
+        }
+    }
+
+    /**
+     * Deduct the memory that was reserved beyond the total from the memory just returned. Called with the lock held.
+     */
+    private void settleOverdraft() {
+        if (this.overdraftMemory == 0)
+            return;
+        freeUp((int) Math.min(this.overdraftMemory, Integer.MAX_VALUE));
+        long settled = Math.min(this.overdraftMemory, this.nonPooledAvailableMemory);
+        this.nonPooledAvailableMemory -= settled;
+        this.overdraftMemory -= settled;
+    }
+
+    /**
+     * The memory counted with {@link #reserve(int)} that has not been released
+     */
+    public long reservedMemory() {
+        lock.lock();
+        try {
+            return this.reservedMemory;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The memory in use beyond the total, which is deducted from the memory returned to the pool
+     */
+    public long overdraftMemory() {
+        lock.lock();
+        try {
+            return this.overdraftMemory;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue a notification that memory is available once there is room for a batch again. Called with the lock held
+     * and no thread waiting for memory; the listeners are told by {@link #notifyBackpressureListeners()}.
+     */
+    private void maybeNotifyAvailable() {
+        long available = this.nonPooledAvailableMemory + freeListMemory();
+        if (available < this.poolableSize)
+            return;
+        this.exhausted = false;
+        if (!this.backpressureListeners.isEmpty())
+            this.backpressureNotifications.add(new BackpressureNotification(false, available));
+    }
+
+    /**
+     * Deliver the queued notifications to the backpressure listeners. Called after releasing the lock; if another
+     * thread is already delivering, it also delivers the notifications queued by this one, so they arrive in order.
+     * A listener that throws is logged and does not stop the others.
+     */
+    private void notifyBackpressureListeners() {
+        while (!this.backpressureNotifications.isEmpty() && this.notifyingBackpressure.compareAndSet(false, true)) {
+            try {
+                BackpressureNotification notification;
+                while ((notification = this.backpressureNotifications.poll()) != null) {
+                    for (BufferBackpressureListener listener : this.backpressureListeners) {
+                        try {
+                            if (notification.exhausted)
+                                listener.onBufferExhausted(notification.availableBytes);
+                            else
+                                listener.onBufferAvailable(notification.availableBytes);
+                        } catch (Exception e) {
+                            log.error("Error executing buffer backpressure listener {}", listener, e);
+                        }
+                    }
+                }
+            } finally {
+                this.notifyingBackpressure.set(false);
+            }
+        }
+    }
+
     /**
      * the total free memory both unallocated and in the free list
      */
     public long availableMemory() {
         lock.lock();
         try {
-            return this.nonPooledAvailableMemory + freeSize() * (long) this.poolableSize;
+            return this.nonPooledAvailableMemory + freeListMemory();
         } finally {
             lock.unlock();
         }
@@ -313,4 +599,14 @@ public class BufferPool {
     Deque<Condition> waiters() {
         return this.waiters;
     }
+
+    private static final class BackpressureNotification {
+        final boolean exhausted;
+        final long availableBytes;
+
+        BackpressureNotification(boolean exhausted, long availableBytes) {
+            this.exhausted = exhausted;
+            this.availableBytes = availableBytes;
+        }
+    }
 }
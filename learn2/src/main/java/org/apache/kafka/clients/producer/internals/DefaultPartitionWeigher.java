@@ -0,0 +1,32 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import org.apache.kafka.clients.producer.PartitionWeigher;
+
+/**
+ * The default weighting of the load-aware partitioner: the weight is inversely proportional to the work already
+ * pending for the partition (queued batches plus requests in flight to its leader) and to the latency of its leader.
+ * A partition on a broker that is twice as slow, or has twice as much pending, receives half as many records.
+ */
+public class DefaultPartitionWeigher implements PartitionWeigher {
+
+    @Override
+    public double weight(int queuedBatches, int inFlightRequests, double latencyMs) {
+        return 1.0 / ((1 + queuedBatches + inFlightRequests) * Math.max(latencyMs, 1.0));
+    }
+}
@@ -16,6 +16,8 @@
  */
 package org.apache.kafka.clients.producer.internals;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -89,6 +91,57 @@ public final class FutureRecordMetadata implements Future<RecordMetadata> {
             nextRecordMetadata.chain(futureRecordMetadata);
     }
 
+    /**
+     * Chain this future to a new future for the same record at the given offset of the batch that queued batches are
+     * coalesced into. The new future takes the timestamp and sizes of the record from this one, since the new batch
+     * only copies the record when it is closed.
+     *
+     * @return The new future
+     */
+    FutureRecordMetadata chainTo(ProduceRequestResult result, long relativeOffset) {
+        FutureRecordMetadata future = new FutureRecordMetadata(result, relativeOffset, createTimestamp, checksum,
+            serializedKeySize, serializedValueSize);
+        chain(future);
+        return future;
+    }
+
+    /**
+     * A stage completed with the result of this send by the thread that completes its batch, without a callback or a
+     * thread waiting on this future. Like callbacks, dependent actions that are not async run on that thread, which is
+     * the producer's network thread unless callback threads are configured.
+     */
+    public CompletionStage<RecordMetadata> toCompletionStage() {
+        RecordMetadataStage stage = new RecordMetadataStage();
+        stage.run();
+        return stage;
+    }
+
+    /**
+     * The request result still to wait for before this send is done, or null if it is done. Batches that are split
+     * complete their request result only after chaining the futures of their records to the new batches, so once the
+     * last future of the chain has a completed result and no successor the send is done for good.
+     */
+    ProduceRequestResult incompleteResult() {
+        FutureRecordMetadata last = this;
+        while (true) {
+            while (last.nextRecordMetadata != null)
+                last = last.nextRecordMetadata;
+            if (!last.result.completed())
+                return last.result;
+            if (last.nextRecordMetadata == null)
+                return null;
+        }
+    }
+
+    /**
+     * The error the send failed with, or null if it succeeded. Only meaningful once the send is done.
+     */
+    RuntimeException error() {
+        if (nextRecordMetadata != null)
+            return nextRecordMetadata.error();
+        return this.result.error();
+    }
+
     RecordMetadata valueOrError() throws ExecutionException {
         if (this.result.error() != null)
             throw new ExecutionException(this.result.error());
@@ -118,4 +171,22 @@ public final class FutureRecordMetadata implements Future<RecordMetadata> {
         return this.result.completed();
     }
 
+    /**
+     * 直接由ProduceRequestResult 完成的CompletionStage
+     */
+    private final class RecordMetadataStage extends CompletableFuture<RecordMetadata> implements Runnable {
+        @Override
+        public void run() {
+            ProduceRequestResult incomplete = incompleteResult();
+            if (incomplete != null) {
+                incomplete.whenDone(this);
+                return;
+            }
+            RuntimeException error = error();
+            if (error != null)
+                completeExceptionally(error);
+            else
+                complete(value());
+        }
+    }
 }
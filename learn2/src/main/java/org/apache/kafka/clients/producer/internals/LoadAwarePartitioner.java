@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.kafka.clients.producer.PartitionWeigher;
+import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.Utils;
+
+/**
+ * 负载感知分区策略 The load-aware partitioning strategy:
+ * <ul>
+ * <li>If a partition is specified in the record, use it
+ * <li>If no partition is specified but a key is present choose a partition based on a hash of the key
+ * <li>If no partition or key is present choose an available partition at random, with a probability proportional to
+ * the weight given to it by the configured {@link PartitionWeigher}
+ * </ul>
+ * The weights are computed from the {@link ProducerLoadStats} the producer keeps for this partitioner: the batches
+ * queued for the partition, the requests in flight to its leader and the recent produce latency of its leader. A
+ * degraded broker therefore receives fewer keyless records instead of accumulating batches.
+ * <p>
+ * The weights of a topic are cached and only recomputed when its available partitions or the load statistics change,
+ * so choosing a partition does not allocate.
+ */
+public class LoadAwarePartitioner implements Partitioner {
+
+    private final ProducerLoadStats loadStats = new ProducerLoadStats();
+    private PartitionWeigher weigher = new DefaultPartitionWeigher();
+    private final ConcurrentMap<String, TopicWeights> topicWeights = new ConcurrentHashMap<>();
+
+    public void configure(Map<String, ?> configs) {
+        Object weigherClass = configs.get(ProducerConfig.PARTITIONER_WEIGHER_CLASS_CONFIG);
+        try {
+            if (weigherClass instanceof String)
+                this.weigher = Utils.newInstance((String) weigherClass, PartitionWeigher.class);
+            else if (weigherClass instanceof Class)
+                this.weigher = Utils.newInstance(((Class<?>) weigherClass).asSubclass(PartitionWeigher.class));
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new KafkaException("Could not instantiate " + ProducerConfig.PARTITIONER_WEIGHER_CLASS_CONFIG + " "
+                    + weigherClass, e);
+        }
+    }
+
+    /**
+     * The statistics the weights are computed from; the producer keeps them up to date
+     */
+    public ProducerLoadStats loadStats() {
+        return loadStats;
+    }
+
+    /**
+     * Compute the partition for the given record.
+     *
+     * @param topic The topic name
+     * @param key The key to partition on (or null if no key)
+     * @param keyBytes serialized key to partition on (or null if no key)
+     * @param value The value to partition on or null
+     * @param valueBytes serialized value to partition on or null
+     * @param cluster The current cluster metadata
+     */
+    public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster) {
+        List<PartitionInfo> partitions = cluster.partitionsForTopic(topic);
+        int numPartitions = partitions.size();
+        if (keyBytes != null) {
+            // hash the keyBytes to choose a partition
+            return Utils.toPositive(Utils.murmur2(keyBytes)) % numPartitions;
+        }
+
+        List<PartitionInfo> availablePartitions = cluster.availablePartitionsForTopic(topic);
+        if (availablePartitions.isEmpty()) {
+            // no partitions are available, give a non-available partition
+            return Utils.toPositive(ThreadLocalRandom.current().nextInt()) % numPartitions;
+        }
+
+        TopicWeights cached = topicWeights(topic, availablePartitions);
+        TopicPartition[] candidates = cached.candidates;
+        double[] weights = cached.weights;
+        double totalWeight = cached.totalWeight;
+
+        int chosen;
+        if (totalWeight <= 0) {
+            chosen = ThreadLocalRandom.current().nextInt(candidates.length);
+        } else {
+            double target = ThreadLocalRandom.current().nextDouble() * totalWeight;
+            chosen = candidates.length - 1;
+            for (int i = 0; i < candidates.length; i++) {
+                target -= weights[i];
+                if (target < 0) {
+                    chosen = i;
+                    break;
+                }
+            }
+        }
+        loadStats.recordSelection(candidates[chosen], weights[chosen]);
+        return candidates[chosen].partition();
+    }
+
+    /**
+     * The weights of the available partitions of the topic, recomputed if the partitions or the load have changed
+     * since they were cached
+     */
+    private TopicWeights topicWeights(String topic, List<PartitionInfo> availablePartitions) {
+        // read the version before the statistics, so that a change made while computing causes another refresh
+        long version = loadStats.version();
+        TopicWeights cached = topicWeights.get(topic);
+        if (cached != null && cached.partitions == availablePartitions && cached.version == version)
+            return cached;
+
+        TopicPartition[] candidates;
+        if (cached != null && cached.partitions == availablePartitions) {
+            candidates = cached.candidates;
+        } else {
+            candidates = new TopicPartition[availablePartitions.size()];
+            for (int i = 0; i < candidates.length; i++)
+                candidates[i] = new TopicPartition(topic, availablePartitions.get(i).partition());
+        }
+        double[] weights = new double[candidates.length];
+        double totalWeight = 0;
+        for (int i = 0; i < candidates.length; i++) {
+            String leader = availablePartitions.get(i).leader().idString();
+            double weight = weigher.weight(loadStats.queuedBatches(candidates[i]), loadStats.inFlightRequests(leader),
+                    loadStats.latencyMs(leader));
+            // ignore nonsensical weights rather than letting them skew every other partition
+            weights[i] = weight > 0 && !Double.isInfinite(weight) ? weight : 0;
+            totalWeight += weights[i];
+        }
+        TopicWeights refreshed = new TopicWeights(availablePartitions, version, candidates, weights, totalWeight);
+        topicWeights.put(topic, refreshed);
+        return refreshed;
+    }
+
+    public void close() {}
+
+    /*
+     * The weights of the available partitions of a topic, computed from the given partition list and version of the
+     * load statistics
+     */
+    private static final class TopicWeights {
+        final List<PartitionInfo> partitions;
+        final long version;
+        final TopicPartition[] candidates;
+        final double[] weights;
+        final double totalWeight;
+
+        TopicWeights(List<PartitionInfo> partitions, long version, TopicPartition[] candidates, double[] weights,
+                     double totalWeight) {
+            this.partitions = partitions;
+            this.version = version;
+            this.candidates = candidates;
+            this.weights = weights;
+            this.totalWeight = totalWeight;
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Meter;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.utils.KafkaThread;
+import org.apache.kafka.common.utils.Time;
+
+/**
+ * 在线程池中并行关闭（完成压缩）已drain 的batch
+ * <p>
+ * Closes drained batches on a fixed pool of compression threads instead of one after the other on the sender thread.
+ * Closing a compressed batch flushes and finishes the compression stream and computes the checksum over the result,
+ * which dominates the time the sender spends per batch for codecs such as gzip. Uncompressed batches are cheap to
+ * close and are still closed on the calling thread, as is one of the compressed batches so that the sender does not
+ * sit idle while it waits for the others.
+ * <p>
+ * Records the time batches wait for a compression thread and the CPU time spent closing them per codec. CPU time
+ * falls back to wall-clock time if the JVM does not support measuring thread CPU time.
+ */
+public class ParallelBatchCloser {
+
+    private final ExecutorService executor;
+    private final Time time;
+    private final ThreadMXBean threadMXBean;
+    private final boolean cpuTimeSupported;
+    private final Sensor queueTimeSensor;
+    private final Map<CompressionType, Sensor> cpuTimeSensors;
+
+    public ParallelBatchCloser(int numThreads, final String threadNamePrefix, SenderMetricsRegistry metrics, Time time) {
+        this.time = time;
+        this.threadMXBean = ManagementFactory.getThreadMXBean();
+        this.cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled();
+        this.executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private final AtomicInteger threadIndex = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new KafkaThread(threadNamePrefix + "-" + threadIndex.incrementAndGet(), runnable, true);
+            }
+        });
+
+        this.queueTimeSensor = metrics.sensor("compression-queue-time");
+        this.queueTimeSensor.add(metrics.compressionQueueTimeAvg, new Avg());
+        this.queueTimeSensor.add(metrics.compressionQueueTimeMax, new Max());
+        this.cpuTimeSensors = new EnumMap<>(CompressionType.class);
+        for (CompressionType type : CompressionType.values()) {
+            if (type == CompressionType.NONE)
+                continue;
+            Map<String, String> tags = Collections.singletonMap("compression-type", type.name);
+            Sensor sensor = metrics.sensor("compression-cpu-time." + type.name);
+            sensor.add(metrics.compressionCpuTimeAvg(tags), new Avg());
+            sensor.add(new Meter(metrics.compressionCpuTimeRate(tags), metrics.compressionCpuTimeTotal(tags)));
+            this.cpuTimeSensors.put(type, sensor);
+        }
+    }
+
+    /**
+     * Close all the given batches, returning once every one of them is closed.
+     */
+    public void closeAll(Map<Integer, List<ProducerBatch>> batches) {
+        List<ProducerBatch> compressed = new ArrayList<>();
+        for (List<ProducerBatch> nodeBatches : batches.values()) {
+            for (ProducerBatch batch : nodeBatches) {
+                if (batch.isCompressed())
+                    compressed.add(batch);
+                else
+                    batch.close();
+            }
+        }
+        if (compressed.isEmpty())
+            return;
+
+        List<Future<?>> futures = new ArrayList<>(compressed.size() - 1);
+        for (int i = 1; i < compressed.size(); i++) {
+            final ProducerBatch batch = compressed.get(i);
+            final long enqueuedNs = time.nanoseconds();
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    close(batch, enqueuedNs);
+                }
+            }));
+        }
+        close(compressed.get(0), time.nanoseconds());
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                throw new InterruptException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new KafkaException("Failed to close producer batch", cause);
+            }
+        }
+    }
+
+    private void close(ProducerBatch batch, long enqueuedNs) {
+        long startNs = time.nanoseconds();
+        queueTimeSensor.record((startNs - enqueuedNs) / 1e6);
+        long startCpuNs = cpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime() : startNs;
+        batch.close();
+        long endCpuNs = cpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime() : time.nanoseconds();
+        cpuTimeSensors.get(batch.compressionType()).record((endCpuNs - startCpuNs) / 1e6);
+    }
+
+    /**
+     * Stop the compression threads, waiting up to the given time for batches being closed.
+     */
+    public void shutdown(long timeoutMs) {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
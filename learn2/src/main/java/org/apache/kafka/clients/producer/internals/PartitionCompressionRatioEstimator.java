@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.record.CompressionRatioEstimator;
+import org.apache.kafka.common.record.CompressionType;
+
+/**
+ * 按分区及消息大小估算压缩率
+ * <p>
+ * Estimates the compression ratio of new batches per partition and record size, instead of the single ratio per topic
+ * kept by {@link CompressionRatioEstimator}. A topic that mixes compressible and incompressible payloads gets either
+ * tiny batches or oversized ones that are split after <code>MESSAGE_TOO_LARGE</code> when all of its batches share one
+ * estimate; the payloads usually differ by partition (key) or by record size, so each partition keeps one estimate per
+ * power of two of the size of the first record of a batch.
+ * <p>
+ * Every closed batch updates an exponentially weighted mean and variance of the observed ratio. The estimate is the
+ * mean plus two standard deviations, so it stays tight for stable payloads and backs off for erratic ones. Until a
+ * partition and size have been observed the per-topic estimate is used. A split resets the estimate to the ratio of the
+ * batch that was too large, like the per-topic estimator does.
+ * <p>
+ * Batches are closed on the sender or compression threads; estimates are read by the threads appending records.
+ */
+public final class PartitionCompressionRatioEstimator {
+
+    // weight of the most recent batch in the moving averages
+    private static final double ALPHA = 0.1;
+    // standard deviations of margin added to the mean ratio
+    private static final double DEVIATIONS = 2.0;
+    // records of up to 64 bytes share the first bucket, larger ones get a bucket per power of two
+    private static final int MIN_BUCKET_SHIFT = 6;
+    private static final int NUM_BUCKETS = 10;
+    private static final double MIN_RATIO = 0.01;
+
+    private final CompressionType compressionType;
+    private final ConcurrentMap<TopicPartition, PartitionStats> partitions = new ConcurrentHashMap<>();
+
+    public PartitionCompressionRatioEstimator(CompressionType compressionType) {
+        this.compressionType = compressionType;
+    }
+
+    /**
+     * The compression ratio to assume for a new batch of the given partition
+     *
+     * @param recordSize The size of the first record of the batch
+     */
+    public float estimate(TopicPartition tp, int recordSize) {
+        PartitionStats stats = partitions.get(tp);
+        RatioStats ratio = stats == null ? null : stats.buckets.get(bucket(recordSize));
+        if (ratio == null)
+            return CompressionRatioEstimator.estimation(tp.topic(), compressionType);
+        return ratio.estimate;
+    }
+
+    /**
+     * The total number of batches of the partition that were split because they were too large
+     */
+    public long splits(TopicPartition tp) {
+        PartitionStats stats = partitions.get(tp);
+        return stats == null ? 0 : stats.splits.get();
+    }
+
+    /**
+     * The moving average of the absolute difference between the estimated and observed compression ratios of the
+     * batches of the partition
+     */
+    public double estimationError(TopicPartition tp) {
+        PartitionStats stats = partitions.get(tp);
+        return stats == null ? 0 : stats.estimationError;
+    }
+
+    /**
+     * Update the estimate with a closed batch.
+     *
+     * @param recordSize     The size of the first record of the batch
+     * @param estimatedRatio The compression ratio the batch was filled with
+     * @param observedRatio  The actual compression ratio of the batch
+     */
+    void record(TopicPartition tp, int recordSize, float estimatedRatio, float observedRatio) {
+        PartitionStats stats = partitionStats(tp);
+        int bucket = bucket(recordSize);
+        RatioStats ratio = stats.buckets.get(bucket);
+        if (ratio == null && !stats.buckets.compareAndSet(bucket, null, new RatioStats(observedRatio)))
+            ratio = stats.buckets.get(bucket);
+        if (ratio != null) {
+            synchronized (ratio) {
+                double diff = observedRatio - ratio.mean;
+                ratio.mean += ALPHA * diff;
+                ratio.variance = (1 - ALPHA) * (ratio.variance + ALPHA * diff * diff);
+                ratio.estimate = (float) Math.max(MIN_RATIO, ratio.mean + DEVIATIONS * Math.sqrt(ratio.variance));
+            }
+        }
+        synchronized (stats) {
+            stats.estimationError += ALPHA * (Math.abs(observedRatio - estimatedRatio) - stats.estimationError);
+        }
+    }
+
+    /**
+     * Reset the estimate after a batch of the partition had to be split.
+     *
+     * @param recordSize    The size of the first record of the batch
+     * @param observedRatio The compression ratio of the batch that was too large
+     */
+    void recordSplit(TopicPartition tp, int recordSize, float observedRatio) {
+        PartitionStats stats = partitionStats(tp);
+        stats.splits.incrementAndGet();
+        stats.buckets.set(bucket(recordSize), new RatioStats(Math.max(1.0f, observedRatio)));
+    }
+
+    private static int bucket(int recordSize) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(recordSize - 1, 0));
+        return Math.min(Math.max(bits - MIN_BUCKET_SHIFT, 0), NUM_BUCKETS - 1);
+    }
+
+    private PartitionStats partitionStats(TopicPartition tp) {
+        PartitionStats stats = partitions.get(tp);
+        if (stats == null) {
+            stats = new PartitionStats();
+            PartitionStats previous = partitions.putIfAbsent(tp, stats);
+            if (previous != null)
+                stats = previous;
+        }
+        return stats;
+    }
+
+    private static final class PartitionStats {
+        final AtomicReferenceArray<RatioStats> buckets = new AtomicReferenceArray<>(NUM_BUCKETS);
+        final AtomicLong splits = new AtomicLong();
+        volatile double estimationError = 0;
+    }
+
+    private static final class RatioStats {
+        double mean;
+        double variance = 0;
+        volatile float estimate;
+
+        RatioStats(float ratio) {
+            this.mean = ratio;
+            this.estimate = ratio;
+        }
+    }
+}
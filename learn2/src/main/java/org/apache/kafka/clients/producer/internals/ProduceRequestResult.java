@@ -16,6 +16,8 @@ import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.record.RecordBatch;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -37,6 +39,8 @@ public final class ProduceRequestResult {
     private volatile Long baseOffset = null;
     private volatile long logAppendTime = RecordBatch.NO_TIMESTAMP;
     private volatile RuntimeException error;
+    /* run once the request is done, guarded by this; null once they have been run */
+    private List<Runnable> listeners = new ArrayList<>(1);
 
     /**
      * Create an instance of this class.
@@ -64,9 +68,45 @@ public final class ProduceRequestResult {
      * Mark this request as complete and unblock any threads waiting on its completion.
      */
     public void done() {
+        runListeners(doneWithoutListeners());
+    }
+
+    /**
+     * Mark this request as complete like {@link #done()}, but leave running the listeners registered so far to the
+     * caller, see {@link #runListeners(List)}
+     *
+     * @return The listeners that still have to be run
+     */
+    List<Runnable> doneWithoutListeners() {
         if (baseOffset == null)
             throw new IllegalStateException("The method `set` must be invoked before this method.");
         this.latch.countDown();
+        List<Runnable> toRun;
+        synchronized (this) {
+            toRun = listeners;
+            listeners = null;
+        }
+        return toRun;
+    }
+
+    static void runListeners(List<Runnable> toRun) {
+        if (toRun != null) {
+            for (Runnable listener : toRun)
+                listener.run();
+        }
+    }
+
+    /**
+     * Run the given listener once this request is done, on the thread completing it, or right away if it already is
+     */
+    void whenDone(Runnable listener) {
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
     }
 
     /**
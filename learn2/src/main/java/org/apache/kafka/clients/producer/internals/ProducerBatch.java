@@ -28,12 +28,15 @@ import org.apache.kafka.common.record.Record;
 import org.apache.kafka.common.record.RecordBatch;
 import org.apache.kafka.common.record.TimestampType;
 import org.apache.kafka.common.requests.ProduceResponse;
+import org.apache.kafka.common.serialization.SerializedValue;
+import org.apache.kafka.common.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
@@ -52,6 +55,20 @@ public final class ProducerBatch {
 
     private static final Logger log = LoggerFactory.getLogger(ProducerBatch.class);
 
+    /**
+     * An estimate of the heap kept for each record until its batch completes: its FutureRecordMetadata, its slots in
+     * the future and callback lists and the callback wrapping the user's
+     */
+    static final int RECORD_OVERHEAD_BYTES = 96;
+    /**
+     * 压缩流的头尾等固定开销的上限
+     */
+    private static final int MAX_COMPRESSION_FRAMING_BYTES = 64;
+    /**
+     * 消息的offset 增量(varint)和timestamp 增量(varlong)及长度前缀在合并后最多增加的字节数
+     */
+    private static final int MAX_RECORD_DELTA_GROWTH_BYTES = 16;
+
     private enum FinalState {
         ABORTED, FAILED, SUCCEEDED
     }
@@ -66,11 +83,12 @@ public final class ProducerBatch {
     final ProduceRequestResult produceFuture;
 
     /**
-     * thunks字段可以理解为消息的回调对象队列，
-     * Thunk中持有 callback字段指向对应消息的Callback对象，
-     * 和FutureRecordMetadata
+     * futures字段为每条消息返回给用户的FutureRecordMetadata，
+     * callbacks字段与之一一对应，保存消息的Callback对象；
+     * 批次中出现第一个非空回调前callbacks为null，没有回调的消息不额外分配对象
      */
-    private final List<Thunk> thunks = new ArrayList<>();
+    private final List<FutureRecordMetadata> futures = new ArrayList<>();
+    private List<Callback> callbacks = null;
     private final MemoryRecordsBuilder recordsBuilder;
     /**
      * 尝试次数
@@ -78,6 +96,10 @@ public final class ProducerBatch {
     private final AtomicInteger attempts = new AtomicInteger(0);
     private final boolean isSplitBatch;
     private final AtomicReference<FinalState> finalState = new AtomicReference<>(null);
+    /**
+     * 统一内存计量模式下从缓冲池额外扣除的内存，batch释放时归还
+     */
+    private int accountedBytes;
     /**
      * record计数器，记录RecordBatch中的record个数
      */
@@ -101,12 +123,41 @@ public final class ProducerBatch {
      */
     private boolean retry;
     private boolean reopened = false;
+    /**
+     * 按分区估算压缩率，为null 时使用按topic 的估算
+     */
+    private final PartitionCompressionRatioEstimator compressionRatioEstimator;
+    private float estimatedCompressionRatio;
+    private int firstRecordSize = -1;
+    /**
+     * 执行回调的线程池，为null 时在完成batch 的线程(sender线程)上执行
+     */
+    private final ProducerCallbackExecutor callbackExecutor;
+    /**
+     * 合并进此batch 的batch，在此batch 完成时一起完成；coalescedRecordsPending 表示其消息尚未复制进来
+     */
+    private List<ProducerBatch> coalescedBatches = null;
+    private boolean coalescedRecordsPending = false;
+    /**
+     * 已合并进其他batch，随那个batch 完成
+     */
+    private boolean coalesced = false;
 
     public ProducerBatch(TopicPartition tp, MemoryRecordsBuilder recordsBuilder, long now) {
         this(tp, recordsBuilder, now, false);
     }
 
     public ProducerBatch(TopicPartition tp, MemoryRecordsBuilder recordsBuilder, long now, boolean isSplitBatch) {
+        this(tp, recordsBuilder, now, isSplitBatch, null);
+    }
+
+    public ProducerBatch(TopicPartition tp, MemoryRecordsBuilder recordsBuilder, long now, boolean isSplitBatch,
+        PartitionCompressionRatioEstimator compressionRatioEstimator) {
+        this(tp, recordsBuilder, now, isSplitBatch, compressionRatioEstimator, null);
+    }
+
+    public ProducerBatch(TopicPartition tp, MemoryRecordsBuilder recordsBuilder, long now, boolean isSplitBatch,
+        PartitionCompressionRatioEstimator compressionRatioEstimator, ProducerCallbackExecutor callbackExecutor) {
         this.createdMs = now;
         this.lastAttemptMs = now;
         this.recordsBuilder = recordsBuilder;
@@ -115,9 +166,11 @@ public final class ProducerBatch {
         this.produceFuture = new ProduceRequestResult(topicPartition);
         this.retry = false;
         this.isSplitBatch = isSplitBatch;
-        float compressionRatioEstimation =
+        this.compressionRatioEstimator = compressionRatioEstimator;
+        this.callbackExecutor = callbackExecutor;
+        this.estimatedCompressionRatio =
             CompressionRatioEstimator.estimation(topicPartition.topic(), recordsBuilder.compressionType());
-        recordsBuilder.setEstimatedCompressionRatio(compressionRatioEstimation);
+        recordsBuilder.setEstimatedCompressionRatio(estimatedCompressionRatio);
     }
 
     /**
@@ -138,8 +191,10 @@ public final class ProducerBatch {
              */
             Long checksum = this.recordsBuilder.append(timestamp, key, value, headers);
 
-            this.maxRecordSize = Math.max(this.maxRecordSize, AbstractRecords.estimateSizeInBytesUpperBound(magic(),
-                recordsBuilder.compressionType(), key, value, headers));
+            int recordSize = AbstractRecords.estimateSizeInBytesUpperBound(magic(), recordsBuilder.compressionType(),
+                key, value, headers);
+            this.maxRecordSize = Math.max(this.maxRecordSize, recordSize);
+            maybeEstimateCompressionRatio(recordSize);
            //记录追加时间
             this.lastAppendTime = now;
             //封装FutureRecordMetadata
@@ -147,7 +202,38 @@ public final class ProducerBatch {
                 checksum, key == null ? -1 : key.length, value == null ? -1 : value.length);
             // we have to keep every future returned to the users in case the batch needs to be
             // split to several new batches and resent.
-            thunks.add(new Thunk(callback, future));
+            addThunk(future, callback);
+            this.recordCount++;
+            return future;
+        }
+    }
+
+    /**
+     * Append the record to the current record set, letting the serialized value write itself into the batch, and
+     * return the relative offset within that record set
+     *
+     * @return The RecordSend corresponding to this record or null if there isn't sufficient room.
+     */
+    public FutureRecordMetadata tryAppend(long timestamp, byte[] key, SerializedValue value, Header[] headers,
+        Callback callback, long now) {
+        ByteBuffer keyBuffer = Utils.wrapNullable(key);
+        int valueSize = value.sizeInBytes();
+        if (!recordsBuilder.hasRoomFor(timestamp, keyBuffer, valueSize, headers)) {
+            return null;
+        } else {
+            Long checksum = this.recordsBuilder.append(timestamp, keyBuffer, value, headers);
+
+            int keySize = key == null ? -1 : key.length;
+            int recordSize = AbstractRecords.estimateSizeInBytesUpperBound(magic(), recordsBuilder.compressionType(),
+                keySize, valueSize, headers);
+            this.maxRecordSize = Math.max(this.maxRecordSize, recordSize);
+            maybeEstimateCompressionRatio(recordSize);
+            this.lastAppendTime = now;
+            FutureRecordMetadata future = new FutureRecordMetadata(this.produceFuture, this.recordCount, timestamp,
+                checksum, keySize, valueSize);
+            // we have to keep every future returned to the users in case the batch needs to be
+            // split to several new batches and resent.
+            addThunk(future, callback);
             this.recordCount++;
             return future;
         }
@@ -158,25 +244,43 @@ public final class ProducerBatch {
      *
      * @return true if the record has been successfully appended, false otherwise.
      */
-    private boolean tryAppendForSplit(long timestamp, ByteBuffer key, ByteBuffer value, Header[] headers, Thunk thunk) {
+    private boolean tryAppendForSplit(long timestamp, ByteBuffer key, ByteBuffer value, Header[] headers,
+        FutureRecordMetadata thunkFuture, Callback callback) {
         if (!recordsBuilder.hasRoomFor(timestamp, key, value, headers)) {
             return false;
         } else {
             // No need to get the CRC.
             this.recordsBuilder.append(timestamp, key, value, headers);
-            this.maxRecordSize = Math.max(this.maxRecordSize, AbstractRecords.estimateSizeInBytesUpperBound(magic(),
-                recordsBuilder.compressionType(), key, value, headers));
+            int recordSize = AbstractRecords.estimateSizeInBytesUpperBound(magic(), recordsBuilder.compressionType(),
+                key, value, headers);
+            this.maxRecordSize = Math.max(this.maxRecordSize, recordSize);
+            maybeEstimateCompressionRatio(recordSize);
             FutureRecordMetadata future =
-                new FutureRecordMetadata(this.produceFuture, this.recordCount, timestamp, thunk.future.checksumOrNull(),
+                new FutureRecordMetadata(this.produceFuture, this.recordCount, timestamp, thunkFuture.checksumOrNull(),
                     key == null ? -1 : key.remaining(), value == null ? -1 : value.remaining());
             // Chain the future to the original thunk.
-            thunk.future.chain(future);
-            this.thunks.add(thunk);
+            thunkFuture.chain(future);
+            addThunk(thunkFuture, callback);
             this.recordCount++;
             return true;
         }
     }
 
+    /**
+     * Once the first record is appended, replace the per-topic compression ratio estimate with the one for the
+     * partition and the size of that record. The first record always fits, so the estimate is in place before it is
+     * used to decide whether the batch is full.
+     */
+    private void maybeEstimateCompressionRatio(int recordSize) {
+        if (firstRecordSize >= 0)
+            return;
+        firstRecordSize = recordSize;
+        if (compressionRatioEstimator != null && isCompressed()) {
+            estimatedCompressionRatio = compressionRatioEstimator.estimate(topicPartition, recordSize);
+            recordsBuilder.setEstimatedCompressionRatio(estimatedCompressionRatio);
+        }
+    }
+
     /**
      * Abort the batch and complete the future and callbacks.
      *
@@ -222,28 +326,72 @@ public final class ProducerBatch {
         return true;
     }
 
-    private void completeFutureAndFireCallbacks(long baseOffset, long logAppendTime, RuntimeException exception) {
+    private void completeFutureAndFireCallbacks(final long baseOffset, final long logAppendTime,
+                                                final RuntimeException exception) {
         // Set the future before invoking the callbacks as we rely on its state for the `onCompletion` call
         produceFuture.set(baseOffset, logAppendTime, exception);
+        if (callbackExecutor == null) {
+            fireCallbacks(exception);
+            produceFuture.done();
+            ProduceRequestResult.runListeners(completeCoalescedBatches(baseOffset, logAppendTime, exception));
+            return;
+        }
+        // future 在当前(sender)线程完成，flush() 返回时所有已发送记录的future 都已done；
+        // 只有用户回调、拦截器和 sendAsync 的监听器交给回调线程
+        final List<Runnable> listeners = produceFuture.doneWithoutListeners();
+        final List<Runnable> coalescedListeners = completeCoalescedBatches(baseOffset, logAppendTime, exception);
+        callbackExecutor.execute(topicPartition, new Runnable() {
+            @Override
+            public void run() {
+                fireCallbacks(exception);
+                ProduceRequestResult.runListeners(listeners);
+                ProduceRequestResult.runListeners(coalescedListeners);
+            }
+        });
+    }
 
+    /**
+     * Complete the futures of the batches coalesced into this one, after its own future. Their records have moved to
+     * this batch, so this only lets a flush waiting for them return; their callbacks are fired by this batch.
+     *
+     * @return The listeners of their futures that still have to be run, or null if there are none
+     */
+    private List<Runnable> completeCoalescedBatches(long baseOffset, long logAppendTime, RuntimeException exception) {
+        if (coalescedBatches == null)
+            return null;
+        List<Runnable> listeners = null;
+        for (ProducerBatch batch : coalescedBatches) {
+            batch.produceFuture.set(baseOffset, logAppendTime, exception);
+            List<Runnable> toRun = batch.produceFuture.doneWithoutListeners();
+            if (toRun != null && !toRun.isEmpty()) {
+                if (listeners == null)
+                    listeners = new ArrayList<>();
+                listeners.addAll(toRun);
+            }
+        }
+        return listeners;
+    }
+
+    private void fireCallbacks(RuntimeException exception) {
         // execute callbacks
-        for (Thunk thunk : thunks) {
-            try {
-                if (exception == null) {
-                    RecordMetadata metadata = thunk.future.value();
-                    if (thunk.callback != null)
-                        thunk.callback.onCompletion(metadata, null);
-                } else {
-                    if (thunk.callback != null)
-                        thunk.callback.onCompletion(null, exception);
+        if (callbacks != null) {
+            for (int i = 0; i < callbacks.size(); i++) {
+                Callback callback = callbacks.get(i);
+                if (callback == null)
+                    continue;
+                try {
+                    if (exception == null) {
+                        RecordMetadata metadata = futures.get(i).value();
+                        callback.onCompletion(metadata, null);
+                    } else {
+                        callback.onCompletion(null, exception);
+                    }
+                } catch (Exception e) {
+                    log.error("Error executing user-provided callback on message for topic-partition '{}'",
+                        topicPartition, e);
                 }
-            } catch (Exception e) {
-                log.error("Error executing user-provided callback on message for topic-partition '{}'", topicPartition,
-                    e);
             }
         }
-
-        produceFuture.done();
     }
 
     public Deque<ProducerBatch> split(int splitBatchSize) {
@@ -262,22 +410,24 @@ public final class ProducerBatch {
         if (recordBatchIter.hasNext())
             throw new IllegalArgumentException("A producer batch should only have one record batch.");
 
-        Iterator<Thunk> thunkIter = thunks.iterator();
+        int thunkIndex = 0;
         // We always allocate batch size because we are already splitting a big batch.
         // And we also Retain the create time of the original batch.
         ProducerBatch batch = null;
 
         for (Record record : recordBatch) {
-            assert thunkIter.hasNext();
-            Thunk thunk = thunkIter.next();
+            assert thunkIndex < futures.size();
+            FutureRecordMetadata thunkFuture = futures.get(thunkIndex);
+            Callback callback = callbacks == null ? null : callbacks.get(thunkIndex);
+            thunkIndex++;
             if (batch == null)
                 batch = createBatchOffAccumulatorForRecord(record, splitBatchSize);
 
             // A newly created batch can always host the first message.
-            if (!batch.tryAppendForSplit(record.timestamp(), record.key(), record.value(), record.headers(), thunk)) {
+            if (!batch.tryAppendForSplit(record.timestamp(), record.key(), record.value(), record.headers(), thunkFuture, callback)) {
                 batches.add(batch);
                 batch = createBatchOffAccumulatorForRecord(record, splitBatchSize);
-                batch.tryAppendForSplit(record.timestamp(), record.key(), record.value(), record.headers(), thunk);
+                batch.tryAppendForSplit(record.timestamp(), record.key(), record.value(), record.headers(), thunkFuture, callback);
             }
         }
 
@@ -285,8 +435,11 @@ public final class ProducerBatch {
         if (batch != null)
             batches.add(batch);
 
-        produceFuture.set(ProduceResponse.INVALID_OFFSET, NO_TIMESTAMP, new RecordBatchTooLargeException());
+        RecordBatchTooLargeException exception = new RecordBatchTooLargeException();
+        produceFuture.set(ProduceResponse.INVALID_OFFSET, NO_TIMESTAMP, exception);
         produceFuture.done();
+        ProduceRequestResult.runListeners(completeCoalescedBatches(ProduceResponse.INVALID_OFFSET, NO_TIMESTAMP,
+            exception));
 
         if (hasSequence()) {
             int sequence = baseSequence();
@@ -299,6 +452,77 @@ public final class ProducerBatch {
         return batches;
     }
 
+    /**
+     * Start a batch that holds the records of this batch and of the given batches queued behind it, none of which has
+     * been sent, in a buffer from the accumulator's buffer pool. The futures already returned to the users are chained
+     * to the new batch and their callbacks move to it right away, so it can be sent, failed or aborted like any other
+     * batch; the records themselves are only copied and compressed again when the new batch is closed, which the
+     * compression threads do if there are any. The merged batches stay incomplete until the new batch is complete and
+     * are deallocated with it.
+     *
+     * @param following The batches of the same partition to append after this one, in order
+     * @param buffer    The buffer of the new batch, which grows if the records do not fit
+     * @return The new batch holding the records of all the batches
+     */
+    ProducerBatch coalesce(List<ProducerBatch> following, ByteBuffer buffer) {
+        MemoryRecordsBuilder builder = new MemoryRecordsBuilder(buffer, magic(), recordsBuilder.compressionType(),
+            TimestampType.CREATE_TIME, 0L, NO_TIMESTAMP, RecordBatch.NO_PRODUCER_ID, RecordBatch.NO_PRODUCER_EPOCH,
+            RecordBatch.NO_SEQUENCE, false, false, RecordBatch.NO_PARTITION_LEADER_EPOCH, Integer.MAX_VALUE);
+        ProducerBatch batch = new ProducerBatch(topicPartition, builder, this.createdMs, false,
+            compressionRatioEstimator, callbackExecutor);
+        batch.coalescedBatches = new ArrayList<>(following.size() + 1);
+        batch.coalescedRecordsPending = true;
+        moveThunksTo(batch);
+        for (ProducerBatch next : following)
+            next.moveThunksTo(batch);
+        return batch;
+    }
+
+    private void moveThunksTo(ProducerBatch batch) {
+        for (int i = 0; i < futures.size(); i++) {
+            FutureRecordMetadata thunkFuture = futures.get(i);
+            thunkFuture.chainTo(batch.produceFuture, batch.recordCount);
+            batch.addThunk(thunkFuture, callbacks == null ? null : callbacks.get(i));
+            batch.recordCount++;
+        }
+        batch.maxRecordSize = Math.max(batch.maxRecordSize, maxRecordSize);
+        batch.lastAppendTime = Math.max(batch.lastAppendTime, lastAppendTime);
+        batch.coalescedBatches.add(this);
+        coalesced = true;
+    }
+
+    /**
+     * Copy the records of the coalesced batches into this batch, in the order their futures were moved to it
+     */
+    private void appendCoalescedRecords() {
+        if (!coalescedRecordsPending)
+            return;
+        coalescedRecordsPending = false;
+        for (ProducerBatch batch : coalescedBatches) {
+            for (MutableRecordBatch recordBatch : batch.recordsBuilder.build().batches()) {
+                for (Record record : recordBatch) {
+                    recordsBuilder.append(record.timestamp(), record.key(), record.value(), record.headers());
+                    maybeEstimateCompressionRatio(AbstractRecords.estimateSizeInBytesUpperBound(magic(),
+                        recordsBuilder.compressionType(), record.key(), record.value(), record.headers()));
+                }
+            }
+        }
+    }
+
+    /**
+     * The batches coalesced into this one, which are deallocated with it
+     */
+    List<ProducerBatch> coalescedBatches() {
+        return coalescedBatches == null ? Collections.<ProducerBatch>emptyList() : coalescedBatches;
+    }
+
+    /**
+     * Whether this batch was coalesced into another one, which completes it
+     */
+    boolean isCoalesced() {
+        return coalesced;
+    }
+
     private ProducerBatch createBatchOffAccumulatorForRecord(Record record, int batchSize) {
         int initialSize = Math.max(AbstractRecords.estimateSizeInBytesUpperBound(magic(),
             recordsBuilder.compressionType(), record.key(), record.value(), record.headers()), batchSize);
@@ -309,24 +533,31 @@ public final class ProducerBatch {
         // with how normal batches are handled).
         MemoryRecordsBuilder builder =
             MemoryRecords.builder(buffer, magic(), recordsBuilder.compressionType(), TimestampType.CREATE_TIME, 0L);
-        return new ProducerBatch(topicPartition, builder, this.createdMs, true);
+        return new ProducerBatch(topicPartition, builder, this.createdMs, true, compressionRatioEstimator,
+            callbackExecutor);
     }
 
     public boolean isCompressed() {
         return recordsBuilder.compressionType() != CompressionType.NONE;
     }
 
+    CompressionType compressionType() {
+        return recordsBuilder.compressionType();
+    }
+
     /**
-     * A callback and the associated FutureRecordMetadata argument to pass to it.
+     * Keep the future returned to the user together with the callback to pass it to. The callback list is only
+     * allocated once a record of this batch has a callback.
      */
-    final private static class Thunk {
-        final Callback callback;
-        final FutureRecordMetadata future;
-
-        Thunk(Callback callback, FutureRecordMetadata future) {
-            this.callback = callback;
-            this.future = future;
+    private void addThunk(FutureRecordMetadata future, Callback callback) {
+        if (callback != null && callbacks == null) {
+            callbacks = new ArrayList<>(Math.max(futures.size() + 1, 10));
+            for (int i = 0; i < futures.size(); i++)
+                callbacks.add(null);
         }
+        futures.add(future);
+        if (callbacks != null)
+            callbacks.add(callback);
     }
 
     @Override
@@ -410,17 +641,68 @@ public final class ProducerBatch {
     }
 
     public MemoryRecords records() {
+        appendCoalescedRecords();
         return recordsBuilder.build();
     }
 
     public int estimatedSizeInBytes() {
+        if (coalescedRecordsPending) {
+            int size = 0;
+            for (ProducerBatch batch : coalescedBatches)
+                size += batch.estimatedSizeInBytes();
+            return size;
+        }
         return recordsBuilder.estimatedSizeInBytes();
     }
 
+    /**
+     * An upper bound of the size of the batch once it is closed. The size of an open compressed batch is only known
+     * once the compression stream is finished, so it is bounded by the worst-case expansion of its codec instead.
+     */
+    int maxSizeInBytes() {
+        int uncompressed;
+        if (coalescedRecordsPending) {
+            // 合并后offset、timestamp 增量变大，每条消息的varint 最多多占MAX_RECORD_DELTA_GROWTH_BYTES
+            uncompressed = recordCount * MAX_RECORD_DELTA_GROWTH_BYTES;
+            for (ProducerBatch batch : coalescedBatches)
+                uncompressed += batch.recordsBuilder.uncompressedBytesWritten();
+            if (!isCompressed())
+                return uncompressed;
+        } else if (isClosed() || !isCompressed()) {
+            return estimatedSizeInBytes();
+        } else {
+            uncompressed = recordsBuilder.uncompressedBytesWritten();
+        }
+        switch (compressionType()) {
+            case SNAPPY:
+                // snappy 不可压缩数据的最大膨胀为n/6 + 32，另加每个块的长度前缀和流头
+                return uncompressed + uncompressed / 5 + MAX_COMPRESSION_FRAMING_BYTES;
+            case ZSTD:
+                return uncompressed + uncompressed / 128 + MAX_COMPRESSION_FRAMING_BYTES;
+            default:
+                // gzip 和lz4 对不可压缩的块直接存储，只有块头和流头尾的开销
+                return uncompressed + uncompressed / 1024 + MAX_COMPRESSION_FRAMING_BYTES;
+        }
+    }
+
     public double compressionRatio() {
         return recordsBuilder.compressionRatio();
     }
 
+    /**
+     * The compression ratio assumed while filling the batch
+     */
+    float estimatedCompressionRatio() {
+        return estimatedCompressionRatio;
+    }
+
+    /**
+     * The estimated size of the first record appended to the batch, or -1 if it is empty
+     */
+    int firstRecordSize() {
+        return firstRecordSize;
+    }
+
     public boolean isFull() {
         return recordsBuilder.isFull();
     }
@@ -445,10 +727,15 @@ public final class ProducerBatch {
     }
 
     public void close() {
+        appendCoalescedRecords();
         recordsBuilder.close();
         if (!recordsBuilder.isControlBatch()) {
             CompressionRatioEstimator.updateEstimation(topicPartition.topic(), recordsBuilder.compressionType(),
                 (float)recordsBuilder.compressionRatio());
+            // a reopened batch was already accounted for when it was first closed
+            if (compressionRatioEstimator != null && isCompressed() && !reopened && firstRecordSize >= 0)
+                compressionRatioEstimator.record(topicPartition, firstRecordSize, estimatedCompressionRatio,
+                    (float) recordsBuilder.compressionRatio());
         }
         reopened = false;
     }
@@ -475,6 +762,23 @@ public final class ProducerBatch {
         return recordsBuilder.initialCapacity();
     }
 
+    /**
+     * The memory this batch retains beyond the buffer it got from the buffer pool: the future and callback kept for
+     * each record, the growth of its buffer and, for a batch allocated outside the pool, the whole buffer.
+     */
+    int retainedBytesOutsidePool() {
+        int bufferBytes = recordsBuilder.buffer().capacity() - (isSplitBatch ? 0 : initialCapacity());
+        return recordCount * RECORD_OVERHEAD_BYTES + Math.max(0, bufferBytes);
+    }
+
+    int accountedBytes() {
+        return accountedBytes;
+    }
+
+    void accountedBytes(int accountedBytes) {
+        this.accountedBytes = accountedBytes;
+    }
+
     public boolean isWritable() {
         return !recordsBuilder.isClosed();
     }
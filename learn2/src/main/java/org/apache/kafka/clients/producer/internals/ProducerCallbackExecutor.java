@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.utils.KafkaThread;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.common.utils.Utils;
+
+/**
+ * 在回调线程中执行batch 的用户回调，future 仍由sender 线程完成
+ * <p>
+ * Runs the callbacks of finished batches, including the interceptors' <code>onAcknowledgement</code>, on a fixed
+ * set of callback threads instead of the sender thread, so that slow callbacks do not hold up network I/O. The
+ * futures themselves are completed by the sender thread before the batch is released, so that a flush never
+ * returns while a sent record is still pending. Each partition is always handled by the same single-threaded worker, so the
+ * callbacks of a partition still run one at a time in the order its batches complete.
+ */
+public class ProducerCallbackExecutor {
+
+    private final List<Thread> threads;
+    private final List<ThreadPoolExecutor> workers;
+    private final Time time;
+    private final Sensor callbackTimeSensor;
+
+    public ProducerCallbackExecutor(int numThreads, String threadNamePrefix, SenderMetricsRegistry metrics, Time time) {
+        this.time = time;
+        this.threads = new ArrayList<>(numThreads);
+        this.workers = new ArrayList<>(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            final String threadName = threadNamePrefix + "-" + (i + 1);
+            this.workers.add(new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new KafkaThread(threadName, runnable, true);
+                        synchronized (threads) {
+                            threads.add(thread);
+                        }
+                        return thread;
+                    }
+                }));
+        }
+
+        this.callbackTimeSensor = metrics.sensor("callback-time");
+        this.callbackTimeSensor.add(metrics.callbackTimeAvg, new Avg());
+        this.callbackTimeSensor.add(metrics.callbackTimeMax, new Max());
+        metrics.addMetric(metrics.callbackQueueDepth, new Measurable() {
+            public double measure(MetricConfig config, long now) {
+                return queueDepth();
+            }
+        });
+    }
+
+    /**
+     * Run the completion of a batch of the given partition after the completions queued before it for the partition
+     */
+    void execute(TopicPartition tp, final Runnable completion) {
+        ThreadPoolExecutor worker = workers.get(Utils.toPositive(tp.hashCode()) % workers.size());
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                long startNs = time.nanoseconds();
+                completion.run();
+                callbackTimeSensor.record((time.nanoseconds() - startNs) / 1e6);
+            }
+        };
+        try {
+            worker.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the producer is closing, batches aborted by a sender thread that is still stopping complete in place
+            task.run();
+        }
+    }
+
+    /**
+     * The number of batch completions waiting for a callback thread
+     */
+    int queueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor worker : workers)
+            depth += worker.getQueue().size();
+        return depth;
+    }
+
+    /**
+     * Whether the given thread is one of the callback threads
+     */
+    public boolean isCallbackThread(Thread thread) {
+        synchronized (threads) {
+            return threads.contains(thread);
+        }
+    }
+
+    /**
+     * Stop the callback threads once the completions already queued have run, waiting for them up to the given time
+     */
+    public void shutdown(long timeoutMs) {
+        for (ThreadPoolExecutor worker : workers)
+            worker.shutdown();
+        long deadlineMs = time.milliseconds() + timeoutMs;
+        try {
+            for (ThreadPoolExecutor worker : workers)
+                worker.awaitTermination(Math.max(0, deadlineMs - time.milliseconds()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -117,6 +117,13 @@ public class ProducerInterceptors<K, V> implements Closeable {
         }
     }
 
+    /**
+     * 是否没有配置任何拦截器
+     */
+    public boolean isEmpty() {
+        return interceptors.isEmpty();
+    }
+
     /**
      * Closes every interceptor in a container.
      */
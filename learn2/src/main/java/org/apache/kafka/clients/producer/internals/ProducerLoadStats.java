@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * 生产者负载统计，供负载感知分区器使用
+ * <p>
+ * The load observed by the producer for each node and partition. The sender thread records the number of requests in
+ * flight to each node, the age of the oldest produce request still in flight, the latency of each completed produce
+ * request and the number of batches queued for each partition in the accumulator. The partitioner reads these values
+ * and records which partitions it chose. Every change that affects a weight increments {@link #version()}, so the
+ * partitioner only recomputes its weights when the load has changed.
+ */
+public final class ProducerLoadStats {
+
+    // weight of the most recent request in the latency moving average
+    private static final double ALPHA = 0.2;
+
+    private final ConcurrentMap<String, NodeStats> nodes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<TopicPartition, PartitionStats> partitions = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+
+    void recordLatency(String node, long latencyMs) {
+        NodeStats stats = nodeStats(node);
+        if (stats.latencyMs < 0)
+            stats.latencyMs = latencyMs;
+        else
+            stats.latencyMs += ALPHA * (latencyMs - stats.latencyMs);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Record how long the oldest produce request in flight to the node has been waiting, or 0 if there is none. A
+     * broker that stops responding completes no request, so its moving average would otherwise never go up.
+     */
+    void recordInFlightAge(String node, long ageMs) {
+        NodeStats stats = nodeStats(node);
+        double before = latencyMs(stats);
+        stats.inFlightAgeMs = ageMs;
+        if (latencyMs(stats) != before)
+            version.incrementAndGet();
+    }
+
+    void recordInFlightRequests(String node, int inFlightRequests) {
+        NodeStats stats = nodeStats(node);
+        if (stats.inFlightRequests != inFlightRequests) {
+            stats.inFlightRequests = inFlightRequests;
+            version.incrementAndGet();
+        }
+    }
+
+    void recordQueuedBatches(TopicPartition tp, int queuedBatches) {
+        PartitionStats stats = partitionStats(tp);
+        if (stats.queuedBatches != queuedBatches) {
+            stats.queuedBatches = queuedBatches;
+            version.incrementAndGet();
+        }
+    }
+
+    void recordSelection(TopicPartition tp, double weight) {
+        PartitionStats stats = partitionStats(tp);
+        stats.selections.incrementAndGet();
+        stats.weight = weight;
+    }
+
+    /**
+     * Incremented whenever a value the weights are computed from changes
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * The moving average of the produce request latency of the node, or the age of its oldest produce request in
+     * flight if that is longer, or 0 if no request has been sent yet
+     */
+    public double latencyMs(String node) {
+        NodeStats stats = nodes.get(node);
+        return stats == null ? 0 : latencyMs(stats);
+    }
+
+    private static double latencyMs(NodeStats stats) {
+        return Math.max(stats.latencyMs < 0 ? 0 : stats.latencyMs, stats.inFlightAgeMs);
+    }
+
+    public int inFlightRequests(String node) {
+        NodeStats stats = nodes.get(node);
+        return stats == null ? 0 : stats.inFlightRequests;
+    }
+
+    public int queuedBatches(TopicPartition tp) {
+        PartitionStats stats = partitions.get(tp);
+        return stats == null ? 0 : stats.queuedBatches;
+    }
+
+    /**
+     * The number of keyless records the partitioner has sent to the partition
+     */
+    public long selections(TopicPartition tp) {
+        PartitionStats stats = partitions.get(tp);
+        return stats == null ? 0 : stats.selections.get();
+    }
+
+    /**
+     * The weight the partition had when it was last chosen
+     */
+    public double weight(TopicPartition tp) {
+        PartitionStats stats = partitions.get(tp);
+        return stats == null ? 0 : stats.weight;
+    }
+
+    private NodeStats nodeStats(String node) {
+        NodeStats stats = nodes.get(node);
+        if (stats == null) {
+            stats = new NodeStats();
+            NodeStats previous = nodes.putIfAbsent(node, stats);
+            if (previous != null)
+                stats = previous;
+        }
+        return stats;
+    }
+
+    private PartitionStats partitionStats(TopicPartition tp) {
+        PartitionStats stats = partitions.get(tp);
+        if (stats == null) {
+            stats = new PartitionStats();
+            PartitionStats previous = partitions.putIfAbsent(tp, stats);
+            if (previous != null)
+                stats = previous;
+        }
+        return stats;
+    }
+
+    private static final class NodeStats {
+        volatile double latencyMs = -1;
+        volatile long inFlightAgeMs;
+        volatile int inFlightRequests;
+    }
+
+    private static final class PartitionStats {
+        final AtomicLong selections = new AtomicLong();
+        volatile int queuedBatches;
+        volatile double weight;
+    }
+}
@@ -30,6 +30,8 @@ import org.apache.kafka.common.metrics.Measurable;
 import org.apache.kafka.common.metrics.MetricConfig;
 import org.apache.kafka.common.metrics.Metrics;
 import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Max;
 import org.apache.kafka.common.metrics.stats.Meter;
 import org.apache.kafka.common.record.AbstractRecords;
 import org.apache.kafka.common.record.CompressionRatioEstimator;
@@ -39,6 +41,7 @@ import org.apache.kafka.common.record.RecordBatch;
 import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.record.MemoryRecordsBuilder;
 import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.SerializedValue;
 import org.apache.kafka.common.utils.CopyOnWriteMap;
 import org.apache.kafka.common.utils.LogContext;
 import org.apache.kafka.common.utils.Time;
@@ -56,8 +59,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * 消息缓存队列
@@ -70,6 +77,14 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public final class RecordAccumulator {
 
+    static final String APPEND_CONTENTION_SENSOR_NAME = "append-contention";
+    static final String APPEND_COMBINED_SENSOR_NAME = "append-combined";
+    static final String BATCHES_PER_PARTITION_SENSOR_NAME = "batches-per-partition";
+    /**
+     * 抢到combiner 的线程每次最多替其他线程追加的记录数，避免一个线程一直替别人追加
+     */
+    static final int MAX_COMBINED_APPENDS = 64;
+
     private final Logger log;
     /**
      * 关闭的标志
@@ -96,6 +111,12 @@ public final class RecordAccumulator {
      * 延时发送毫秒数-->linger.ms
      */
     private final long lingerMs;
+    private final AdaptiveLinger adaptiveLinger;
+    private final PartitionCompressionRatioEstimator compressionRatioEstimator;
+    /**
+     * 执行回调的线程池，为null 时回调在sender线程上执行
+     */
+    private final ProducerCallbackExecutor callbackExecutor;
     /**
      * 重试重试间隔时间-->  retry.backoff.ms
      */
@@ -117,13 +138,29 @@ public final class RecordAccumulator {
      * 未发送完成的ProducerBatch集合
      */
     private final IncompleteBatches incomplete;
-    // The following variables are only accessed by the sender thread, so we don't need to protect them.
+    /**
+     * 合并追加模式下每个分区的待追加队列，为null表示使用加锁追加模式
+     * The per-partition combiners used when appends are combined, or null if every caller appends under the lock
+     */
+    private final ConcurrentMap<TopicPartition, AppendCombiner> combiners;
+    private final Sensor appendContentionSensor;
+    private final Sensor appendCombinedSensor;
+    /**
+     * drain时合并同一分区排队batch的次数统计，为null表示不合并
+     * Records how many queued batches of a partition are sent as one, or null if batches are not coalesced
+     */
+    private final Sensor batchesPerPartitionSensor;
+    /**
+     * 是否将消息对象开销、buffer扩容及池外分配的batch也计入buffer.memory
+     */
+    private final boolean accountAllMemory;
+    // The following variables are accessed by every sender thread; each node is only drained by one of them.
     private final Map<TopicPartition, Long> muted;
     /**
-     * 索引
+     * 每个节点的索引
      * 记录上次发送停止时的位置.
      */
-    private int drainIndex;
+    private final ConcurrentMap<Integer, Integer> drainIndexes;
     
     private final TransactionManager transactionManager;
 
@@ -132,11 +169,15 @@ public final class RecordAccumulator {
      *
      * @param logContext         The log context used for logging
      * @param batchSize          The size to use when allocating {@link MemoryRecords} instances
-     * @param totalSize          The maximum memory the record accumulator can use.
+     * @param bufferPool         The pool of buffers, bounded by the maximum memory the record accumulator can use
      * @param compression        The compression codec for the records
      * @param lingerMs           An artificial delay time to add before declaring a records instance that isn't full ready for
      *                           sending. This allows time for more records to arrive. Setting a non-zero lingerMs will trade off some
      *                           latency for potentially better throughput due to more batching (and hence fewer, larger requests).
+     * @param adaptiveLinger     If not null, computes the linger time of each partition from its recent traffic, bounded
+     *                           by lingerMs, instead of using lingerMs for every partition
+     * @param compressionRatioEstimator If not null, estimates the compression ratio of new batches per partition and
+     *                           record size instead of per topic
      * @param retryBackoffMs     An artificial delay time to retry the produce request upon receiving an error. This avoids
      *                           exhausting all retries in a short period of time.
      * @param metrics            The metrics
@@ -144,35 +185,73 @@ public final class RecordAccumulator {
      * @param apiVersions        Request API versions for current connected brokers
      * @param transactionManager The shared transaction state object which tracks producer IDs, epochs, and sequence
      *                           numbers per partition.
+     * @param combineAppends     If true, concurrent appends to the same partition are queued and applied by whichever
+     *                           thread claims the partition, instead of each thread taking the deque lock in turn
+     * @param coalesceBatches    If true, the batches queued behind the first batch of a partition that have not been
+     *                           sent yet are merged with it when it is drained, within the size of the request
+     * @param accountAllMemory   If true, the memory batches retain beyond the buffer they got from the pool, including
+     *                           the objects kept per record and batches allocated outside the pool, is counted against
+     *                           the pool as well
+     * @param callbackExecutor   If not null, completes batches and runs their callbacks instead of the thread that
+     *                           completes them
      */
     public RecordAccumulator(LogContext logContext,
                              int batchSize,
-                             long totalSize,
+                             BufferPool bufferPool,
                              CompressionType compression,
                              long lingerMs,
+                             AdaptiveLinger adaptiveLinger,
+                             PartitionCompressionRatioEstimator compressionRatioEstimator,
                              long retryBackoffMs,
                              Metrics metrics,
                              Time time,
                              ApiVersions apiVersions,
-                             TransactionManager transactionManager) {
+                             TransactionManager transactionManager,
+                             boolean combineAppends,
+                             boolean coalesceBatches,
+                             boolean accountAllMemory,
+                             ProducerCallbackExecutor callbackExecutor) {
         this.log = logContext.logger(RecordAccumulator.class);
-        this.drainIndex = 0;
+        this.drainIndexes = new ConcurrentHashMap<>();
         this.closed = false;
         this.flushesInProgress = new AtomicInteger(0);
         this.appendsInProgress = new AtomicInteger(0);
         this.batchSize = batchSize;
         this.compression = compression;
         this.lingerMs = lingerMs;
+        this.adaptiveLinger = adaptiveLinger;
+        this.compressionRatioEstimator = compressionRatioEstimator;
+        this.callbackExecutor = callbackExecutor;
         this.retryBackoffMs = retryBackoffMs;
         this.batches = new CopyOnWriteMap<>();
         String metricGrpName = "producer-metrics";
-        this.free = new BufferPool(totalSize, batchSize, metrics, time, metricGrpName);
+        this.free = bufferPool;
         this.incomplete = new IncompleteBatches();
-        this.muted = new HashMap<>();
+        this.combiners = combineAppends ? new CopyOnWriteMap<TopicPartition, AppendCombiner>() : null;
+        this.accountAllMemory = accountAllMemory;
+        this.muted = new ConcurrentHashMap<>();
         this.time = time;
         this.apiVersions = apiVersions;
         this.transactionManager = transactionManager;
         registerMetrics(metrics, metricGrpName);
+
+        this.appendContentionSensor = metrics.sensor(APPEND_CONTENTION_SENSOR_NAME);
+        this.appendContentionSensor.add(new Meter(
+            metrics.metricName("append-contention-rate", metricGrpName, "The average per-second number of record appends that found another thread appending to the same partition"),
+            metrics.metricName("append-contention-total", metricGrpName, "The total number of record appends that found another thread appending to the same partition")));
+        this.appendCombinedSensor = metrics.sensor(APPEND_COMBINED_SENSOR_NAME);
+        this.appendCombinedSensor.add(new Meter(
+            metrics.metricName("append-combined-rate", metricGrpName, "The average per-second number of record appends performed by another thread on behalf of the sending thread"),
+            metrics.metricName("append-combined-total", metricGrpName, "The total number of record appends performed by another thread on behalf of the sending thread")));
+        if (coalesceBatches) {
+            this.batchesPerPartitionSensor = metrics.sensor(BATCHES_PER_PARTITION_SENSOR_NAME);
+            this.batchesPerPartitionSensor.add(metrics.metricName("batches-per-partition-avg", metricGrpName,
+                "The average number of queued batches of a partition sent as one batch per partition per-request."), new Avg());
+            this.batchesPerPartitionSensor.add(metrics.metricName("batches-per-partition-max", metricGrpName,
+                "The max number of queued batches of a partition sent as one batch per partition per-request."), new Max());
+        } else {
+            this.batchesPerPartitionSensor = null;
+        }
     }
 
     private void registerMetrics(Metrics metrics, String metricGrpName) {
@@ -200,6 +279,32 @@ public final class RecordAccumulator {
         };
         metrics.addMetric(metricName, availableBytes);
 
+        metricName = metrics.metricName("appending-threads", metricGrpName, "The number of user threads currently appending records to the accumulator");
+        Measurable appendingThreads = new Measurable() {
+            public double measure(MetricConfig config, long now) {
+                return appendsInProgress.get();
+            }
+        };
+        metrics.addMetric(metricName, appendingThreads);
+
+        if (accountAllMemory) {
+            metricName = metrics.metricName("buffer-reserved-bytes", metricGrpName, "The amount of buffer memory taken by the objects kept for the records and by the batches allocated outside of the pool of buffers.");
+            Measurable reservedBytes = new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return free.reservedMemory();
+                }
+            };
+            metrics.addMetric(metricName, reservedBytes);
+
+            metricName = metrics.metricName("buffer-overdraft-bytes", metricGrpName, "The amount of memory in use beyond the total buffer memory, which is taken back before any new batch is allocated.");
+            Measurable overdraftBytes = new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return free.overdraftMemory();
+                }
+            };
+            metrics.addMetric(metricName, overdraftBytes);
+        }
+
         Sensor bufferExhaustedRecordSensor = metrics.sensor("buffer-exhausted-records");
         MetricName rateMetricName = metrics.metricName("buffer-exhausted-rate", metricGrpName, "The average per-second number of record sends that are dropped due to buffer exhaustion");
         MetricName totalMetricName = metrics.metricName("buffer-exhausted-total", metricGrpName, "The total number of record sends that are dropped due to buffer exhaustion");
@@ -219,9 +324,64 @@ public final class RecordAccumulator {
      * @param headers        the Headers for the record
      * @param callback       The user-supplied callback to execute when the request is complete
      * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available
+     * @param abortOnNewBatch A boolean that indicates returning before a new batch is created and
+     *                        running the partitioner's onNewBatch method before trying to append again
      */
     public RecordAppendResult append(TopicPartition tp, long timestamp, byte[] key, byte[] value, Header[] headers,
-        Callback callback, long maxTimeToBlock) throws InterruptedException {
+        Callback callback, long maxTimeToBlock, boolean abortOnNewBatch) throws InterruptedException {
+        return append(tp, timestamp, key, value, null, headers, callback, maxTimeToBlock, true, abortOnNewBatch);
+    }
+
+    /**
+     * Add a record whose value is written directly into the batch by a
+     * {@link org.apache.kafka.common.serialization.StreamingSerializer}, return the append result
+     *
+     * @param tp             The topic/partition to which this record is being sent
+     * @param timestamp      The timestamp of the record
+     * @param key            The key for the record
+     * @param value          The serialized value for the record
+     * @param headers        the Headers for the record
+     * @param callback       The user-supplied callback to execute when the request is complete
+     * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available
+     * @param abortOnNewBatch A boolean that indicates returning before a new batch is created and
+     *                        running the partitioner's onNewBatch method before trying to append again
+     */
+    public RecordAppendResult append(TopicPartition tp, long timestamp, byte[] key, SerializedValue value,
+        Header[] headers, Callback callback, long maxTimeToBlock, boolean abortOnNewBatch) throws InterruptedException {
+        return append(tp, timestamp, key, null, value, headers, callback, maxTimeToBlock, true, abortOnNewBatch);
+    }
+
+    /**
+     * Add a record to the accumulator like {@link #append(TopicPartition, long, byte[], byte[], Header[], Callback,
+     * long, boolean)}, but without waiting for buffer memory: if the record needs a new batch and the buffer pool does
+     * not have the memory for it right away, the record is not added.
+     * 非阻塞追加，缓冲池内存不足时直接返回null
+     *
+     * @return the append result, or null if the buffer memory is exhausted
+     */
+    public RecordAppendResult offer(TopicPartition tp, long timestamp, byte[] key, byte[] value, Header[] headers,
+        Callback callback, boolean abortOnNewBatch) throws InterruptedException {
+        return append(tp, timestamp, key, value, null, headers, callback, 0L, false, abortOnNewBatch);
+    }
+
+    /**
+     * Add a record whose value is written directly into the batch without waiting for buffer memory, see
+     * {@link #offer(TopicPartition, long, byte[], byte[], Header[], Callback, boolean)}
+     *
+     * @return the append result, or null if the buffer memory is exhausted
+     */
+    public RecordAppendResult offer(TopicPartition tp, long timestamp, byte[] key, SerializedValue value,
+        Header[] headers, Callback callback, boolean abortOnNewBatch) throws InterruptedException {
+        return append(tp, timestamp, key, null, value, headers, callback, 0L, false, abortOnNewBatch);
+    }
+
+    /**
+     * Exactly one of {@code value} and {@code serializedValue} is used: the latter when it is not null. Without
+     * {@code block} null is returned instead of waiting for the memory of a new batch.
+     */
+    private RecordAppendResult append(TopicPartition tp, long timestamp, byte[] key, byte[] value,
+        SerializedValue serializedValue, Header[] headers, Callback callback, long maxTimeToBlock, boolean block,
+        boolean abortOnNewBatch) throws InterruptedException {
         // We keep track of the number of appending thread to make sure we do not miss batches in
         // abortIncompleteBatches().
         // 线程数计数器
@@ -235,36 +395,56 @@ public final class RecordAccumulator {
              * 1 获取该消息发往的分区 对应的队列 如果不存咋 就新建一个
              */
             Deque<ProducerBatch> dq = getOrCreateDeque(tp);
-            synchronized (dq) {
-                if (closed)
-                    throw new KafkaException("Producer closed while send in progress");
-                /**
-                 * 2 尝试加入队列中
-                 */
-                RecordAppendResult appendResult = tryAppend(timestamp, key, value, headers, callback, dq);
+            if (combiners != null) {
+                RecordAppendResult appendResult = combinedAppend(getOrCreateCombiner(tp), dq, timestamp, key, value,
+                    serializedValue, headers, callback);
                 if (appendResult != null)
+                    return appendResult;
+            } else {
+                synchronized (dq) {
+                    if (closed)
+                        throw new KafkaException("Producer closed while send in progress");
                     /**
-                     * 加入成功
+                     * 2 尝试加入队列中
                      */
-                    return appendResult;
+                    RecordAppendResult appendResult = tryAppend(timestamp, key, value, serializedValue, headers, callback, dq);
+                    if (appendResult != null)
+                        /**
+                         * 加入成功
+                         */
+                        return appendResult;
+                }
             }
 
             // we don't have an in-progress record batch try to allocate a new batch
+            if (abortOnNewBatch) {
+                // Return a result that will cause another call to append.
+                return new RecordAppendResult(null, false, false, true);
+            }
+
             byte maxUsableMagic = apiVersions.maxUsableProduceMagic();
-            int size = Math.max(this.batchSize,
-                AbstractRecords.estimateSizeInBytesUpperBound(maxUsableMagic, compression, key, value, headers));
+            int size = Math.max(this.batchSize, serializedValue != null
+                ? AbstractRecords.estimateSizeInBytesUpperBound(maxUsableMagic, compression, key == null ? -1 : key.length,
+                    serializedValue.sizeInBytes(), headers)
+                : AbstractRecords.estimateSizeInBytesUpperBound(maxUsableMagic, compression, key, value, headers));
             log.trace("Allocating a new {} byte message buffer for topic {} partition {}", size, tp.topic(),
                 tp.partition());
             /**
              * 3 按照 batch.size或者消息的最大size 加入失败，新开辟一个buffer
              */
-            buffer = free.allocate(size, maxTimeToBlock);
+            if (block) {
+                buffer = free.allocate(size, maxTimeToBlock);
+            } else {
+                buffer = free.tryAllocate(size);
+                if (buffer == null)
+                    return null;
+            }
             synchronized (dq) {
                 // Need to check if producer is closed again after grabbing the dequeue lock.
                 if (closed)
                     throw new KafkaException("Producer closed while send in progress");
 
-                RecordAppendResult appendResult = tryAppend(timestamp, key, value, headers, callback, dq);
+                RecordAppendResult appendResult = tryAppend(timestamp, key, value, serializedValue, headers, callback, dq);
                 if (appendResult != null) {
                     // Somebody else found us a batch, return the one we waited for! Hopefully this doesn't happen
                     // often...
@@ -273,9 +453,10 @@ public final class RecordAccumulator {
 
                 MemoryRecordsBuilder recordsBuilder = recordsBuilder(buffer, maxUsableMagic);
                 // 新建一个ProducerBatch
-                ProducerBatch batch = new ProducerBatch(tp, recordsBuilder, time.milliseconds());
+                ProducerBatch batch = new ProducerBatch(tp, recordsBuilder, time.milliseconds(), false,
+                    compressionRatioEstimator, callbackExecutor);
                 FutureRecordMetadata future =
-                    Utils.notNull(batch.tryAppend(timestamp, key, value, headers, callback, time.milliseconds()));
+                    Utils.notNull(tryAppend(batch, timestamp, key, value, serializedValue, headers, callback));
                 // 将消息batch加入到队列尾部
                 dq.addLast(batch);
                 // 将消息放到IncompleteBatches Set集合中
@@ -293,6 +474,163 @@ public final class RecordAccumulator {
         }
     }
 
+    /**
+     * Add several records of the same partition to the accumulator, appending as many of them as fit in the last batch
+     * and in each new batch while holding the deque lock once, instead of once per record. Memory for new batches is
+     * allocated outside the lock, as for single records. The records are appended in order, even if other threads
+     * append to the partition concurrently, but records of other threads may end up between them.
+     *
+     * @param tp             The topic/partition to which the records are being sent
+     * @param timestamps     The timestamps of the records
+     * @param keys           The keys of the records
+     * @param values         The values of the records
+     * @param headers        The headers of the records
+     * @param callbacks      The user-supplied callbacks to execute when the requests are complete
+     * @param count          The number of records, taken from the start of the arrays
+     * @param futures        Filled with the future of each record
+     * @param maxTimeToBlock The maximum time in milliseconds to block for buffer memory to be available, for all the
+     *                       records together
+     * @return true if a batch became full or a new batch was created, in which case the sender should be woken up
+     */
+    public boolean appendAll(TopicPartition tp, long[] timestamps, byte[][] keys, byte[][] values, Header[][] headers,
+                             Callback[] callbacks, int count, FutureRecordMetadata[] futures, long maxTimeToBlock)
+        throws InterruptedException {
+        appendsInProgress.incrementAndGet();
+        ByteBuffer buffer = null;
+        byte maxUsableMagic = apiVersions.maxUsableProduceMagic();
+        long deadlineMs = time.milliseconds() + maxTimeToBlock;
+        boolean wakeup = false;
+        try {
+            Deque<ProducerBatch> dq = getOrCreateDeque(tp);
+            int next = 0;
+            while (true) {
+                synchronized (dq) {
+                    if (closed)
+                        throw new KafkaException("Producer closed while send in progress");
+                    ProducerBatch last = dq.peekLast();
+                    while (next < count) {
+                        Header[] recordHeaders = headers[next] == null ? Record.EMPTY_HEADERS : headers[next];
+                        FutureRecordMetadata future = last == null ? null : last.tryAppend(timestamps[next], keys[next],
+                            values[next], recordHeaders, callbacks[next], time.milliseconds());
+                        if (future == null) {
+                            if (last != null) {
+                                last.closeForRecordAppends();
+                                account(last);
+                            }
+                            if (buffer == null)
+                                break;
+                            last = new ProducerBatch(tp, recordsBuilder(buffer, maxUsableMagic), time.milliseconds(),
+                                false, compressionRatioEstimator, callbackExecutor);
+                            future = Utils.notNull(last.tryAppend(timestamps[next], keys[next], values[next],
+                                recordHeaders, callbacks[next], time.milliseconds()));
+                            dq.addLast(last);
+                            incomplete.add(last);
+                            // the buffer now belongs to the batch
+                            buffer = null;
+                            wakeup = true;
+                        }
+                        futures[next++] = future;
+                    }
+                    if (next == count)
+                        return wakeup || dq.size() > 1 || (last != null && last.isFull());
+                }
+
+                // allocate a batch for the record that did not fit
+                Header[] recordHeaders = headers[next] == null ? Record.EMPTY_HEADERS : headers[next];
+                maxUsableMagic = apiVersions.maxUsableProduceMagic();
+                int size = Math.max(this.batchSize, AbstractRecords.estimateSizeInBytesUpperBound(maxUsableMagic,
+                    compression, keys[next], values[next], recordHeaders));
+                log.trace("Allocating a new {} byte message buffer for topic {} partition {}", size, tp.topic(),
+                    tp.partition());
+                buffer = free.allocate(size, Math.max(0, deadlineMs - time.milliseconds()));
+            }
+        } finally {
+            if (buffer != null)
+                free.deallocate(buffer);
+            appendsInProgress.decrementAndGet();
+        }
+    }
+
+    /**
+     * Append the record to the last batch of the deque through the partition's combiner. The record is queued and
+     * whichever thread manages to claim the combiner appends up to {@link #MAX_COMBINED_APPENDS} queued records while
+     * holding the deque lock once, so the other threads only wait for their own record to be applied instead of
+     * queueing on the deque monitor. Waiting threads are parked, and the thread releasing the combiner wakes the owner
+     * of the next queued record so that it claims the combiner in turn.
+     *
+     * @return the append result, or null if the last batch had no room and a new batch must be allocated
+     */
+    private RecordAppendResult combinedAppend(AppendCombiner combiner, Deque<ProducerBatch> dq, long timestamp,
+                                              byte[] key, byte[] value, SerializedValue serializedValue,
+                                              Header[] headers, Callback callback) {
+        PendingAppend append = new PendingAppend(timestamp, key, value, serializedValue, headers, callback);
+        combiner.pending.offer(append);
+        boolean contended = false;
+        boolean appliedByThisThread = false;
+        while (!append.completed) {
+            if (combiner.claimed.compareAndSet(false, true)) {
+                PendingAppend next = null;
+                try {
+                    synchronized (dq) {
+                        for (int applied = 0; applied < MAX_COMBINED_APPENDS; applied++) {
+                            next = combiner.pending.poll();
+                            if (next == null)
+                                break;
+                            if (next == append)
+                                appliedByThisThread = true;
+                            if (closed) {
+                                next.fail(new KafkaException("Producer closed while send in progress"));
+                                continue;
+                            }
+                            try {
+                                next.complete(tryAppend(next.timestamp, next.key, next.value, next.serializedValue,
+                                    next.headers, next.callback, dq));
+                            } catch (RuntimeException e) {
+                                // hand the failure back to the thread that sent the record
+                                next.fail(e);
+                            }
+                        }
+                    }
+                } catch (Throwable t) {
+                    // an Error while appending: fail the record being applied and take our own record out of the
+                    // queue so that no other thread appends it after we have given up on it
+                    if (next != null && !next.completed)
+                        next.fail(new KafkaException("Unexpected error while appending record", t));
+                    combiner.pending.remove(append);
+                    throw t;
+                } finally {
+                    combiner.claimed.set(false);
+                    // wake up the owner of the next queued record, it claims the combiner and applies the rest
+                    PendingAppend head = combiner.pending.peek();
+                    if (head != null)
+                        LockSupport.unpark(head.waiter);
+                }
+            } else {
+                contended = true;
+                LockSupport.park(combiner);
+            }
+        }
+        if (contended)
+            appendContentionSensor.record();
+        if (!appliedByThisThread)
+            appendCombinedSensor.record();
+        if (append.error != null)
+            throw append.error;
+        return append.result;
+    }
+
+    private AppendCombiner getOrCreateCombiner(TopicPartition tp) {
+        AppendCombiner combiner = this.combiners.get(tp);
+        if (combiner != null)
+            return combiner;
+        combiner = new AppendCombiner();
+        AppendCombiner previous = this.combiners.putIfAbsent(tp, combiner);
+        if (previous == null)
+            return combiner;
+        else
+            return previous;
+    }
+
     private MemoryRecordsBuilder recordsBuilder(ByteBuffer buffer, byte maxUsableMagic) {
         if (transactionManager != null && maxUsableMagic < RecordBatch.MAGIC_VALUE_V2) {
             throw new UnsupportedVersionException("Attempting to use idempotence with a broker which does not " +
@@ -309,25 +647,53 @@ public final class RecordAccumulator {
      * and memory records built) in one of the following cases (whichever comes first): right before send,
      * if it is expired, or when the producer is closed.
      */
-    private RecordAppendResult tryAppend(long timestamp, byte[] key, byte[] value, Header[] headers,
-                                         Callback callback, Deque<ProducerBatch> deque) {
+    private RecordAppendResult tryAppend(long timestamp, byte[] key, byte[] value, SerializedValue serializedValue,
+                                         Header[] headers, Callback callback, Deque<ProducerBatch> deque) {
         //取出队列尾部的ProducerBatch
         ProducerBatch last = deque.peekLast();
         if (last != null) {
             //调用了ProducerBatch的tryAppend方法
-            FutureRecordMetadata future = last.tryAppend(timestamp, key, value, headers, callback, time.milliseconds());
-            if (future == null)
+            FutureRecordMetadata future = tryAppend(last, timestamp, key, value, serializedValue, headers, callback);
+            if (future == null) {
                 last.closeForRecordAppends();
-            else
+                account(last);
+            } else
                 return new RecordAppendResult(future, deque.size() > 1 || last.isFull(), false);
         }
         return null;
     }
 
+    private FutureRecordMetadata tryAppend(ProducerBatch batch, long timestamp, byte[] key, byte[] value,
+                                           SerializedValue serializedValue, Header[] headers, Callback callback) {
+        if (serializedValue != null)
+            return batch.tryAppend(timestamp, key, serializedValue, headers, callback, time.milliseconds());
+        return batch.tryAppend(timestamp, key, value, headers, callback, time.milliseconds());
+    }
+
+    private long lingerMs(TopicPartition tp) {
+        return adaptiveLinger == null ? lingerMs : adaptiveLinger.lingerMs(tp);
+    }
+
+    /**
+     * The per-partition linger computation, or null if every partition uses the configured linger time
+     */
+    AdaptiveLinger adaptiveLinger() {
+        return adaptiveLinger;
+    }
+
+    /**
+     * The per-partition compression ratio estimation, or null if batches use the per-topic estimate
+     */
+    PartitionCompressionRatioEstimator compressionRatioEstimator() {
+        return compressionRatioEstimator;
+    }
+
     private boolean isMuted(TopicPartition tp, long now) {
-        boolean result = muted.containsKey(tp) && muted.get(tp) > now;
-        if (!result)
-            muted.remove(tp);
+        Long mutedUntil = muted.get(tp);
+        boolean result = mutedUntil != null && mutedUntil > now;
+        // 只移除读到的那个值，不能删掉其它sender线程刚设置的mute
+        if (!result && mutedUntil != null)
+            muted.remove(tp, mutedUntil);
         return result;
     }
 
@@ -335,10 +701,27 @@ public final class RecordAccumulator {
      * Get a list of batches which have been sitting in the accumulator too long and need to be expired.
      */
     public List<ProducerBatch> expiredBatches(int requestTimeout, long now) {
+        return expiredBatches(requestTimeout, now, null, 0, 1);
+    }
+
+    /**
+     * Get the batches of the partitions led by the nodes the given sender thread owns, see
+     * {@link Sender#ownsNode(int, int, int)}, which have been sitting in the accumulator too long, as
+     * {@link #expiredBatches(int, long)} does for all the partitions. The partitions without a known leader are
+     * expired by the first sender thread.
+     * 多sender线程时只处理本线程负责的分区，避免和负责的线程争用mute状态
+     */
+    public List<ProducerBatch> expiredBatches(int requestTimeout, long now, Cluster cluster, int threadIndex,
+                                              int numThreads) {
         List<ProducerBatch> expiredBatches = new ArrayList<>();
         for (Map.Entry<TopicPartition, Deque<ProducerBatch>> entry : this.batches.entrySet()) {
             Deque<ProducerBatch> dq = entry.getValue();
             TopicPartition tp = entry.getKey();
+            if (numThreads > 1) {
+                Node leader = cluster.leaderFor(tp);
+                if (leader == null ? threadIndex != 0 : !Sender.ownsNode(leader.id(), threadIndex, numThreads))
+                    continue;
+            }
             // We only check if the batch should be expired if the partition does not have a batch in flight.
             // This is to prevent later batches from being expired while an earlier batch is still in progress.
             // Note that `muted` is only ever populated if `max.in.flight.request.per.connection=1` so this protection
@@ -394,12 +777,16 @@ public final class RecordAccumulator {
         // the split doesn't happen too often.
         CompressionRatioEstimator.setEstimation(bigBatch.topicPartition.topic(), compression,
                 Math.max(1.0f, (float) bigBatch.compressionRatio()));
+        if (compressionRatioEstimator != null)
+            compressionRatioEstimator.recordSplit(bigBatch.topicPartition, bigBatch.firstRecordSize(),
+                    (float) bigBatch.compressionRatio());
         Deque<ProducerBatch> dq = bigBatch.split(this.batchSize);
         int numSplitBatches = dq.size();
         Deque<ProducerBatch> partitionDequeue = getOrCreateDeque(bigBatch.topicPartition);
         while (!dq.isEmpty()) {
             ProducerBatch batch = dq.pollLast();
             incomplete.add(batch);
+            account(batch);
             // We treat the newly split batches as if they are not even tried.
             synchronized (partitionDequeue) {
                 if (transactionManager != null) {
@@ -491,6 +878,18 @@ public final class RecordAccumulator {
      * 获得集群中符合发送消息条件的节点集合
      */
     public ReadyCheckResult ready(Cluster cluster, long nowMs) {
+        return ready(cluster, nowMs, 0, 1);
+    }
+
+    /**
+     * Get the nodes owned by the given sender thread, see {@link Sender#ownsNode(int, int, int)}, whose partitions are
+     * ready to be sent, as {@link #ready(Cluster, long)} does for all the nodes. The partitions led by the nodes of the
+     * other sender threads are skipped without taking their locks, and the returned next ready check delay is the
+     * time until a partition of this thread's nodes may become ready, so that a thread neither sends for nor wakes up
+     * for the nodes of another.
+     * 多sender线程时只检查本线程负责的节点
+     */
+    public ReadyCheckResult ready(Cluster cluster, long nowMs, int threadIndex, int numThreads) {
         // 可以向哪些Node节点发送信息
         Set<Node> readyNodes = new HashSet<>();
         // 下次需要调用ready的时间间隔
@@ -507,6 +906,8 @@ public final class RecordAccumulator {
             Deque<ProducerBatch> deque = entry.getValue();
             //查找分区的Leader副本所在的Node
             Node leader = cluster.leaderFor(part);
+            if (leader != null && numThreads > 1 && !Sender.ownsNode(leader.id(), threadIndex, numThreads))
+                continue;
             synchronized (deque) {
                 if (leader == null && !deque.isEmpty()) {
                     // This is a partition for which leader is not known, but messages are available to send.
@@ -516,13 +917,13 @@ public final class RecordAccumulator {
                 } else if (!readyNodes.contains(leader) && !isMuted(part, nowMs)) {
                     //获取双端队列的第一个ProducerBatch
                     ProducerBatch batch = deque.peekFirst();
-                    if (batch != null) {
+                    if (batch != null && !inFlightWindowFull(batch)) {
                         //获取batch已经等待了多久，就是距离上次尝试的时间差值
                         long waitedTimeMs = batch.waitedTimeMs(nowMs);
                         //是否应该冷却：当在重试发送中，并且waitedTimeMs小于重试间隔时间，
                         boolean backingOff = batch.attempts() > 0 && waitedTimeMs < retryBackoffMs;
                         //冷却期等待时间为重试间隔时间，否则为延迟发送时间
-                        long timeToWaitMs = backingOff ? retryBackoffMs : lingerMs;
+                        long timeToWaitMs = backingOff ? retryBackoffMs : lingerMs(part);
                        //batch已经满了或者双端队列的batch 大于1个
                         boolean full = deque.size() > 1 || batch.isFull();
                         //是否过期了，等待时间是否超过了应该等待的时间
@@ -549,6 +950,81 @@ public final class RecordAccumulator {
         return new ReadyCheckResult(readyNodes, nextReadyCheckDelayMs, unknownLeaderTopics);
     }
 
+    /**
+     * 幂等生产者在分区已有{@link TransactionManager#MAX_IN_FLIGHT_BATCHES_PER_PARTITION}个在途batch时，新batch需等待之前的batch完成；
+     * 已分配序列号的重试batch不受限制
+     */
+    private boolean inFlightWindowFull(ProducerBatch first) {
+        return transactionManager != null && !first.hasSequence()
+            && transactionManager.hasMaxInFlightBatches(first.topicPartition);
+    }
+
+    /**
+     * 将分区队列中排在first之后、尚未发送过的batch与first合并为一个batch，合并后大小不超过maxSize。
+     * Produce请求中每个分区只能有一个batch，合并后积压的分区每个请求可以发送更多消息。
+     * Must be called while holding the deque's lock, before the batch is assigned a sequence. Only the batches to merge
+     * are picked here and the buffer of the new batch is taken from the pool without waiting; the records are copied
+     * when the new batch is closed, after the lock is released. If the pool has no memory for it right away the
+     * batches are left as they are.
+     */
+    private ProducerBatch coalesce(Deque<ProducerBatch> deque, ProducerBatch first, int maxSize, boolean closeBatches) {
+        // retried or split batches keep their boundaries, otherwise a batch split because it was too large would be
+        // merged again
+        if (first.attempts() > 0 || first.hasSequence() || first.isSplitBatch()
+                || first.magic() < RecordBatch.MAGIC_VALUE_V2) {
+            batchesPerPartitionSensor.record(1);
+            return first;
+        }
+        // sized like the batches in drain(), by the upper bound of their size unless they are closed right away
+        int size = closeBatches ? first.estimatedSizeInBytes() : first.maxSizeInBytes();
+        int bufferSize = first.estimatedSizeInBytes();
+        List<ProducerBatch> following = new ArrayList<>();
+        for (ProducerBatch next : deque) {
+            int nextSize = closeBatches ? next.estimatedSizeInBytes() : next.maxSizeInBytes();
+            if (next.attempts() > 0 || next.hasSequence() || next.isSplitBatch() || next.magic() != first.magic()
+                    || next.compressionType() != first.compressionType() || size + nextSize > maxSize)
+                break;
+            following.add(next);
+            size += nextSize;
+            bufferSize += next.estimatedSizeInBytes();
+        }
+        ByteBuffer buffer = null;
+        if (!following.isEmpty() && bufferSize <= free.totalMemory())
+            buffer = free.tryAllocate(bufferSize, false);
+        if (buffer == null) {
+            batchesPerPartitionSensor.record(1);
+            return first;
+        }
+        for (int i = 0; i < following.size(); i++)
+            deque.pollFirst();
+        batchesPerPartitionSensor.record(1 + following.size());
+
+        ProducerBatch batch = first.coalesce(following, buffer);
+        log.trace("Coalesced {} batches of partition {} into one of {} records", 1 + following.size(),
+            first.topicPartition, batch.recordCount);
+        incomplete.add(batch);
+        // the futures and callbacks counted for the merged batches now belong to the new one
+        for (ProducerBatch merged : batch.coalescedBatches()) {
+            batch.accountedBytes(batch.accountedBytes() + merged.accountedBytes());
+            merged.accountedBytes(0);
+        }
+        return batch;
+    }
+
+    /**
+     * Record the number of batches queued for every partition
+     */
+    void recordQueuedBatches(ProducerLoadStats loadStats) {
+        for (Map.Entry<TopicPartition, Deque<ProducerBatch>> entry : this.batches.entrySet()) {
+            Deque<ProducerBatch> deque = entry.getValue();
+            int queued;
+            synchronized (deque) {
+                queued = deque.size();
+            }
+            loadStats.recordQueuedBatches(entry.getKey(), queued);
+        }
+    }
+
     /**
      * Check whether there are any batches which haven't been drained
      */
@@ -577,6 +1053,28 @@ public final class RecordAccumulator {
                                                    Set<Node> nodes,
                                                    int maxSize,
                                                    long now) {
+        return drain(cluster, nodes, maxSize, now, true);
+    }
+
+    /**
+     * Drain all the data for the given nodes, optionally leaving the drained batches open so that the caller can close
+     * them, e.g. on a compression thread pool. The final size of an open compressed batch is only known once it is
+     * closed, so open batches are counted towards maxSize by an upper bound of their size, see
+     * {@link ProducerBatch#maxSizeInBytes()}. The drained batches of a node therefore never exceed maxSize once closed,
+     * unless a single batch does.
+     *
+     * @param cluster      The current cluster metadata
+     * @param nodes        The list of node to drain
+     * @param maxSize      The maximum number of bytes to drain
+     * @param now          The current unix time in milliseconds
+     * @param closeBatches Whether to close the drained batches
+     * @return A list of {@link ProducerBatch} for each node specified with total size less than the requested maxSize.
+     */
+    public Map<Integer, List<ProducerBatch>> drain(Cluster cluster,
+                                                   Set<Node> nodes,
+                                                   int maxSize,
+                                                   long now,
+                                                   boolean closeBatches) {
         if (nodes.isEmpty())
             return Collections.emptyMap();
 
@@ -586,7 +1084,9 @@ public final class RecordAccumulator {
             List<PartitionInfo> parts = cluster.partitionsForNode(node.id());
             List<ProducerBatch> ready = new ArrayList<>();
             /* to make starvation less likely this loop doesn't start at 0 */
-            int start = drainIndex = drainIndex % parts.size();
+            Integer lastIndex = drainIndexes.get(node.id());
+            int drainIndex = lastIndex == null ? 0 : lastIndex % parts.size();
+            int start = drainIndex;
             do {
                 PartitionInfo part = parts.get(drainIndex);
                 TopicPartition tp = new TopicPartition(part.topic(), part.partition());
@@ -594,30 +1094,35 @@ public final class RecordAccumulator {
                 if (!isMuted(tp, now)) {
                     Deque<ProducerBatch> deque = getDeque(tp);
                     if (deque != null) {
+                        ProducerBatch drained = null;
                         synchronized (deque) {
                             ProducerBatch first = deque.peekFirst();
                             if (first != null) {
                                 boolean backoff = first.attempts() > 0 && first.waitedTimeMs(now) < retryBackoffMs;
                                 // Only drain the batch if it is not during backoff period.
-                                if (!backoff) {
-                                    if (size + first.estimatedSizeInBytes() > maxSize && !ready.isEmpty()) {
+                                if (!backoff && !inFlightWindowFull(first)) {
+                                    int firstSize = closeBatches ? first.estimatedSizeInBytes() : first.maxSizeInBytes();
+                                    if (size + firstSize > maxSize && !ready.isEmpty()) {
                                         // there is a rare case that a single batch size is larger than the request size due
                                         // to compression; in this case we will still eventually send this batch in a single
                                         // request
                                         break;
+                                    } else if (transactionManager == null) {
+                                        drained = pollFirst(deque, maxSize - size, closeBatches);
                                     } else {
-                                        ProducerIdAndEpoch producerIdAndEpoch = null;
-                                        boolean isTransactional = false;
-                                        if (transactionManager != null) {
+                                        // with several sender threads the first one may reset the producer id at any
+                                        // time, so the producer id is read and the sequence assigned under the
+                                        // transaction manager's lock, which resetProducerId also holds
+                                        synchronized (transactionManager) {
                                             if (!transactionManager.isSendToPartitionAllowed(tp))
                                                 break;
 
-                                            producerIdAndEpoch = transactionManager.producerIdAndEpoch();
+                                            ProducerIdAndEpoch producerIdAndEpoch = transactionManager.producerIdAndEpoch();
                                             if (!producerIdAndEpoch.isValid())
                                                 // we cannot send the batch until we have refreshed the producer id
                                                 break;
 
-                                            isTransactional = transactionManager.isTransactional();
+                                            boolean isTransactional = transactionManager.isTransactional();
 
                                             if (!first.hasSequence() && transactionManager.hasUnresolvedSequence(first.topicPartition))
                                                 // Don't drain any new batches while the state of previous sequence numbers
@@ -634,45 +1139,68 @@ public final class RecordAccumulator {
                                                 // or due to a fatal broker error). This effectively reduces our
                                                 // in flight request count to 1.
                                                 break;
-                                        }
 
-                                        ProducerBatch batch = deque.pollFirst();
-                                        if (producerIdAndEpoch != null && !batch.hasSequence()) {
-                                            // If the batch already has an assigned sequence, then we should not change the producer id and
-                                            // sequence number, since this may introduce duplicates. In particular,
-                                            // the previous attempt may actually have been accepted, and if we change
-                                            // the producer id and sequence here, this attempt will also be accepted,
-                                            // causing a duplicate.
-                                            //
-                                            // Additionally, we update the next sequence number bound for the partition,
-                                            // and also have the transaction manager track the batch so as to ensure
-                                            // that sequence ordering is maintained even if we receive out of order
-                                            // responses.
-                                            batch.setProducerState(producerIdAndEpoch, transactionManager.sequenceNumber(batch.topicPartition), isTransactional);
-                                            transactionManager.incrementSequenceNumber(batch.topicPartition, batch.recordCount);
-                                            log.debug("Assigned producerId {} and producerEpoch {} to batch with base sequence " +
-                                                            "{} being sent to partition {}", producerIdAndEpoch.producerId,
-                                                    producerIdAndEpoch.epoch, batch.baseSequence(), tp);
-
-                                            transactionManager.addInFlightBatch(batch);
+                                            ProducerBatch batch = pollFirst(deque, maxSize - size, closeBatches);
+                                            if (!batch.hasSequence()) {
+                                                // If the batch already has an assigned sequence, then we should not change the producer id and
+                                                // sequence number, since this may introduce duplicates. In particular,
+                                                // the previous attempt may actually have been accepted, and if we change
+                                                // the producer id and sequence here, this attempt will also be accepted,
+                                                // causing a duplicate.
+                                                //
+                                                // Additionally, we update the next sequence number bound for the partition,
+                                                // and also have the transaction manager track the batch so as to ensure
+                                                // that sequence ordering is maintained even if we receive out of order
+                                                // responses.
+                                                batch.setProducerState(producerIdAndEpoch, transactionManager.sequenceNumber(batch.topicPartition), isTransactional);
+                                                transactionManager.incrementSequenceNumber(batch.topicPartition, batch.recordCount);
+                                                log.debug("Assigned producerId {} and producerEpoch {} to batch with base sequence " +
+                                                                "{} being sent to partition {}", producerIdAndEpoch.producerId,
+                                                        producerIdAndEpoch.epoch, batch.baseSequence(), tp);
+
+                                                transactionManager.addInFlightBatch(batch);
+                                            }
+                                            drained = batch;
                                         }
-                                        batch.close();
-                                        size += batch.records().sizeInBytes();
-                                        ready.add(batch);
-                                        batch.drained(now);
                                     }
                                 }
                             }
                         }
+                        // the batch is no longer in the deque, so it is closed without holding the lock; closing a
+                        // coalesced batch copies and compresses the records of the batches merged into it
+                        if (drained != null) {
+                            if (closeBatches) {
+                                drained.close();
+                                size += drained.records().sizeInBytes();
+                            } else {
+                                size += drained.maxSizeInBytes();
+                            }
+                            account(drained);
+                            ready.add(drained);
+                            drained.drained(now);
+                            if (adaptiveLinger != null && drained.attempts() == 0)
+                                adaptiveLinger.record(tp, drained.estimatedSizeInBytes(), drained.createdTimeMs(now));
+                        }
                     }
                 }
-                this.drainIndex = (this.drainIndex + 1) % parts.size();
+                drainIndex = (drainIndex + 1) % parts.size();
             } while (start != drainIndex);
+            drainIndexes.put(node.id(), drainIndex);
             batches.put(node.id(), ready);
         }
         return batches;
     }
 
+    /**
+     * Take the first batch of the deque, coalesced with the batches queued behind it if batch coalescing is enabled
+     */
+    private ProducerBatch pollFirst(Deque<ProducerBatch> deque, int maxSize, boolean closeBatches) {
+        ProducerBatch batch = deque.pollFirst();
+        if (batchesPerPartitionSensor != null)
+            batch = coalesce(deque, batch, maxSize, closeBatches);
+        return batch;
+    }
+
     private Deque<ProducerBatch> getDeque(TopicPartition tp) {
         return batches.get(tp);
     }
@@ -702,6 +1230,27 @@ public final class RecordAccumulator {
         // buffer pool.
         if (!batch.isSplitBatch())
             free.deallocate(batch.buffer(), batch.initialCapacity());
+        if (batch.accountedBytes() > 0) {
+            free.release(batch.accountedBytes());
+            batch.accountedBytes(0);
+        }
+        // batches coalesced into this one complete with it
+        for (ProducerBatch coalesced : batch.coalescedBatches())
+            deallocate(coalesced);
+    }
+
+    /**
+     * 统一内存计量模式下，将batch在缓冲池buffer之外占用的内存计入缓冲池。在batch不再追加消息、
+     * 被拆分或被drain时调用，此后其大小基本不再变化
+     */
+    private void account(ProducerBatch batch) {
+        if (!accountAllMemory)
+            return;
+        int retained = batch.retainedBytesOutsidePool();
+        if (retained > batch.accountedBytes()) {
+            free.reserve(retained - batch.accountedBytes());
+            batch.accountedBytes(retained);
+        }
     }
 
     /**
@@ -789,6 +1338,9 @@ public final class RecordAccumulator {
      */
     void abortBatches(final RuntimeException reason) {
         for (ProducerBatch batch : incomplete.copyAll()) {
+            // aborted with the batch they were coalesced into
+            if (batch.isCoalesced())
+                continue;
             Deque<ProducerBatch> dq = getDeque(batch.topicPartition);
             synchronized (dq) {
                 batch.abortRecordAppends();
@@ -804,6 +1356,8 @@ public final class RecordAccumulator {
      */
     void abortUndrainedBatches(RuntimeException reason) {
         for (ProducerBatch batch : incomplete.copyAll()) {
+            if (batch.isCoalesced())
+                continue;
             Deque<ProducerBatch> dq = getDeque(batch.topicPartition);
             boolean aborted = false;
             synchronized (dq) {
@@ -845,11 +1399,66 @@ public final class RecordAccumulator {
         public final boolean batchIsFull;
         //Batch是否新建
         public final boolean newBatchCreated;
+        //是否因为需要新建batch 而放弃了追加
+        public final boolean abortForNewBatch;
 
         public RecordAppendResult(FutureRecordMetadata future, boolean batchIsFull, boolean newBatchCreated) {
+            this(future, batchIsFull, newBatchCreated, false);
+        }
+
+        public RecordAppendResult(FutureRecordMetadata future, boolean batchIsFull, boolean newBatchCreated,
+                                  boolean abortForNewBatch) {
             this.future = future;
             this.batchIsFull = batchIsFull;
             this.newBatchCreated = newBatchCreated;
+            this.abortForNewBatch = abortForNewBatch;
+        }
+    }
+
+    /*
+     * The records waiting to be appended to a partition and the flag claimed by the thread applying them
+     */
+    private final static class AppendCombiner {
+        final ConcurrentLinkedQueue<PendingAppend> pending = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean claimed = new AtomicBoolean(false);
+    }
+
+    /*
+     * A record queued for a combined append. The result or error is published by the volatile write of completed, after
+     * which the waiting sender thread is unparked.
+     */
+    private final static class PendingAppend {
+        final long timestamp;
+        final byte[] key;
+        final byte[] value;
+        final SerializedValue serializedValue;
+        final Header[] headers;
+        final Callback callback;
+        final Thread waiter = Thread.currentThread();
+        RecordAppendResult result;
+        RuntimeException error;
+        volatile boolean completed;
+
+        PendingAppend(long timestamp, byte[] key, byte[] value, SerializedValue serializedValue, Header[] headers,
+                      Callback callback) {
+            this.timestamp = timestamp;
+            this.key = key;
+            this.value = value;
+            this.serializedValue = serializedValue;
+            this.headers = headers;
+            this.callback = callback;
+        }
+
+        void complete(RecordAppendResult result) {
+            this.result = result;
+            this.completed = true;
+            LockSupport.unpark(waiter);
+        }
+
+        void fail(RuntimeException error) {
+            this.error = error;
+            this.completed = true;
+            LockSupport.unpark(waiter);
         }
     }
 
@@ -59,11 +59,17 @@ import org.apache.kafka.common.utils.Utils;
 import org.slf4j.Logger;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.apache.kafka.common.record.RecordBatch.NO_TIMESTAMP;
 
@@ -73,6 +79,9 @@ import static org.apache.kafka.common.record.RecordBatch.NO_TIMESTAMP;
  */
 public class Sender implements Runnable {
 
+    /* the minimum interval between two counts of the queued batches for the load statistics */
+    private static final long LOAD_STATS_QUEUED_BATCHES_INTERVAL_MS = 10;
+
     private final Logger log;
 
     /* the state of each nodes connection */
@@ -120,6 +129,25 @@ public class Sender implements Runnable {
     /* all the state related to transactions, in particular the producer id, producer epoch, and sequence numbers */
     private final TransactionManager transactionManager;
 
+    /* the load statistics of the load-aware partitioner, or null if it is not in use */
+    private final ProducerLoadStats loadStats;
+
+    /* the send times of the produce requests in flight to each node, oldest first, kept for the load statistics */
+    private final Map<String, Deque<Long>> produceSendTimes = new HashMap<>();
+
+    /* the last time the queued batches were counted for the load statistics */
+    private long lastQueuedBatchesUpdateMs = 0;
+
+    /* closes drained batches on compression threads, or null if they are closed while draining */
+    private final ParallelBatchCloser batchCloser;
+
+    /* the index of this sender among the sender threads of the producer, and the number of sender threads */
+    private final int threadIndex;
+    private final int numThreads;
+
+    /* the number of sender threads of the producer that have not shut down yet, or null if there is only one */
+    private final AtomicInteger runningThreads;
+
     public Sender(LogContext logContext,
                   KafkaClient client,
                   Metadata metadata,
@@ -133,7 +161,38 @@ public class Sender implements Runnable {
                   int requestTimeoutMs,
                   long retryBackoffMs,
                   TransactionManager transactionManager,
-                  ApiVersions apiVersions) {
+                  ApiVersions apiVersions,
+                  ProducerLoadStats loadStats,
+                  ParallelBatchCloser batchCloser) {
+        this(logContext, client, metadata, accumulator, guaranteeMessageOrder, maxRequestSize, acks, retries,
+            metricsRegistry, time, requestTimeoutMs, retryBackoffMs, transactionManager, apiVersions, loadStats,
+            batchCloser, 0, 1, null);
+    }
+
+    /**
+     * Create one of several sender threads sharing the same accumulator. Each sender thread only sends to the nodes
+     * it owns, see {@link #ownsNode(int, int, int)}, over its own client. Only the first sender thread handles the
+     * producer id and transactional requests.
+     */
+    public Sender(LogContext logContext,
+                  KafkaClient client,
+                  Metadata metadata,
+                  RecordAccumulator accumulator,
+                  boolean guaranteeMessageOrder,
+                  int maxRequestSize,
+                  short acks,
+                  int retries,
+                  SenderMetricsRegistry metricsRegistry,
+                  Time time,
+                  int requestTimeoutMs,
+                  long retryBackoffMs,
+                  TransactionManager transactionManager,
+                  ApiVersions apiVersions,
+                  ProducerLoadStats loadStats,
+                  ParallelBatchCloser batchCloser,
+                  int threadIndex,
+                  int numThreads,
+                  AtomicInteger runningThreads) {
         this.log = logContext.logger(Sender.class);
         this.client = client;
         this.accumulator = accumulator;
@@ -144,11 +203,16 @@ public class Sender implements Runnable {
         this.acks = acks;
         this.retries = retries;
         this.time = time;
+        this.threadIndex = threadIndex;
+        this.numThreads = numThreads;
+        this.runningThreads = runningThreads;
         this.sensors = new SenderMetrics(metricsRegistry);
         this.requestTimeoutMs = requestTimeoutMs;
         this.retryBackoffMs = retryBackoffMs;
         this.apiVersions = apiVersions;
         this.transactionManager = transactionManager;
+        this.loadStats = loadStats;
+        this.batchCloser = batchCloser;
     }
 
     /**
@@ -177,7 +241,7 @@ public class Sender implements Runnable {
          *如果没有强制关闭，accumulator中还有剩余消息，还有等待未响应的消息
          * 继续执行
          */
-        while (!forceClose && (this.accumulator.hasUndrained() || this.client.inFlightRequestCount() > 0)) {
+        while (!forceClose && (hasUnsentBatches() || this.client.inFlightRequestCount() > 0)) {
             try {
                 //继续调用run方法发送剩余消息
                 run(time.milliseconds());
@@ -189,11 +253,23 @@ public class Sender implements Runnable {
          * Sender线程强制关闭，所有的未发消息全部失败，并唤醒furture。
          *
          */
-        if (forceClose) {
-            // We need to fail all the incomplete batches and wake up the threads waiting on
-            // the futures.
-            log.debug("Aborting incomplete batches due to forced shutdown");
-            this.accumulator.abortIncompleteBatches();
+        if (runningThreads == null) {
+            if (forceClose) {
+                // We need to fail all the incomplete batches and wake up the threads waiting on
+                // the futures.
+                log.debug("Aborting incomplete batches due to forced shutdown");
+                this.accumulator.abortIncompleteBatches();
+            }
+            if (batchCloser != null)
+                batchCloser.shutdown(requestTimeoutMs);
+        } else if (runningThreads.decrementAndGet() == 0) {
+            // the last sender thread to stop fails whatever the others left behind when they were forced to close
+            if (this.accumulator.hasIncomplete()) {
+                log.debug("Aborting incomplete batches due to forced shutdown");
+                this.accumulator.abortIncompleteBatches();
+            }
+            if (batchCloser != null)
+                batchCloser.shutdown(requestTimeoutMs);
         }
         try {
             this.client.close();
@@ -204,17 +280,38 @@ public class Sender implements Runnable {
         log.debug("Shutdown of Kafka producer I/O thread has completed.");
     }
 
+    /**
+     * Whether the sender thread still has batches to wait for before it can shut down. With several sender threads
+     * every thread waits until all the batches are completed, not only the batches of its own nodes: a batch that is
+     * retried may be re-enqueued for a leader owned by another thread, so a thread that already stopped could leave it
+     * behind with no thread left to drain it.
+     * 多sender线程时，等所有batch完成后各线程才退出
+     */
+    private boolean hasUnsentBatches() {
+        return runningThreads == null ? this.accumulator.hasUndrained() : this.accumulator.hasIncomplete();
+    }
+
     /**
      * Run a single iteration of sending
      * 被循环调用的  发送消息的方法
      * @param now The current POSIX time in milliseconds
      */
     void run(long now) {
-        if (transactionManager != null) {
+        if (transactionManager != null && threadIndex > 0) {
+            // the first sender thread gets the producer id, the others wait for it
+            if (transactionManager.hasFatalError() || !transactionManager.hasProducerId()) {
+                poll(retryBackoffMs, now);
+                return;
+            }
+        } else if (transactionManager != null) {
             try {
-                if (transactionManager.shouldResetProducerStateAfterResolvingSequences())
-                    // Check if the previous run expired batches which requires a reset of the producer state.
-                    transactionManager.resetProducerId();
+                // the other sender threads assign sequences while holding the transaction manager's lock, so that
+                // none of them drains a batch while the producer id is checked and reset
+                synchronized (transactionManager) {
+                    if (transactionManager.shouldResetProducerStateAfterResolvingSequences())
+                        // Check if the previous run expired batches which requires a reset of the producer state.
+                        transactionManager.resetProducerId();
+                }
 
                 if (!transactionManager.isTransactional()) {
                     // this is an idempotent producer, so make sure we have a producer id
@@ -248,10 +345,23 @@ public class Sender implements Runnable {
 
         long pollTimeout = sendProducerData(now);
 
-        client.poll(pollTimeout, now);
+        poll(pollTimeout, now);
 
     }
 
+    private void poll(long timeout, long now) {
+        long pollStartNs = time.nanoseconds();
+        client.poll(timeout, now);
+        sensors.recordPollTime((time.nanoseconds() - pollStartNs) / 1e6);
+    }
+
+    /**
+     * Whether the sender thread with the given index sends to the given node
+     */
+    static boolean ownsNode(int nodeId, int threadIndex, int numThreads) {
+        return Utils.toPositive(nodeId) % numThreads == threadIndex;
+    }
+
     private long sendProducerData(long now) {
         /**
          * 获得Kafka集群数据
@@ -262,7 +372,12 @@ public class Sender implements Runnable {
         /**
          * 获取node节点
          */
-        RecordAccumulator.ReadyCheckResult result = this.accumulator.ready(cluster, now);
+        // only the nodes owned by this thread, so that their readiness alone decides how long to poll
+        RecordAccumulator.ReadyCheckResult result = this.accumulator.ready(cluster, now, threadIndex, numThreads);
+
+        // refresh the load seen by the load-aware partitioner
+        if (loadStats != null)
+            updateLoadStats(cluster, now);
 
         // if there are any partitions whose leaders are not known yet, force metadata update
         /**
@@ -302,7 +417,10 @@ public class Sender implements Runnable {
          * tp和List<RecordBatch>的对应关系--->为node_id和List<RecordBatch>的对应关系
          */
         Map<Integer, List<ProducerBatch>> batches = this.accumulator.drain(cluster, result.readyNodes,
-                this.maxRequestSize, now);
+                this.maxRequestSize, now, batchCloser == null);
+        // 在压缩线程池中并行关闭batch
+        if (batchCloser != null)
+            batchCloser.closeAll(batches);
         /**
          * 消息的顺序处理
          */
@@ -317,7 +435,8 @@ public class Sender implements Runnable {
          *  处理超时消息，把过期的消息删除并且释放ByteBuffer 释放资源
          */
 
-        List<ProducerBatch> expiredBatches = this.accumulator.expiredBatches(this.requestTimeoutMs, now);
+        List<ProducerBatch> expiredBatches = this.accumulator.expiredBatches(this.requestTimeoutMs, now, cluster,
+            threadIndex, numThreads);
         // Reset the producer id if an expired batch has previously been sent to the broker. Also update the metrics
         // for expired batches. see the documentation of @TransactionState.resetProducerId to understand why
         // we need to reset the producer id here.
@@ -345,6 +464,9 @@ public class Sender implements Runnable {
             // the select time will be the time difference between now and its linger expiry time;
             // otherwise the select time will be the time difference between now and the metadata expiry time;
             pollTimeout = 0;
+        } else if (numThreads > 1 && !running && hasUnsentBatches()) {
+            // while shutting down, check back soon rather than wait for the other threads to wake us
+            pollTimeout = Math.min(pollTimeout, retryBackoffMs);
         }
         /**发送请求，
          * 这里并不是真正的网络读写，只是构建请求
@@ -525,6 +647,8 @@ public class Sender implements Runnable {
                     completeBatch(batch, partResp, correlationId, now, receivedTimeMs + produceResponse.throttleTimeMs());
                 }
                 this.sensors.recordLatency(response.destination(), response.requestLatencyMs());
+                if (loadStats != null)
+                    loadStats.recordLatency(response.destination(), response.requestLatencyMs());
             } else {
                 // this is the acks = 0 case, just complete all requests
                 for (ProducerBatch batch : batches.values()) {
@@ -534,6 +658,22 @@ public class Sender implements Runnable {
         }
     }
 
+    private void updateLoadStats(Cluster cluster, long now) {
+        for (Node node : cluster.nodes()) {
+            if (ownsNode(node.id(), threadIndex, numThreads)) {
+                loadStats.recordInFlightRequests(node.idString(), client.inFlightRequestCount(node.idString()));
+                Deque<Long> sendTimes = produceSendTimes.get(node.idString());
+                Long oldest = sendTimes == null ? null : sendTimes.peekFirst();
+                loadStats.recordInFlightAge(node.idString(), oldest == null ? 0 : Math.max(0, now - oldest));
+            }
+        }
+        // counting the queued batches locks every deque, so it is done at most every LOAD_STATS_QUEUED_BATCHES_INTERVAL_MS
+        if (threadIndex == 0 && now - lastQueuedBatchesUpdateMs >= LOAD_STATS_QUEUED_BATCHES_INTERVAL_MS) {
+            accumulator.recordQueuedBatches(loadStats);
+            lastQueuedBatchesUpdateMs = now;
+        }
+    }
+
     /**
      * Complete or retry the given batch of records.
      *
@@ -745,13 +885,28 @@ public class Sender implements Runnable {
         /**
          * 请求完成的回调函数
          */
+        final String nodeId = Integer.toString(destination);
+        final Deque<Long> sendTimes;
+        if (loadStats != null) {
+            Deque<Long> times = produceSendTimes.get(nodeId);
+            if (times == null) {
+                times = new ArrayDeque<>();
+                produceSendTimes.put(nodeId, times);
+            }
+            times.addLast(now);
+            sendTimes = times;
+        } else {
+            sendTimes = null;
+        }
+        final long sendTimeMs = now;
         RequestCompletionHandler callback = new RequestCompletionHandler() {
             public void onComplete(ClientResponse response) {
+                if (sendTimes != null)
+                    sendTimes.removeFirstOccurrence(sendTimeMs);
                 handleProduceResponse(response, recordsByPartition, time.milliseconds());
             }
         };
 
-        String nodeId = Integer.toString(destination);
         //构建请求。
         ClientRequest clientRequest = client.newClientRequest(nodeId, requestBuilder, now, acks != 0,
                 requestTimeoutMs, callback);
@@ -797,7 +952,12 @@ public class Sender implements Runnable {
         public final Sensor compressionRateSensor;
         public final Sensor maxRecordSizeSensor;
         public final Sensor batchSplitSensor;
+        public final Sensor compressionRatioEstimationErrorSensor;
+        public final Sensor pollTimeSensor;
         private final SenderMetricsRegistry metrics;
+        private final Set<TopicPartition> lingerMetricsPartitions = new HashSet<>();
+        private final Set<TopicPartition> loadMetricsPartitions = new HashSet<>();
+        private final Set<TopicPartition> compressionMetricsPartitions = new HashSet<>();
 
         public SenderMetrics(SenderMetricsRegistry metrics) {
             this.metrics = metrics;
@@ -809,6 +969,10 @@ public class Sender implements Runnable {
             this.compressionRateSensor = metrics.sensor("compression-rate");
             this.compressionRateSensor.add(metrics.compressionRateAvg, new Avg());
 
+            this.compressionRatioEstimationErrorSensor = metrics.sensor("compression-ratio-estimation-error");
+            this.compressionRatioEstimationErrorSensor.add(metrics.compressionRatioEstimationErrorAvg, new Avg());
+            this.compressionRatioEstimationErrorSensor.add(metrics.compressionRatioEstimationErrorMax, new Max());
+
             this.queueTimeSensor = metrics.sensor("queue-time");
             this.queueTimeSensor.add(metrics.recordQueueTimeAvg, new Avg());
             this.queueTimeSensor.add(metrics.recordQueueTimeMax, new Max());
@@ -831,14 +995,34 @@ public class Sender implements Runnable {
             this.maxRecordSizeSensor.add(metrics.recordSizeMax, new Max());
             this.maxRecordSizeSensor.add(metrics.recordSizeAvg, new Avg());
 
-            this.metrics.addMetric(metrics.requestsInFlight, new Measurable() {
+            if (numThreads == 1) {
+                this.metrics.addMetric(metrics.requestsInFlight, new Measurable() {
+                    public double measure(MetricConfig config, long now) {
+                        return client.inFlightRequestCount();
+                    }
+                });
+            }
+            if (threadIndex == 0) {
+                metrics.addMetric(metrics.metadataAge, new Measurable() {
+                    public double measure(MetricConfig config, long now) {
+                        return (now - metadata.lastSuccessfulUpdate()) / 1000.0;
+                    }
+                });
+            }
+
+            // per sender thread metrics
+            Map<String, String> threadTags = Collections.singletonMap("sender-thread", String.valueOf(threadIndex));
+            this.pollTimeSensor = metrics.sensor("sender-poll-time." + threadIndex);
+            this.pollTimeSensor.add(metrics.senderPollTimeAvg(threadTags), new Avg());
+            this.pollTimeSensor.add(metrics.senderPollTimeMax(threadTags), new Max());
+            metrics.addMetric(metrics.senderQueuedBatches(threadTags), new Measurable() {
                 public double measure(MetricConfig config, long now) {
-                    return client.inFlightRequestCount();
+                    return queuedBatches();
                 }
             });
-            metrics.addMetric(metrics.metadataAge, new Measurable() {
+            metrics.addMetric(metrics.senderRequestsInFlight(threadTags), new Measurable() {
                 public double measure(MetricConfig config, long now) {
-                    return (now - metadata.lastSuccessfulUpdate()) / 1000.0;
+                    return client.inFlightRequestCount();
                 }
             });
 
@@ -884,6 +1068,62 @@ public class Sender implements Runnable {
             }
         }
 
+        private void maybeRegisterPartitionLingerMetrics(final TopicPartition tp) {
+            final AdaptiveLinger adaptiveLinger = accumulator.adaptiveLinger();
+            if (adaptiveLinger == null || !lingerMetricsPartitions.add(tp))
+                return;
+            Map<String, String> metricTags = new LinkedHashMap<>();
+            metricTags.put("topic", tp.topic());
+            metricTags.put("partition", String.valueOf(tp.partition()));
+            this.metrics.addMetricIfAbsent(this.metrics.partitionEffectiveLinger(metricTags), new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return adaptiveLinger.lingerMs(tp);
+                }
+            });
+            this.metrics.addMetricIfAbsent(this.metrics.partitionBatchFillRatio(metricTags), new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return adaptiveLinger.fillRatio(tp);
+                }
+            });
+        }
+
+        private void maybeRegisterPartitionLoadMetrics(final TopicPartition tp) {
+            if (loadStats == null || !loadMetricsPartitions.add(tp))
+                return;
+            Map<String, String> metricTags = new LinkedHashMap<>();
+            metricTags.put("topic", tp.topic());
+            metricTags.put("partition", String.valueOf(tp.partition()));
+            this.metrics.addMetricIfAbsent(this.metrics.partitionSelectionTotal(metricTags), new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return loadStats.selections(tp);
+                }
+            });
+            this.metrics.addMetricIfAbsent(this.metrics.partitionLoadWeight(metricTags), new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return loadStats.weight(tp);
+                }
+            });
+        }
+
+        private void maybeRegisterPartitionCompressionMetrics(final TopicPartition tp) {
+            final PartitionCompressionRatioEstimator estimator = accumulator.compressionRatioEstimator();
+            if (estimator == null || !compressionMetricsPartitions.add(tp))
+                return;
+            Map<String, String> metricTags = new LinkedHashMap<>();
+            metricTags.put("topic", tp.topic());
+            metricTags.put("partition", String.valueOf(tp.partition()));
+            this.metrics.addMetricIfAbsent(this.metrics.partitionBatchSplitTotal(metricTags), new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return estimator.splits(tp);
+                }
+            });
+            this.metrics.addMetricIfAbsent(this.metrics.partitionCompressionRatioEstimationError(metricTags), new Measurable() {
+                public double measure(MetricConfig config, long now) {
+                    return estimator.estimationError(tp);
+                }
+            });
+        }
+
         public void updateProduceRequestMetrics(Map<Integer, List<ProducerBatch>> batches) {
             long now = time.milliseconds();
             for (List<ProducerBatch> nodeBatch : batches.values()) {
@@ -892,6 +1132,9 @@ public class Sender implements Runnable {
                     // register all per-topic metrics at once
                     String topic = batch.topicPartition.topic();
                     maybeRegisterTopicMetrics(topic);
+                    maybeRegisterPartitionLingerMetrics(batch.topicPartition);
+                    maybeRegisterPartitionLoadMetrics(batch.topicPartition);
+                    maybeRegisterPartitionCompressionMetrics(batch.topicPartition);
 
                     // per-topic record send rate
                     String topicRecordsCountName = "topic." + topic + ".records-per-batch";
@@ -912,6 +1155,9 @@ public class Sender implements Runnable {
                     this.batchSizeSensor.record(batch.estimatedSizeInBytes(), now);
                     this.queueTimeSensor.record(batch.queueTimeMs(), now);
                     this.compressionRateSensor.record(batch.compressionRatio());
+                    if (batch.isCompressed())
+                        this.compressionRatioEstimationErrorSensor.record(
+                            Math.abs(batch.compressionRatio() - batch.estimatedCompressionRatio()), now);
                     this.maxRecordSizeSensor.record(batch.maxRecordSize, now);
                     records += batch.recordCount;
                 }
@@ -951,6 +1197,25 @@ public class Sender implements Runnable {
         void recordBatchSplit() {
             this.batchSplitSensor.record();
         }
+
+        void recordPollTime(double pollTimeMs) {
+            this.pollTimeSensor.record(pollTimeMs);
+        }
+
+        private int queuedBatches() {
+            Cluster cluster = metadata.fetch();
+            int queued = 0;
+            for (Map.Entry<TopicPartition, Deque<ProducerBatch>> entry : accumulator.batches().entrySet()) {
+                Node leader = cluster.leaderFor(entry.getKey());
+                if (leader == null || !ownsNode(leader.id(), threadIndex, numThreads))
+                    continue;
+                Deque<ProducerBatch> deque = entry.getValue();
+                synchronized (deque) {
+                    queued += deque.size();
+                }
+            }
+            return queued;
+        }
     }
 
 }
@@ -32,6 +32,7 @@ public class SenderMetricsRegistry {
 
     final static String METRIC_GROUP_NAME = "producer-metrics";
     final static String TOPIC_METRIC_GROUP_NAME = "producer-topic-metrics";
+    final static String PARTITION_METRIC_GROUP_NAME = "producer-partition-metrics";
 
     private final List<MetricNameTemplate> allTemplates;
 
@@ -57,6 +58,22 @@ public class SenderMetricsRegistry {
     public final MetricName metadataAge;
     public final MetricName batchSplitRate;
     public final MetricName batchSplitTotal;
+    public final MetricName compressionRatioEstimationErrorAvg;
+    public final MetricName compressionRatioEstimationErrorMax;
+    public final MetricName compressionQueueTimeAvg;
+    public final MetricName compressionQueueTimeMax;
+    public final MetricName callbackTimeAvg;
+    public final MetricName callbackTimeMax;
+    public final MetricName callbackQueueDepth;
+
+    private final MetricNameTemplate compressionCpuTimeAvg;
+    private final MetricNameTemplate compressionCpuTimeRate;
+    private final MetricNameTemplate compressionCpuTimeTotal;
+
+    private final MetricNameTemplate senderPollTimeAvg;
+    private final MetricNameTemplate senderPollTimeMax;
+    private final MetricNameTemplate senderQueuedBatches;
+    private final MetricNameTemplate senderRequestsInFlight;
 
     private final MetricNameTemplate topicRecordSendRate;
     private final MetricNameTemplate topicRecordSendTotal;
@@ -68,9 +85,17 @@ public class SenderMetricsRegistry {
     private final MetricNameTemplate topicRecordErrorRate;
     private final MetricNameTemplate topicRecordErrorTotal;
 
+    private final MetricNameTemplate partitionEffectiveLinger;
+    private final MetricNameTemplate partitionBatchFillRatio;
+    private final MetricNameTemplate partitionSelectionTotal;
+    private final MetricNameTemplate partitionLoadWeight;
+    private final MetricNameTemplate partitionBatchSplitTotal;
+    private final MetricNameTemplate partitionCompressionRatioEstimationError;
+
     private final Metrics metrics;
     private final Set<String> tags;
     private final LinkedHashSet<String> topicTags;
+    private final LinkedHashSet<String> partitionTags;
 
     public SenderMetricsRegistry(Metrics metrics) {
         this.metrics = metrics;
@@ -119,6 +144,40 @@ public class SenderMetricsRegistry {
                 "The average number of batch splits per second");
         this.batchSplitTotal = createMetricName("batch-split-total",
                 "The total number of batch splits");
+        this.compressionRatioEstimationErrorAvg = createMetricName("compression-ratio-estimation-error-avg",
+                "The average absolute difference between the compression ratio a batch was filled with and its actual compression ratio.");
+        this.compressionRatioEstimationErrorMax = createMetricName("compression-ratio-estimation-error-max",
+                "The maximum absolute difference between the compression ratio a batch was filled with and its actual compression ratio.");
+        this.compressionQueueTimeAvg = createMetricName("compression-queue-time-avg",
+                "The average time in ms a drained batch waited for a compression thread to close it.");
+        this.compressionQueueTimeMax = createMetricName("compression-queue-time-max",
+                "The maximum time in ms a drained batch waited for a compression thread to close it.");
+        this.callbackTimeAvg = createMetricName("callback-time-avg",
+                "The average time in ms a callback thread spent completing a batch and running its callbacks.");
+        this.callbackTimeMax = createMetricName("callback-time-max",
+                "The maximum time in ms a callback thread spent completing a batch and running its callbacks.");
+        this.callbackQueueDepth = createMetricName("callback-queue-depth",
+                "The number of completed batches waiting for a callback thread to run their callbacks.");
+
+        LinkedHashSet<String> codecTags = new LinkedHashSet<>(tags);
+        codecTags.add("compression-type");
+        this.compressionCpuTimeAvg = createTemplate("compression-cpu-time-avg", METRIC_GROUP_NAME,
+                "The average CPU time in ms spent closing a batch of a compression type.", codecTags);
+        this.compressionCpuTimeRate = createTemplate("compression-cpu-time-rate", METRIC_GROUP_NAME,
+                "The CPU time in ms spent per second closing batches of a compression type.", codecTags);
+        this.compressionCpuTimeTotal = createTemplate("compression-cpu-time-total", METRIC_GROUP_NAME,
+                "The total CPU time in ms spent closing batches of a compression type.", codecTags);
+
+        LinkedHashSet<String> senderThreadTags = new LinkedHashSet<>(tags);
+        senderThreadTags.add("sender-thread");
+        this.senderPollTimeAvg = createTemplate("sender-poll-time-avg", METRIC_GROUP_NAME,
+                "The average time in ms a sender thread spent in each network poll.", senderThreadTags);
+        this.senderPollTimeMax = createTemplate("sender-poll-time-max", METRIC_GROUP_NAME,
+                "The maximum time in ms a sender thread spent in a network poll.", senderThreadTags);
+        this.senderQueuedBatches = createTemplate("sender-queued-batches", METRIC_GROUP_NAME,
+                "The number of batches in the send buffer for the nodes a sender thread sends to.", senderThreadTags);
+        this.senderRequestsInFlight = createTemplate("sender-requests-in-flight", METRIC_GROUP_NAME,
+                "The current number of in-flight requests of a sender thread awaiting a response.", senderThreadTags);
 
         this.produceThrottleTimeAvg = createMetricName("produce-throttle-time-avg",
                 "The average time in ms a request was throttled by a broker");
@@ -149,6 +208,23 @@ public class SenderMetricsRegistry {
         this.topicRecordErrorTotal = createTopicTemplate("record-error-total",
                 "The total number of record sends that resulted in errors for a topic");
 
+        /***** Partition level *****/
+        this.partitionTags = new LinkedHashSet<>(topicTags);
+        this.partitionTags.add("partition");
+
+        this.partitionEffectiveLinger = createPartitionTemplate("effective-linger-ms",
+                "The linger time in ms currently applied to a partition when adaptive linger is enabled.");
+        this.partitionBatchFillRatio = createPartitionTemplate("batch-fill-ratio",
+                "The moving average of the fraction of batch.size filled by the batches drained for a partition.");
+        this.partitionSelectionTotal = createPartitionTemplate("partition-selection-total",
+                "The total number of keyless records the load-aware partitioner sent to a partition.");
+        this.partitionLoadWeight = createPartitionTemplate("partition-load-weight",
+                "The weight a partition had when the load-aware partitioner last chose it.");
+        this.partitionBatchSplitTotal = createPartitionTemplate("batch-split-total",
+                "The total number of batches of a partition split because they were too large.");
+        this.partitionCompressionRatioEstimationError = createPartitionTemplate("compression-ratio-estimation-error",
+                "The moving average of the absolute difference between the estimated and actual compression ratios of the batches of a partition.");
+
     }
 
     private MetricName createMetricName(String name, String description) {
@@ -159,6 +235,10 @@ public class SenderMetricsRegistry {
         return createTemplate(name, TOPIC_METRIC_GROUP_NAME, description, this.topicTags);
     }
 
+    private MetricNameTemplate createPartitionTemplate(String name, String description) {
+        return createTemplate(name, PARTITION_METRIC_GROUP_NAME, description, this.partitionTags);
+    }
+
     /**
      * topic level metrics
      **/
@@ -198,6 +278,67 @@ public class SenderMetricsRegistry {
         return this.metrics.metricInstance(this.topicRecordErrorTotal, tags);
     }
 
+    /**
+     * compression type level metrics
+     **/
+    public MetricName compressionCpuTimeAvg(Map<String, String> tags) {
+        return this.metrics.metricInstance(this.compressionCpuTimeAvg, tags);
+    }
+
+    public MetricName compressionCpuTimeRate(Map<String, String> tags) {
+        return this.metrics.metricInstance(this.compressionCpuTimeRate, tags);
+    }
+
+    public MetricName compressionCpuTimeTotal(Map<String, String> tags) {
+        return this.metrics.metricInstance(this.compressionCpuTimeTotal, tags);
+    }
+
+    /**
+     * sender thread level metrics
+     **/
+    public MetricName senderPollTimeAvg(Map<String, String> tags) {
+        return this.metrics.metricInstance(this.senderPollTimeAvg, tags);
+    }
+
+    public MetricName senderPollTimeMax(Map<String, String> tags) {
+        return this.metrics.metricInstance(this.senderPollTimeMax, tags);
+    }
+
+    public MetricName senderQueuedBatches(Map<String, String> tags) {
+        return this.metrics.metricInstance(this.senderQueuedBatches, tags);
+    }
+
+    public MetricName senderRequestsInFlight(Map<String, String> tags) {
+        return this.metrics.metricInstance(this.senderRequestsInFlight, tags);
+    }
+
+    /**
+     * partition level metrics
+     **/
+    public MetricName partitionEffectiveLinger(Map<String, String> tags) {
+        return this.metrics.metricInstance(this.partitionEffectiveLinger, tags);
+    }
+
+    public MetricName partitionBatchFillRatio(Map<String, String> tags) {
+        return this.metrics.metricInstance(this.partitionBatchFillRatio, tags);
+    }
+
+    public MetricName partitionSelectionTotal(Map<String, String> tags) {
+        return this.metrics.metricInstance(this.partitionSelectionTotal, tags);
+    }
+
+    public MetricName partitionLoadWeight(Map<String, String> tags) {
+        return this.metrics.metricInstance(this.partitionLoadWeight, tags);
+    }
+
+    public MetricName partitionBatchSplitTotal(Map<String, String> tags) {
+        return this.metrics.metricInstance(this.partitionBatchSplitTotal, tags);
+    }
+
+    public MetricName partitionCompressionRatioEstimationError(Map<String, String> tags) {
+        return this.metrics.metricInstance(this.partitionCompressionRatioEstimationError, tags);
+    }
+
     public List<MetricNameTemplate> allTemplates() {
         return allTemplates;
     }
@@ -210,6 +351,14 @@ public class SenderMetricsRegistry {
         this.metrics.addMetric(m, measurable);
     }
 
+    /**
+     * Add the metric unless another sender thread has already added it
+     */
+    public synchronized void addMetricIfAbsent(MetricName m, Measurable measurable) {
+        if (this.metrics.metric(m) == null)
+            this.metrics.addMetric(m, measurable);
+    }
+
     public Sensor getSensor(String name) {
         return this.metrics.getSensor(name);
     }
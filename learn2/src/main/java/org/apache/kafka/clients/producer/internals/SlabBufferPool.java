@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Meter;
+import org.apache.kafka.common.utils.Time;
+
+/**
+ * A {@link BufferPool} that keeps a separate free list for each of a fixed set of size classes rather than only for
+ * buffers of the poolable size. Allocations are rounded up to the smallest size class that fits them, so batches that
+ * were enlarged for a big record can be recycled as well. The returned buffer has its limit set to the requested size,
+ * so callers see the same writable space as with the plain pool.
+ * <p>
+ * Allocations larger than the largest size class are neither rounded nor pooled. When the pool runs out of unpooled
+ * memory, buffers are evicted starting from the largest size class.
+ * <p>
+ * Pooled buffers can optionally be allocated off-heap, in which case they are long lived and reused instead of being
+ * garbage collected with each batch.
+ */
+public class SlabBufferPool extends BufferPool {
+
+    private final int[] sizeClasses;
+    private final List<Deque<ByteBuffer>> free;
+    private final boolean direct;
+    private final Sensor[] hits;
+    private final Sensor[] misses;
+    private final Sensor[] evictions;
+    private long freeListMemory;
+    private int freeCount;
+
+    /**
+     * Create a new slab buffer pool
+     *
+     * @param memory        The maximum amount of memory that this buffer pool can allocate
+     * @param sizeClasses   The buffer sizes to cache in the free lists, in ascending order
+     * @param direct        Whether pooled buffers should be allocated off-heap
+     * @param metrics       instance of Metrics
+     * @param time          time instance
+     * @param metricGrpName logical group name for metrics
+     */
+    public SlabBufferPool(long memory, int[] sizeClasses, boolean direct, Metrics metrics, Time time, String metricGrpName) {
+        super(memory, sizeClasses[0], metrics, time, metricGrpName);
+        for (int i = 1; i < sizeClasses.length; i++) {
+            if (sizeClasses[i] <= sizeClasses[i - 1])
+                throw new IllegalArgumentException("Size classes must be in strictly ascending order: " + Arrays.toString(sizeClasses));
+        }
+        this.sizeClasses = sizeClasses.clone();
+        this.direct = direct;
+        this.free = new ArrayList<>(sizeClasses.length);
+        this.hits = new Sensor[sizeClasses.length];
+        this.misses = new Sensor[sizeClasses.length];
+        this.evictions = new Sensor[sizeClasses.length];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            this.free.add(new ArrayDeque<ByteBuffer>());
+            Map<String, String> tags = Collections.singletonMap("size-class", String.valueOf(sizeClasses[i]));
+            this.hits[i] = sizeClassSensor(metrics, metricGrpName, tags, sizeClasses[i], "hit",
+                    "allocations served from the free list of this size class");
+            this.misses[i] = sizeClassSensor(metrics, metricGrpName, tags, sizeClasses[i], "miss",
+                    "allocations of this size class that found its free list empty");
+            this.evictions[i] = sizeClassSensor(metrics, metricGrpName, tags, sizeClasses[i], "eviction",
+                    "pooled buffers of this size class released to satisfy other allocations");
+        }
+    }
+
+    /**
+     * The size classes obtained by doubling the smallest size until it reaches the largest size
+     */
+    public static int[] doublingSizeClasses(int smallest, int largest) {
+        List<Integer> classes = new ArrayList<>();
+        long size = smallest;
+        classes.add(smallest);
+        while (size < largest && size * 2 <= Integer.MAX_VALUE) {
+            size *= 2;
+            classes.add((int) size);
+        }
+        int[] result = new int[classes.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = classes.get(i);
+        return result;
+    }
+
+    private static Sensor sizeClassSensor(Metrics metrics, String metricGrpName, Map<String, String> tags, int size,
+                                          String event, String description) {
+        Sensor sensor = metrics.sensor("bufferpool-" + event + "s-" + size);
+        sensor.add(new Meter(metrics.metricName("bufferpool-" + event + "-rate", metricGrpName,
+                "The number per second of " + description, tags),
+                metrics.metricName("bufferpool-" + event + "-total", metricGrpName,
+                "The total number of " + description, tags)));
+        return sensor;
+    }
+
+    @Override
+    protected int allocationSize(int size) {
+        int index = sizeClassFor(size);
+        if (index < 0 || sizeClasses[index] > totalMemory())
+            return size;
+        return sizeClasses[index];
+    }
+
+    @Override
+    protected ByteBuffer pollFree(int capacity) {
+        int index = indexOf(capacity);
+        if (index < 0)
+            return null;
+        ByteBuffer buffer = free.get(index).pollFirst();
+        if (buffer == null) {
+            misses[index].record();
+            return null;
+        }
+        hits[index].record();
+        freeListMemory -= capacity;
+        freeCount--;
+        return buffer;
+    }
+
+    @Override
+    protected boolean pushFree(ByteBuffer buffer, int size) {
+        int index = indexOf(size);
+        if (index < 0 || size != buffer.capacity())
+            return false;
+        buffer.clear();
+        free.get(index).add(buffer);
+        freeListMemory += size;
+        freeCount++;
+        return true;
+    }
+
+    @Override
+    protected ByteBuffer evictFree() {
+        for (int i = sizeClasses.length - 1; i >= 0; i--) {
+            ByteBuffer buffer = free.get(i).pollLast();
+            if (buffer != null) {
+                evictions[i].record();
+                freeListMemory -= buffer.capacity();
+                freeCount--;
+                return buffer;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected long freeListMemory() {
+        return freeListMemory;
+    }
+
+    @Override
+    protected int freeSize() {
+        return freeCount;
+    }
+
+    @Override
+    protected ByteBuffer allocateByteBuffer(int size) {
+        // only buffers that will be recycled are worth the cost of an off-heap allocation
+        if (direct && indexOf(size) >= 0)
+            return ByteBuffer.allocateDirect(size);
+        return ByteBuffer.allocate(size);
+    }
+
+    /**
+     * The index of the smallest size class that can hold the given size, or -1 if it is larger than all of them
+     */
+    private int sizeClassFor(int size) {
+        for (int i = 0; i < sizeClasses.length; i++) {
+            if (sizeClasses[i] >= size)
+                return i;
+        }
+        return -1;
+    }
+
+    private int indexOf(int capacity) {
+        int index = Arrays.binarySearch(sizeClasses, capacity);
+        return index >= 0 ? index : -1;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the NOTICE
+ * file distributed with this work for additional information regarding copyright ownership. The ASF licenses this file
+ * to You under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.utils.Utils;
+
+/**
+ * 粘性分区缓存：每个topic 记录当前粘住的分区，直到该分区开启新的batch 才切换
+ * <p>
+ * An internal class that keeps track of the partition that keyless records of each topic are currently sent to.
+ * The partition only changes when a new batch is created for it, so records fill up one batch at a time instead of
+ * being spread over every partition.
+ */
+public class StickyPartitionCache {
+
+    private final ConcurrentMap<String, Integer> indexCache = new ConcurrentHashMap<>();
+
+    public int partition(String topic, Cluster cluster) {
+        Integer part = indexCache.get(topic);
+        if (part == null)
+            return nextPartition(topic, cluster, -1);
+        return part;
+    }
+
+    /**
+     * Pick a new sticky partition for the topic if the current one is still {@code prevPartition}. Another thread
+     * may already have switched it, in which case that choice is kept.
+     */
+    public int nextPartition(String topic, Cluster cluster, int prevPartition) {
+        List<PartitionInfo> partitions = cluster.partitionsForTopic(topic);
+        Integer oldPart = indexCache.get(topic);
+        Integer newPart = oldPart;
+        if (oldPart == null || oldPart == prevPartition) {
+            List<PartitionInfo> availablePartitions = cluster.availablePartitionsForTopic(topic);
+            if (availablePartitions.size() < 1) {
+                Integer random = Utils.toPositive(ThreadLocalRandom.current().nextInt());
+                newPart = random % partitions.size();
+            } else if (availablePartitions.size() == 1) {
+                newPart = availablePartitions.get(0).partition();
+            } else {
+                // never stick to the partition whose batch was just completed again
+                List<PartitionInfo> candidates = new ArrayList<>(availablePartitions.size());
+                for (PartitionInfo partition : availablePartitions) {
+                    if (oldPart == null || partition.partition() != oldPart)
+                        candidates.add(partition);
+                }
+                Integer random = Utils.toPositive(ThreadLocalRandom.current().nextInt());
+                newPart = candidates.get(random % candidates.size()).partition();
+            }
+            // only switch if nobody changed the sticky partition in the meantime
+            if (oldPart == null)
+                indexCache.putIfAbsent(topic, newPart);
+            else
+                indexCache.replace(topic, prevPartition, newPart);
+            return indexCache.get(topic);
+        }
+        return newPart;
+    }
+}
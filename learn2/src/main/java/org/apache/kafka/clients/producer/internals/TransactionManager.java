@@ -65,6 +65,13 @@ import static org.apache.kafka.common.record.RecordBatch.NO_PRODUCER_ID;
 public class TransactionManager {
     private static final int NO_INFLIGHT_REQUEST_CORRELATION_ID = -1;
 
+    /**
+     * The number of batches the broker retains per producer and partition to detect duplicates. An idempotent producer
+     * keeps at most this many batches in flight for each partition, however many requests it has in flight for each
+     * connection, so that a retried batch is always among the ones the broker remembers.
+     */
+    public static final int MAX_IN_FLIGHT_BATCHES_PER_PARTITION = 5;
+
     private final Logger log;
     private final String transactionalId;
     private final int transactionTimeoutMs;
@@ -427,12 +434,13 @@ public class TransactionManager {
         if (!batch.hasSequence())
             throw new IllegalStateException("Can't track batch for partition " + batch.topicPartition + " when sequence is not set.");
         if (!inflightBatchesBySequence.containsKey(batch.topicPartition)) {
-            inflightBatchesBySequence.put(batch.topicPartition, new PriorityQueue<>(5, new Comparator<ProducerBatch>() {
-                @Override
-                public int compare(ProducerBatch o1, ProducerBatch o2) {
-                    return o1.baseSequence() - o2.baseSequence();
-                }
-            }));
+            inflightBatchesBySequence.put(batch.topicPartition, new PriorityQueue<>(MAX_IN_FLIGHT_BATCHES_PER_PARTITION,
+                new Comparator<ProducerBatch>() {
+                    @Override
+                    public int compare(ProducerBatch o1, ProducerBatch o2) {
+                        return o1.baseSequence() - o2.baseSequence();
+                    }
+                }));
         }
         inflightBatchesBySequence.get(batch.topicPartition).offer(batch);
     }
@@ -547,6 +555,15 @@ public class TransactionManager {
         lastAckedSequence.remove(topicPartition);
     }
 
+    /**
+     * Whether the partition has as many batches in flight as the broker retains to detect duplicates, in which case no
+     * new batch may be sent to it until one of them completes.
+     */
+    synchronized boolean hasMaxInFlightBatches(TopicPartition topicPartition) {
+        PriorityQueue<ProducerBatch> queue = inflightBatchesBySequence.get(topicPartition);
+        return queue != null && queue.size() >= MAX_IN_FLIGHT_BATCHES_PER_PARTITION;
+    }
+
     synchronized boolean hasInflightBatches(TopicPartition topicPartition) {
         return inflightBatchesBySequence.containsKey(topicPartition) && !inflightBatchesBySequence.get(topicPartition).isEmpty();
     }
@@ -19,6 +19,7 @@ package org.apache.kafka.common.header.internals;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -29,7 +30,8 @@ import org.apache.kafka.common.utils.AbstractIterator;
 
 public class RecordHeaders implements Headers {
 
-    private final List<Header> headers;
+    // 消息头列表在添加第一个消息头时才创建，没有消息头的消息不分配ArrayList
+    private List<Header> headers;
     private volatile boolean isReadOnly;
 
     public RecordHeaders() {
@@ -37,9 +39,7 @@ public class RecordHeaders implements Headers {
     }
 
     public RecordHeaders(Header[] headers) {
-        if (headers == null) {
-            this.headers = new ArrayList<>();
-        } else {
+        if (headers != null && headers.length > 0) {
             this.headers = new ArrayList<>(Arrays.asList(headers));
         }
     }
@@ -47,21 +47,28 @@ public class RecordHeaders implements Headers {
     public RecordHeaders(Iterable<Header> headers) {
         //Use efficient copy constructor if possible, fallback to iteration otherwise
         if (headers == null) {
-            this.headers = new ArrayList<>();
+            return;
         } else if (headers instanceof RecordHeaders) {
-            this.headers = new ArrayList<>(((RecordHeaders) headers).headers);
+            List<Header> other = ((RecordHeaders) headers).headers;
+            if (other != null && !other.isEmpty())
+                this.headers = new ArrayList<>(other);
         } else if (headers instanceof Collection) {
-            this.headers = new ArrayList<>((Collection<Header>) headers);
+            if (!((Collection<Header>) headers).isEmpty())
+                this.headers = new ArrayList<>((Collection<Header>) headers);
         } else {
-            this.headers = new ArrayList<>();
-            for (Header header : headers)
+            for (Header header : headers) {
+                if (this.headers == null)
+                    this.headers = new ArrayList<>();
                 this.headers.add(header);
+            }
         }
     }
 
     @Override
     public Headers add(Header header) throws IllegalStateException {
         canWrite();
+        if (headers == null)
+            headers = new ArrayList<>();
         headers.add(header);
         return this;
     }
@@ -87,6 +94,8 @@ public class RecordHeaders implements Headers {
     @Override
     public Header lastHeader(String key) {
         checkKey(key);
+        if (headers == null)
+            return null;
         for (int i = headers.size() - 1; i >= 0; i--) {
             Header header = headers.get(i);
             if (header.key().equals(key)) {
@@ -102,14 +111,14 @@ public class RecordHeaders implements Headers {
         return new Iterable<Header>() {
             @Override
             public Iterator<Header> iterator() {
-                return new FilterByKeyIterator(headers.iterator(), key);
+                return new FilterByKeyIterator(headerList().iterator(), key);
             }
         };
     }
 
     @Override
     public Iterator<Header> iterator() {
-        return closeAware(headers.iterator());
+        return closeAware(headerList().iterator());
     }
 
     public void setReadOnly() {
@@ -117,7 +126,11 @@ public class RecordHeaders implements Headers {
     }
 
     public Header[] toArray() {
-        return headers.isEmpty() ? Record.EMPTY_HEADERS : headers.toArray(new Header[headers.size()]);
+        return headers == null || headers.isEmpty() ? Record.EMPTY_HEADERS : headers.toArray(new Header[headers.size()]);
+    }
+
+    private List<Header> headerList() {
+        return headers == null ? Collections.<Header>emptyList() : headers;
     }
 
     private void checkKey(String key) {
@@ -162,18 +175,18 @@ public class RecordHeaders implements Headers {
 
         RecordHeaders headers1 = (RecordHeaders) o;
 
-        return headers != null ? headers.equals(headers1.headers) : headers1.headers == null;
+        return headerList().equals(headers1.headerList());
     }
 
     @Override
     public int hashCode() {
-        return headers != null ? headers.hashCode() : 0;
+        return headerList().hashCode();
     }
 
     @Override
     public String toString() {
         return "RecordHeaders(" +
-                "headers = " + headers +
+                "headers = " + headerList() +
                 ", isReadOnly = " + isReadOnly +
                 ')';
     }
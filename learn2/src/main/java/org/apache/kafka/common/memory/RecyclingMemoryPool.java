@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.memory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 可复用缓冲区的内存池，按2的幂大小分级缓存释放的缓冲区，避免每次接收都分配新的大数组
+ * <p>
+ * A pool that bounds the memory of the buffers it hands out and keeps released buffers to serve later allocations of
+ * the same size class, so that large receives do not each allocate a new array that lives long enough to be promoted.
+ * Buffers are allocated in chunks whose size is the requested size rounded up to a power of two, and the buffer handed
+ * out is a view of the requested size of such a chunk. Memory is accounted by chunk.
+ * <p>
+ * Allocations smaller than the given threshold are served from the heap without being accounted, so that small
+ * responses, such as heartbeats, are never held up by memory pressure. Like a non-strict {@link SimpleMemoryPool} any
+ * allocation succeeds while some memory is available, so the memory in use may exceed the size of the pool by up to one
+ * allocation. Released chunks are only kept as long as the chunks in use and the kept chunks fit in the pool.
+ */
+public class RecyclingMemoryPool implements MemoryPool {
+    private static final Logger log = LoggerFactory.getLogger(RecyclingMemoryPool.class);
+
+    private final long sizeBytes;
+    private final int minPooledBytes;
+    /**
+     * 按chunk 大小索引的空闲chunk
+     */
+    private final Map<Integer, Deque<ByteBuffer>> freeChunks = new HashMap<>();
+    /**
+     * 已分配出去的缓冲区到其所属chunk 的映射
+     */
+    private final Map<ByteBuffer, ByteBuffer> allocated = new IdentityHashMap<>();
+    private final Sensor oomTimeSensor;
+    private long allocatedBytes;
+    private long cachedBytes;
+    private long startOfNoMemPeriod; //nanoseconds
+
+    public RecyclingMemoryPool(long sizeBytes, int minPooledBytes, Sensor oomPeriodSensor) {
+        if (sizeBytes <= 0 || minPooledBytes < 2)
+            throw new IllegalArgumentException("must provide a positive size and a minimum pooled size of at least 2, "
+                    + "provided " + sizeBytes + " and " + minPooledBytes + " respectively");
+        this.sizeBytes = sizeBytes;
+        this.minPooledBytes = minPooledBytes;
+        this.oomTimeSensor = oomPeriodSensor;
+    }
+
+    @Override
+    public ByteBuffer tryAllocate(int sizeBytes) {
+        if (sizeBytes < 1)
+            throw new IllegalArgumentException("requested size " + sizeBytes + "<=0");
+        if (sizeBytes < minPooledBytes)
+            return ByteBuffer.allocate(sizeBytes);
+
+        synchronized (this) {
+            if (allocatedBytes >= this.sizeBytes) {
+                if (oomTimeSensor != null && startOfNoMemPeriod == 0)
+                    startOfNoMemPeriod = System.nanoTime();
+                log.trace("refused to allocate buffer of size {}", sizeBytes);
+                return null;
+            }
+            int chunkSize = chunkSize(sizeBytes);
+            Deque<ByteBuffer> free = freeChunks.get(chunkSize);
+            ByteBuffer chunk = free == null ? null : free.pollFirst();
+            if (chunk != null) {
+                cachedBytes -= chunkSize;
+            } else {
+                evictCachedChunks(chunkSize);
+                chunk = ByteBuffer.allocate(chunkSize);
+            }
+            allocatedBytes += chunkSize;
+            maybeRecordEndOfDrySpell();
+
+            chunk.clear();
+            chunk.limit(sizeBytes);
+            ByteBuffer buffer = chunk.slice();
+            allocated.put(buffer, chunk);
+            return buffer;
+        }
+    }
+
+    @Override
+    public void release(ByteBuffer previouslyAllocated) {
+        if (previouslyAllocated == null)
+            throw new IllegalArgumentException("provided null buffer");
+
+        synchronized (this) {
+            ByteBuffer chunk = allocated.remove(previouslyAllocated);
+            if (chunk == null) {
+                if (previouslyAllocated.capacity() < minPooledBytes)
+                    return;
+                throw new IllegalArgumentException("returned buffer was never allocated by this pool or was already released");
+            }
+            allocatedBytes -= chunk.capacity();
+            if (allocatedBytes + cachedBytes + chunk.capacity() <= sizeBytes) {
+                Deque<ByteBuffer> free = freeChunks.get(chunk.capacity());
+                if (free == null) {
+                    free = new ArrayDeque<>();
+                    freeChunks.put(chunk.capacity(), free);
+                }
+                free.addFirst(chunk);
+                cachedBytes += chunk.capacity();
+            }
+            maybeRecordEndOfDrySpell();
+        }
+    }
+
+    @Override
+    public long size() {
+        return sizeBytes;
+    }
+
+    @Override
+    public synchronized long availableMemory() {
+        return sizeBytes - allocatedBytes;
+    }
+
+    @Override
+    public synchronized boolean isOutOfMemory() {
+        return allocatedBytes >= sizeBytes;
+    }
+
+    /**
+     * The memory of the released chunks kept for later allocations, which is part of {@link #availableMemory()}
+     */
+    public synchronized long cachedMemory() {
+        return cachedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RecyclingMemoryPool{" + Utils.formatBytes(allocatedBytes) + "/" + Utils.formatBytes(sizeBytes) + " used, "
+                + Utils.formatBytes(cachedBytes) + " cached}";
+    }
+
+    private int chunkSize(int sizeBytes) {
+        if (sizeBytes > (1 << 30))
+            return sizeBytes;
+        int chunkSize = Integer.highestOneBit(sizeBytes - 1) << 1;
+        return chunkSize > this.sizeBytes ? sizeBytes : chunkSize;
+    }
+
+    /**
+     * Drop kept chunks until a new chunk of the given size fits in the pool along with the chunks in use and the kept
+     * ones. Called with the lock held.
+     */
+    private void evictCachedChunks(int chunkSize) {
+        Iterator<Deque<ByteBuffer>> it = freeChunks.values().iterator();
+        while (allocatedBytes + cachedBytes + chunkSize > sizeBytes && it.hasNext()) {
+            Deque<ByteBuffer> free = it.next();
+            while (allocatedBytes + cachedBytes + chunkSize > sizeBytes && !free.isEmpty())
+                cachedBytes -= free.pollLast().capacity();
+            if (free.isEmpty())
+                it.remove();
+        }
+    }
+
+    private void maybeRecordEndOfDrySpell() {
+        if (oomTimeSensor != null && startOfNoMemPeriod != 0) {
+            //how long were we refusing allocation requests for
+            oomTimeSensor.record((System.nanoTime() - startOfNoMemPeriod) / 1000000.0); //fractional (double) millis
+            startOfNoMemPeriod = 0;
+        }
+    }
+}
@@ -170,12 +170,35 @@ public class NetworkReceive implements Receive {
 
     @Override
     public void close() throws IOException {
+        releasePayload();
+    }
+
+    /**
+     * Return the memory of the payload to the pool it was allocated from. The payload must not be used afterwards.
+     */
+    public void releasePayload() {
         if (buffer != null && buffer != EMPTY_BUFFER) {
             memoryPool.release(buffer);
             buffer = null;
         }
     }
 
+    /**
+     * 将消息体拷贝出内存池并立即归还缓冲区，用于解析后仍会引用消息体、但不需要占用内存池的响应
+     * <p>
+     * Return the payload in memory that does not belong to the pool: a payload allocated from a pool is copied to the
+     * heap and its buffer released, so that whatever is parsed from it can be kept for as long as needed.
+     */
+    public ByteBuffer detachPayload() {
+        if (memoryPool == MemoryPool.NONE || buffer == null || buffer == EMPTY_BUFFER)
+            return buffer;
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        copy.flip();
+        releasePayload();
+        return copy;
+    }
+
     public ByteBuffer payload() {
         return this.buffer;
     }
@@ -88,6 +88,7 @@ import org.apache.kafka.common.errors.UnknownProducerIdException;
 import org.apache.kafka.common.errors.UnknownServerException;
 import org.apache.kafka.common.errors.UnknownTopicOrPartitionException;
 import org.apache.kafka.common.errors.UnsupportedByAuthenticationException;
+import org.apache.kafka.common.errors.UnsupportedCompressionTypeException;
 import org.apache.kafka.common.errors.UnsupportedForMessageFormatException;
 import org.apache.kafka.common.errors.UnsupportedSaslMechanismException;
 import org.apache.kafka.common.errors.UnsupportedVersionException;
@@ -633,6 +634,13 @@ public enum Errors {
                     return new ListenerNotFoundException(message);
                 }
             }),
+    UNSUPPORTED_COMPRESSION_TYPE(76, "The requesting client does not support the compression type of given partition.",
+            new ApiExceptionBuilder() {
+                @Override
+                public ApiException build(String message) {
+                    return new UnsupportedCompressionTypeException(message);
+                }
+            }),
     ;
 
     private interface ApiExceptionBuilder {
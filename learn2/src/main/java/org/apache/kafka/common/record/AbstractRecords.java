@@ -136,6 +136,21 @@ public abstract class AbstractRecords implements Records {
             return Records.LOG_OVERHEAD + LegacyRecord.recordSize(magic, key, value);
     }
 
+    /**
+     * Get an upper bound estimate on the batch size needed to hold a record with the given key and value sizes, where
+     * a negative size stands for a null key or value.
+     */
+    public static int estimateSizeInBytesUpperBound(byte magic, CompressionType compressionType, int keySize,
+                                                    int valueSize, Header[] headers) {
+        if (magic >= RecordBatch.MAGIC_VALUE_V2)
+            return DefaultRecordBatch.estimateBatchSizeUpperBound(keySize, valueSize, headers);
+        int recordSize = LegacyRecord.recordSize(magic, Math.max(keySize, 0), Math.max(valueSize, 0));
+        if (compressionType != CompressionType.NONE)
+            return Records.LOG_OVERHEAD + LegacyRecord.recordOverhead(magic) + recordSize;
+        else
+            return Records.LOG_OVERHEAD + recordSize;
+    }
+
     /**
      * Return the size of the record batch header.
      * <p>
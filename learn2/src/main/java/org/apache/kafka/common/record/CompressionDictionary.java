@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.record;
+
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.utils.ByteUtils;
+import org.apache.kafka.common.utils.Crc32C;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 预训练的压缩字典，用于压缩小消息的value
+ * <p>
+ * A preset dictionary for compressing individual record values with DEFLATE. Batch compression works poorly for
+ * topics with many small records since every batch starts with an empty window; compressing each value against a
+ * dictionary trained on sample records (see {@link CompressionDictionaryTrainer}) lets even the first bytes of a
+ * record refer back to the common content.
+ * <p>
+ * Brokers decompress and validate compressed batches, so the dictionary is not applied by the batch codec. Instead
+ * the producer replaces the value with its dictionary compressed form and adds a {@link #HEADER_KEY} header holding
+ * the {@link #id()} of the dictionary. The consumer looks up the dictionary by that id and restores the value before
+ * it is deserialized. The batch can still be compressed with any {@link CompressionType} on top.
+ * <p>
+ * The compressed value is the varint encoded size of the original value followed by the raw DEFLATE stream.
+ * <p>
+ * The {@link Deflater}s and {@link Inflater}s hold native memory. They are pooled by the dictionary and released when it
+ * is closed by the producer or consumer that loaded it.
+ */
+public final class CompressionDictionary implements Closeable {
+
+    /**
+     * The header holding the 4 byte id of the dictionary a record value was compressed with
+     */
+    public static final String HEADER_KEY = "compression.dictionary.id";
+
+    /**
+     * DEFLATE can only refer back 32 KB, any dictionary content before that is never used
+     */
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * DEFLATE expands at most 1032 times, a larger decompressed size can only come from a corrupt value
+     */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    private final byte[] dictionary;
+    private final int id;
+    private final Header header;
+    // 空闲的Deflater/Inflater，关闭字典时释放其native 内存
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed = false;
+
+    public CompressionDictionary(byte[] dictionary) {
+        if (dictionary.length > MAX_DICTIONARY_SIZE)
+            dictionary = Arrays.copyOfRange(dictionary, dictionary.length - MAX_DICTIONARY_SIZE, dictionary.length);
+        this.dictionary = dictionary;
+        this.id = (int) Crc32C.compute(dictionary, 0, dictionary.length);
+        // 用byte[]构造，header在线程间共享，ByteBuffer形式的value()会惰性转换且非线程安全
+        this.header = new RecordHeader(HEADER_KEY, ByteBuffer.allocate(4).putInt(id).array());
+    }
+
+    /**
+     * Load a dictionary written by {@link CompressionDictionaryTrainer}.
+     */
+    public static CompressionDictionary load(String path) {
+        try {
+            return new CompressionDictionary(Files.readAllBytes(Paths.get(path)));
+        } catch (IOException e) {
+            throw new KafkaException("Failed to read compression dictionary " + path, e);
+        }
+    }
+
+    /**
+     * The id of the dictionary, the CRC32C of its content
+     */
+    public int id() {
+        return id;
+    }
+
+    /**
+     * The header to add to records whose value was compressed with this dictionary
+     */
+    public Header header() {
+        return header;
+    }
+
+    /**
+     * The dictionary id in the given {@link #HEADER_KEY} header
+     */
+    public static int id(Header header) {
+        byte[] value = header.value();
+        if (value == null || value.length != 4)
+            throw new KafkaException("Invalid " + HEADER_KEY + " header of " + (value == null ? 0 : value.length) +
+                    " bytes");
+        return ByteBuffer.wrap(value).getInt();
+    }
+
+    /**
+     * Compress a value with this dictionary.
+     *
+     * @return the compressed value, or null if compressing does not make the value smaller
+     */
+    public byte[] compress(byte[] value) {
+        int sizeOfSize = ByteUtils.sizeOfVarint(value.length);
+        // anything that does not fit in the size of the input is not worth it
+        if (value.length <= sizeOfSize)
+            return null;
+        byte[] compressed = new byte[value.length];
+        ByteUtils.writeVarint(value.length, ByteBuffer.wrap(compressed));
+
+        Deflater deflater = deflaters.poll();
+        if (deflater == null)
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(value);
+            deflater.finish();
+            int written = deflater.deflate(compressed, sizeOfSize, compressed.length - sizeOfSize);
+            if (!deflater.finished())
+                return null;
+            return Arrays.copyOf(compressed, sizeOfSize + written);
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+            if (closed && deflaters.remove(deflater))
+                deflater.end();
+        }
+    }
+
+    /**
+     * The size of a value compressed with a dictionary once it is restored, which is stored ahead of the compressed data.
+     */
+    public static int decompressedSize(ByteBuffer compressed) {
+        return ByteUtils.readVarint(compressed.duplicate());
+    }
+
+    /**
+     * Restore a value compressed with this dictionary.
+     *
+     * @throws KafkaException if the value is corrupt, including when its stored size is negative or larger than the
+     *                        compressed data can expand to
+     */
+    public byte[] decompress(ByteBuffer compressed) {
+        ByteBuffer buffer = compressed.duplicate();
+        int size = ByteUtils.readVarint(buffer);
+        int length = buffer.remaining();
+        if (size < 0 || size > (long) length * MAX_DEFLATE_RATIO)
+            throw new KafkaException("Invalid size " + size + " of a dictionary compressed value of " + length +
+                    " bytes");
+        byte[] input;
+        int offset;
+        if (buffer.hasArray()) {
+            input = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        } else {
+            input = new byte[length];
+            buffer.get(input);
+            offset = 0;
+        }
+
+        Inflater inflater = inflaters.poll();
+        if (inflater == null)
+            inflater = new Inflater(true);
+        byte[] value = new byte[size];
+        try {
+            inflater.setDictionary(dictionary);
+            inflater.setInput(input, offset, length);
+            int read = 0;
+            while (read < size) {
+                int n = inflater.inflate(value, read, size - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput()))
+                    break;
+                read += n;
+            }
+            if (read != size)
+                throw new KafkaException("Dictionary compressed value decompressed to " + read + " bytes instead of " +
+                        size);
+        } catch (DataFormatException e) {
+            throw new KafkaException("Failed to decompress value with compression dictionary " + id, e);
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+            if (closed && inflaters.remove(inflater))
+                inflater.end();
+        }
+        return value;
+    }
+
+    /**
+     * Release the native memory of the pooled deflaters and inflaters. The dictionary can still be used afterwards, e.g.
+     * by records deserialized lazily, but then ends each deflater or inflater after use.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null)
+            deflater.end();
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null)
+            inflater.end();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.record;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 从采样的消息中训练压缩字典
+ * <p>
+ * Trains a {@link CompressionDictionary} from sample record values. The dictionary is made of the 8 byte sequences
+ * that occur in the most samples, so that field names, enum values and other content shared by many records can be
+ * matched by DEFLATE from the first byte of a value. The most common sequences are placed at the end of the
+ * dictionary, where they are cheapest to refer to.
+ * <p>
+ * The samples should be representative values of the topic the dictionary is used for; a few thousand is plenty.
+ */
+public final class CompressionDictionaryTrainer {
+
+    private static final int SEGMENT_SIZE = 8;
+
+    private CompressionDictionaryTrainer() {
+    }
+
+    /**
+     * Train a dictionary of at most {@code maxSize} bytes from the given samples.
+     */
+    public static byte[] train(Iterable<byte[]> samples, int maxSize) {
+        maxSize = Math.min(maxSize, CompressionDictionary.MAX_DICTIONARY_SIZE);
+
+        // number of samples each segment occurs in, and the last sample it was counted for
+        final Map<Long, int[]> segments = new HashMap<>();
+        int sampleIndex = 0;
+        for (byte[] sample : samples) {
+            for (int i = 0; i + SEGMENT_SIZE <= sample.length; i++) {
+                Long segment = segment(sample, i);
+                int[] count = segments.get(segment);
+                if (count == null) {
+                    segments.put(segment, new int[]{1, sampleIndex});
+                } else if (count[1] != sampleIndex) {
+                    count[0]++;
+                    count[1] = sampleIndex;
+                }
+            }
+            sampleIndex++;
+        }
+
+        List<Long> candidates = new ArrayList<>();
+        for (Map.Entry<Long, int[]> entry : segments.entrySet()) {
+            // a sequence seen in a single sample says nothing about the other records
+            if (entry.getValue()[0] > 1)
+                candidates.add(entry.getKey());
+        }
+        Collections.sort(candidates, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                return Integer.compare(segments.get(b)[0], segments.get(a)[0]);
+            }
+        });
+
+        int numSegments = Math.min(candidates.size(), maxSize / SEGMENT_SIZE);
+        byte[] dictionary = new byte[numSegments * SEGMENT_SIZE];
+        for (int i = 0; i < numSegments; i++) {
+            int position = dictionary.length - (i + 1) * SEGMENT_SIZE;
+            long segment = candidates.get(i);
+            for (int j = SEGMENT_SIZE - 1; j >= 0; j--) {
+                dictionary[position + j] = (byte) segment;
+                segment >>>= 8;
+            }
+        }
+        return dictionary;
+    }
+
+    private static long segment(byte[] sample, int offset) {
+        long segment = 0;
+        for (int i = 0; i < SEGMENT_SIZE; i++)
+            segment = (segment << 8) | (sample[offset + i] & 0xFF);
+        return segment;
+    }
+
+    /**
+     * Train a dictionary from a file with one sample per line and write it to the given file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("USAGE: java " + CompressionDictionaryTrainer.class.getName() +
+                    " <samples-file> <dictionary-file> [max-size]");
+            System.exit(1);
+        }
+        int maxSize = args.length > 2 ? Integer.parseInt(args[2]) : CompressionDictionary.MAX_DICTIONARY_SIZE;
+        List<byte[]> samples = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8))
+            samples.add(line.getBytes(StandardCharsets.UTF_8));
+        byte[] dictionary = train(samples, maxSize);
+        Files.write(Paths.get(args[1]), dictionary);
+        CompressionDictionary compressionDictionary = new CompressionDictionary(dictionary);
+        System.out.println("Wrote dictionary " + compressionDictionary.id() + " of " + dictionary.length + " bytes to " +
+                args[1]);
+    }
+}
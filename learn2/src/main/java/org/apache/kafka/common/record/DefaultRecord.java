@@ -18,6 +18,7 @@ package org.apache.kafka.common.record;
 
 import org.apache.kafka.common.header.Header;
 import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.serialization.SerializedValue;
 import org.apache.kafka.common.utils.ByteUtils;
 import org.apache.kafka.common.utils.Checksums;
 import org.apache.kafka.common.utils.Crc32C;
@@ -204,6 +205,55 @@ public class DefaultRecord implements Record {
             Utils.writeTo(out, value, valueSize);
         }
 
+        writeHeaders(out, headers);
+        return ByteUtils.sizeOfVarint(sizeInBytes) + sizeInBytes;
+    }
+
+    /**
+     * Write the record to `out` and return its size. The value is written by the {@link SerializedValue} itself
+     * rather than copied from a buffer. If the value does not write the number of bytes it reported, an
+     * IllegalStateException is thrown after part of the record has been written, so `out` must be one the caller can
+     * rewind.
+     */
+    public static int writeTo(DataOutputStream out,
+                              int offsetDelta,
+                              long timestampDelta,
+                              ByteBuffer key,
+                              SerializedValue value,
+                              Header[] headers) throws IOException {
+        int keySize = key == null ? -1 : key.remaining();
+        int valueSize = value.sizeInBytes();
+        if (valueSize < 0)
+            throw new IllegalStateException("Serialized value reported a negative size of " + valueSize + " bytes");
+        int sizeInBytes = sizeOfBodyInBytes(offsetDelta, timestampDelta, keySize, valueSize, headers);
+        ByteUtils.writeVarint(sizeInBytes, out);
+
+        byte attributes = 0; // there are no used record attributes at the moment
+        out.write(attributes);
+
+        ByteUtils.writeVarlong(timestampDelta, out);
+        ByteUtils.writeVarint(offsetDelta, out);
+
+        if (key == null) {
+            ByteUtils.writeVarint(-1, out);
+        } else {
+            ByteUtils.writeVarint(keySize, out);
+            Utils.writeTo(out, key, keySize);
+        }
+
+        ByteUtils.writeVarint(valueSize, out);
+        int written = out.size();
+        value.writeTo(out);
+        written = out.size() - written;
+        if (written != valueSize)
+            throw new IllegalStateException("Serialized value wrote " + written + " bytes but reported a size of "
+                    + valueSize + " bytes");
+
+        writeHeaders(out, headers);
+        return ByteUtils.sizeOfVarint(sizeInBytes) + sizeInBytes;
+    }
+
+    private static void writeHeaders(DataOutputStream out, Header[] headers) throws IOException {
         if (headers == null)
             throw new IllegalArgumentException("Headers cannot be null");
 
@@ -226,8 +276,6 @@ public class DefaultRecord implements Record {
                 out.write(headerValue);
             }
         }
-
-        return ByteUtils.sizeOfVarint(sizeInBytes) + sizeInBytes;
     }
 
     @Override
@@ -472,6 +520,10 @@ public class DefaultRecord implements Record {
     static int recordSizeUpperBound(ByteBuffer key, ByteBuffer value, Header[] headers) {
         int keySize = key == null ? -1 : key.remaining();
         int valueSize = value == null ? -1 : value.remaining();
+        return recordSizeUpperBound(keySize, valueSize, headers);
+    }
+
+    static int recordSizeUpperBound(int keySize, int valueSize, Header[] headers) {
         return MAX_RECORD_OVERHEAD + sizeOf(keySize, valueSize, headers);
     }
 
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.record;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffers the output of a zstd decompression stream in a buffer taken from a {@link BufferSupplier}.
+ * <p>
+ * Records are read a few bytes at a time (varints, attributes, headers) and every read from the zstd stream is a
+ * JNI call, so reads need to be served from a heap buffer. Unlike a {@link java.io.BufferedInputStream}, the buffer
+ * is returned to the supplier on close, so a consumer iterating over many small batches reuses the same one.
+ */
+public final class KafkaZstdInputStream extends InputStream {
+
+    // the same size GZIP uses for its output buffer
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // the zstd stream returns 0 bytes when it needs more input than one read gave it, e.g. at the end of a frame;
+    // a stream that keeps doing so is corrupt
+    private static final int MAX_EMPTY_READS = 16;
+
+    private final InputStream zstdStream;
+    private final BufferSupplier bufferSupplier;
+    private final ByteBuffer buffer;
+    private boolean finished = false;
+
+    public KafkaZstdInputStream(InputStream zstdStream, BufferSupplier bufferSupplier) {
+        this.zstdStream = zstdStream;
+        this.bufferSupplier = bufferSupplier;
+        this.buffer = bufferSupplier.get(BUFFER_SIZE);
+        this.buffer.limit(0);
+    }
+
+    /**
+     * Refill the buffer from the zstd stream.
+     *
+     * @return false if the end of the stream has been reached
+     */
+    private boolean fill() throws IOException {
+        if (finished)
+            return false;
+        buffer.clear();
+        int read = 0;
+        for (int emptyReads = 0; read == 0; emptyReads++) {
+            if (emptyReads == MAX_EMPTY_READS)
+                throw new IOException("Zstd stream returned no data after " + MAX_EMPTY_READS + " reads");
+            read = zstdStream.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+        }
+        if (read < 0) {
+            finished = true;
+            buffer.limit(0);
+            return false;
+        }
+        buffer.limit(read);
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!buffer.hasRemaining() && !fill())
+            return -1;
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!buffer.hasRemaining()) {
+            // large reads (e.g. record values) go straight to the zstd stream
+            if (len >= buffer.capacity() && !finished) {
+                int read = zstdStream.read(b, off, len);
+                if (read < 0)
+                    finished = true;
+                if (read != 0)
+                    return read;
+                // no data yet, retry through the buffer which bounds the empty reads
+            }
+            if (!fill())
+                return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (!buffer.hasRemaining() && !fill())
+                break;
+            int toSkip = (int) Math.min(n - skipped, buffer.remaining());
+            buffer.position(buffer.position() + toSkip);
+            skipped += toSkip;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        bufferSupplier.release(buffer);
+        zstdStream.close();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
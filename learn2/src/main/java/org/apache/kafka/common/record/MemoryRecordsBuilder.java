@@ -19,8 +19,10 @@ package org.apache.kafka.common.record;
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.header.Header;
 import org.apache.kafka.common.protocol.types.Struct;
+import org.apache.kafka.common.serialization.SerializedValue;
 import org.apache.kafka.common.utils.ByteBufferOutputStream;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -102,6 +104,8 @@ public class MemoryRecordsBuilder {
                 throw new IllegalArgumentException("Transactional records are not supported for magic " + magic);
             if (isControlBatch)
                 throw new IllegalArgumentException("Control records are not supported for magic " + magic);
+            if (compressionType == CompressionType.ZSTD)
+                throw new IllegalArgumentException("ZStandard compression is not supported for magic " + magic);
         }
 
         this.magic = magic;
@@ -399,21 +403,7 @@ public class MemoryRecordsBuilder {
     private Long appendWithOffset(long offset, boolean isControlRecord, long timestamp, ByteBuffer key,
                                   ByteBuffer value, Header[] headers) {
         try {
-            if (isControlRecord != isControlBatch)
-                throw new IllegalArgumentException("Control records can only be appended to control batches");
-
-            if (lastOffset != null && offset <= lastOffset)
-                throw new IllegalArgumentException(String.format("Illegal offset %s following previous offset %s " +
-                        "(Offsets must increase monotonically).", offset, lastOffset));
-
-            if (timestamp < 0 && timestamp != RecordBatch.NO_TIMESTAMP)
-                throw new IllegalArgumentException("Invalid negative timestamp " + timestamp);
-
-            if (magic < RecordBatch.MAGIC_VALUE_V2 && headers != null && headers.length > 0)
-                throw new IllegalArgumentException("Magic v" + magic + " does not support record headers");
-
-            if (firstTimestamp == null)
-                firstTimestamp = timestamp;
+            validateAppend(offset, isControlRecord, timestamp, headers);
 
             if (magic > RecordBatch.MAGIC_VALUE_V1) {
                 appendDefaultRecord(offset, timestamp, key, value, headers);
@@ -426,6 +416,24 @@ public class MemoryRecordsBuilder {
         }
     }
 
+    private void validateAppend(long offset, boolean isControlRecord, long timestamp, Header[] headers) {
+        if (isControlRecord != isControlBatch)
+            throw new IllegalArgumentException("Control records can only be appended to control batches");
+
+        if (lastOffset != null && offset <= lastOffset)
+            throw new IllegalArgumentException(String.format("Illegal offset %s following previous offset %s " +
+                    "(Offsets must increase monotonically).", offset, lastOffset));
+
+        if (timestamp < 0 && timestamp != RecordBatch.NO_TIMESTAMP)
+            throw new IllegalArgumentException("Invalid negative timestamp " + timestamp);
+
+        if (magic < RecordBatch.MAGIC_VALUE_V2 && headers != null && headers.length > 0)
+            throw new IllegalArgumentException("Magic v" + magic + " does not support record headers");
+
+        if (firstTimestamp == null)
+            firstTimestamp = timestamp;
+    }
+
     /**
      * Append a new record at the given offset.
      *
@@ -542,6 +550,57 @@ public class MemoryRecordsBuilder {
         return append(timestamp, wrapNullable(key), wrapNullable(value), headers);
     }
 
+    /**
+     * Append a new record at the next sequential offset, letting the serialized value write itself to the append
+     * stream. Message format v0 and v1 need the value to compute the record CRC, so it is copied to a byte array first.
+     * So is the value of a compressed batch, since the compression stream cannot be rewound if the value does not write
+     * the number of bytes it reported. If writing the record fails, nothing of it is left in the batch.
+     *
+     * @param timestamp The record timestamp
+     * @param key       The record key
+     * @param value     The serialized record value
+     * @param headers   The record headers if there are any
+     * @return CRC of the record or null if record-level CRC is not supported for the message format
+     */
+    public Long append(long timestamp, ByteBuffer key, SerializedValue value, Header[] headers) {
+        long offset = nextSequentialOffset();
+        try {
+            if (magic < RecordBatch.MAGIC_VALUE_V2 || compressionType != CompressionType.NONE)
+                return appendWithOffset(offset, false, timestamp, key, valueBytes(value), headers);
+            Long previousFirstTimestamp = firstTimestamp;
+            validateAppend(offset, false, timestamp, headers);
+            ensureOpenForRecordAppend();
+            int offsetDelta = (int) (offset - baseOffset);
+            long timestampDelta = timestamp - firstTimestamp;
+            // 未压缩时记录直接写入buffer，写入失败则回退到这条记录之前，避免留下不完整的记录
+            int position = bufferStream.position();
+            int sizeInBytes;
+            try {
+                sizeInBytes = DefaultRecord.writeTo(appendStream, offsetDelta, timestampDelta, key, value, headers);
+            } catch (IOException | RuntimeException e) {
+                bufferStream.position(position);
+                firstTimestamp = previousFirstTimestamp;
+                throw e;
+            }
+            recordWritten(offset, timestamp, sizeInBytes);
+            return null;
+        } catch (IOException e) {
+            throw new KafkaException("I/O exception when writing to the append stream, closing", e);
+        }
+    }
+
+    private static ByteBuffer valueBytes(SerializedValue value) throws IOException {
+        int sizeInBytes = value.sizeInBytes();
+        if (sizeInBytes < 0)
+            throw new IllegalStateException("Serialized value reported a negative size of " + sizeInBytes + " bytes");
+        ByteArrayOutputStream valueBytes = new ByteArrayOutputStream(sizeInBytes);
+        value.writeTo(valueBytes);
+        if (valueBytes.size() != sizeInBytes)
+            throw new IllegalStateException("Serialized value wrote " + valueBytes.size() + " bytes but reported a size of "
+                    + sizeInBytes + " bytes");
+        return ByteBuffer.wrap(valueBytes.toByteArray());
+    }
+
     /**
      * Append a new record at the next sequential offset.
      *
@@ -739,6 +798,18 @@ public class MemoryRecordsBuilder {
      * re-allocation in the underlying byte buffer stream.
      */
     public boolean hasRoomFor(long timestamp, ByteBuffer key, ByteBuffer value, Header[] headers) {
+        return hasRoomFor(timestamp, key == null ? -1 : key.remaining(), value == null ? -1 : value.remaining(), headers);
+    }
+
+    /**
+     * Check if we have room for a new record containing the given key and a value of the given size. If no records
+     * have been appended, then this returns true.
+     */
+    public boolean hasRoomFor(long timestamp, ByteBuffer key, int valueSize, Header[] headers) {
+        return hasRoomFor(timestamp, key == null ? -1 : key.remaining(), valueSize, headers);
+    }
+
+    private boolean hasRoomFor(long timestamp, int keySize, int valueSize, Header[] headers) {
         if (isFull())
             return false;
 
@@ -748,11 +819,11 @@ public class MemoryRecordsBuilder {
 
         final int recordSize;
         if (magic < RecordBatch.MAGIC_VALUE_V2) {
-            recordSize = Records.LOG_OVERHEAD + LegacyRecord.recordSize(magic, key, value);
+            recordSize = Records.LOG_OVERHEAD + LegacyRecord.recordSize(magic, Math.max(keySize, 0), Math.max(valueSize, 0));
         } else {
             int nextOffsetDelta = lastOffset == null ? 0 : (int) (lastOffset - baseOffset + 1);
             long timestampDelta = firstTimestamp == null ? 0 : timestamp - firstTimestamp;
-            recordSize = DefaultRecord.sizeInBytes(nextOffsetDelta, timestampDelta, key, value, headers);
+            recordSize = DefaultRecord.sizeInBytes(nextOffsetDelta, timestampDelta, keySize, valueSize, headers);
         }
 
         // Be conservative and not take compression of the new record into consideration.
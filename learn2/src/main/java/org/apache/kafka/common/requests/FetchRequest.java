@@ -25,6 +25,7 @@ import org.apache.kafka.common.protocol.types.Schema;
 import org.apache.kafka.common.protocol.types.Struct;
 import org.apache.kafka.common.protocol.types.Type;
 import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.RecordBatch;
 import org.apache.kafka.common.utils.Utils;
 
 import java.nio.ByteBuffer;
@@ -37,6 +38,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
+import static org.apache.kafka.common.protocol.CommonFields.CURRENT_LEADER_EPOCH;
 import static org.apache.kafka.common.protocol.CommonFields.PARTITION_ID;
 import static org.apache.kafka.common.protocol.CommonFields.TOPIC_NAME;
 import static org.apache.kafka.common.protocol.types.Type.INT32;
@@ -77,6 +79,16 @@ public class FetchRequest extends AbstractRequest {
                     "The field is only used when request is sent by follower. "),
             new Field(MAX_BYTES_KEY_NAME, INT32, "Maximum bytes to fetch."));
 
+    // FETCH_REQUEST_PARTITION_V9 added current_leader_epoch field. The client does not track leader epochs and always
+    // sends -1, which disables the fencing on the broker.
+    private static final Schema FETCH_REQUEST_PARTITION_V9 = new Schema(
+            PARTITION_ID,
+            CURRENT_LEADER_EPOCH,
+            new Field(FETCH_OFFSET_KEY_NAME, INT64, "Message offset."),
+            new Field(LOG_START_OFFSET_KEY_NAME, INT64, "Earliest available offset of the follower replica. " +
+                    "The field is only used when request is sent by follower. "),
+            new Field(MAX_BYTES_KEY_NAME, INT32, "Maximum bytes to fetch."));
+
     private static final Schema FETCH_REQUEST_TOPIC_V0 = new Schema(
             TOPIC_NAME,
             new Field(PARTITIONS_KEY_NAME, new ArrayOf(FETCH_REQUEST_PARTITION_V0), "Partitions to fetch."));
@@ -85,6 +97,10 @@ public class FetchRequest extends AbstractRequest {
             TOPIC_NAME,
             new Field(PARTITIONS_KEY_NAME, new ArrayOf(FETCH_REQUEST_PARTITION_V5), "Partitions to fetch."));
 
+    private static final Schema FETCH_REQUEST_TOPIC_V9 = new Schema(
+            TOPIC_NAME,
+            new Field(PARTITIONS_KEY_NAME, new ArrayOf(FETCH_REQUEST_PARTITION_V9), "Partitions to fetch."));
+
     private static final Schema FETCH_REQUEST_V0 = new Schema(
             new Field(REPLICA_ID_KEY_NAME, INT32, "Broker id of the follower. For normal consumers, use -1."),
             new Field(MAX_WAIT_KEY_NAME, INT32, "Maximum time in ms to wait for the response."),
@@ -180,9 +196,36 @@ public class FetchRequest extends AbstractRequest {
      */
     private static final Schema FETCH_REQUEST_V8 = FETCH_REQUEST_V7;
 
+    // FETCH_REQUEST_V9 added the current leader epoch to the partition data.
+    private static final Schema FETCH_REQUEST_V9 = new Schema(
+            new Field(REPLICA_ID_KEY_NAME, INT32, "Broker id of the follower. For normal consumers, use -1."),
+            new Field(MAX_WAIT_KEY_NAME, INT32, "Maximum time in ms to wait for the response."),
+            new Field(MIN_BYTES_KEY_NAME, INT32, "Minimum bytes to accumulate in the response."),
+            new Field(MAX_BYTES_KEY_NAME, INT32, "Maximum bytes to accumulate in the response. Note that this is not an absolute maximum, " +
+                    "if the first message in the first non-empty partition of the fetch is larger than this " +
+                    "value, the message will still be returned to ensure that progress can be made."),
+            new Field(ISOLATION_LEVEL_KEY_NAME, INT8, "This setting controls the visibility of transactional records. Using READ_UNCOMMITTED " +
+                    "(isolation_level = 0) makes all records visible. With READ_COMMITTED (isolation_level = 1), " +
+                    "non-transactional and COMMITTED transactional records are visible. To be more concrete, " +
+                    "READ_COMMITTED returns all data from offsets smaller than the current LSO (last stable offset), " +
+                    "and enables the inclusion of the list of aborted transactions in the result, which allows " +
+                    "consumers to discard ABORTED transactional records"),
+            SESSION_ID,
+            EPOCH,
+            new Field(TOPICS_KEY_NAME, new ArrayOf(FETCH_REQUEST_TOPIC_V9), "Topics to fetch in the order provided."),
+            new Field(FORGOTTEN_TOPICS_DATA, new ArrayOf(FORGOTTEN_TOPIC_DATA), "Topics to remove from the fetch session."));
+
+    /**
+     * The body of FETCH_REQUEST_V10 is the same as FETCH_REQUEST_V9.
+     * The version number is bumped up to indicate ZStandard capability. Brokers only return ZStandard compressed
+     * record batches in response to this version or higher.
+     */
+    private static final Schema FETCH_REQUEST_V10 = FETCH_REQUEST_V9;
+
     public static Schema[] schemaVersions() {
         return new Schema[]{FETCH_REQUEST_V0, FETCH_REQUEST_V1, FETCH_REQUEST_V2, FETCH_REQUEST_V3, FETCH_REQUEST_V4,
-                FETCH_REQUEST_V5, FETCH_REQUEST_V6, FETCH_REQUEST_V7, FETCH_REQUEST_V8};
+                FETCH_REQUEST_V5, FETCH_REQUEST_V6, FETCH_REQUEST_V7, FETCH_REQUEST_V8, FETCH_REQUEST_V9,
+                FETCH_REQUEST_V10};
     }
 
     ;
@@ -488,6 +531,7 @@ public class FetchRequest extends AbstractRequest {
                 Struct partitionData = topicData.instance(PARTITIONS_KEY_NAME);
                 partitionData.set(PARTITION_ID, partitionEntry.getKey());
                 partitionData.set(FETCH_OFFSET_KEY_NAME, fetchPartitionData.fetchOffset);
+                partitionData.setIfExists(CURRENT_LEADER_EPOCH, RecordBatch.NO_PARTITION_LEADER_EPOCH);
                 if (partitionData.hasField(LOG_START_OFFSET_KEY_NAME))
                     partitionData.set(LOG_START_OFFSET_KEY_NAME, fetchPartitionData.logStartOffset);
                 partitionData.set(MAX_BYTES_KEY_NAME, fetchPartitionData.maxBytes);
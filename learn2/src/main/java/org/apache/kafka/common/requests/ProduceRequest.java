@@ -17,6 +17,7 @@
 package org.apache.kafka.common.requests;
 
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.UnsupportedCompressionTypeException;
 import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.protocol.CommonFields;
 import org.apache.kafka.common.protocol.Errors;
@@ -24,6 +25,7 @@ import org.apache.kafka.common.protocol.types.ArrayOf;
 import org.apache.kafka.common.protocol.types.Field;
 import org.apache.kafka.common.protocol.types.Schema;
 import org.apache.kafka.common.protocol.types.Struct;
+import org.apache.kafka.common.record.CompressionType;
 import org.apache.kafka.common.record.InvalidRecordException;
 import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.record.MutableRecordBatch;
@@ -125,9 +127,21 @@ public class ProduceRequest extends AbstractRequest {
      */
     private static final Schema PRODUCE_REQUEST_V6 = PRODUCE_REQUEST_V5;
 
+    /**
+     * The body of PRODUCE_REQUEST_V7 is the same as PRODUCE_REQUEST_V6.
+     * The version number is bumped up to indicate ZStandard compression support. Brokers reject record batches
+     * compressed with ZStandard in requests with a lower version.
+     */
+    private static final Schema PRODUCE_REQUEST_V7 = PRODUCE_REQUEST_V6;
+
+    /**
+     * The minimum version of the produce request that may carry ZStandard compressed record batches
+     */
+    public static final short MIN_ZSTD_VERSION = 7;
+
     public static Schema[] schemaVersions() {
         return new Schema[]{PRODUCE_REQUEST_V0, PRODUCE_REQUEST_V1, PRODUCE_REQUEST_V2, PRODUCE_REQUEST_V3,
-                PRODUCE_REQUEST_V4, PRODUCE_REQUEST_V5, PRODUCE_REQUEST_V6};
+                PRODUCE_REQUEST_V4, PRODUCE_REQUEST_V5, PRODUCE_REQUEST_V6, PRODUCE_REQUEST_V7};
     }
 
     public static class Builder extends AbstractRequest.Builder<ProduceRequest> {
@@ -160,12 +174,24 @@ public class ProduceRequest extends AbstractRequest {
                 minVersion = 2;
                 maxVersion = 2;
             } else {
-                minVersion = 3;
+                // ZStandard compressed batches can only be sent to brokers that support them, the version check
+                // against the node's api versions then fails the request rather than the broker rejecting it
+                minVersion = containsZstd(partitionRecords) ? MIN_ZSTD_VERSION : 3;
                 maxVersion = ApiKeys.PRODUCE.latestVersion();
             }
             return new Builder(minVersion, maxVersion, acks, timeout, partitionRecords, transactionalId);
         }
 
+        private static boolean containsZstd(Map<TopicPartition, MemoryRecords> partitionRecords) {
+            for (MemoryRecords records : partitionRecords.values()) {
+                for (RecordBatch batch : records.batches()) {
+                    if (batch.compressionType() == CompressionType.ZSTD)
+                        return true;
+                }
+            }
+            return false;
+        }
+
         private Builder(short minVersion,
                         short maxVersion,
                         short acks,
@@ -265,6 +291,10 @@ public class ProduceRequest extends AbstractRequest {
             if (iterator.hasNext())
                 throw new InvalidRecordException("Produce requests with version " + version + " are only allowed to " +
                         "contain exactly one record batch");
+
+            if (version < MIN_ZSTD_VERSION && entry.compressionType() == CompressionType.ZSTD)
+                throw new UnsupportedCompressionTypeException("Produce requests with version " + version + " are not " +
+                        "allowed to use ZStandard compression");
             idempotent = entry.hasProducerId();
             transactional = entry.isTransactional();
         }
@@ -345,6 +375,7 @@ public class ProduceRequest extends AbstractRequest {
             case 4:
             case 5:
             case 6:
+            case 7:
                 return new ProduceResponse(responseMap, throttleTimeMs);
             default:
                 throw new IllegalArgumentException(String.format("Version %d is not valid. Valid versions for %s are 0 to %d",
@@ -415,6 +446,7 @@ public class ProduceRequest extends AbstractRequest {
             case 4:
             case 5:
             case 6:
+            case 7:
                 return RecordBatch.MAGIC_VALUE_V2;
 
             default:
@@ -16,9 +16,11 @@
  */
 package org.apache.kafka.common.serialization;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.utils.Utils;
 
 /**
  * A Deserializer that has access to the headers associated with the record.
@@ -75,5 +77,18 @@ public interface ExtendedDeserializer<T> extends Deserializer<T> {
         public static <T> ExtendedDeserializer<T> ensureExtended(Deserializer<T> deserializer) {
             return deserializer == null ? null : deserializer instanceof ExtendedDeserializer ? (ExtendedDeserializer<T>) deserializer : new Wrapper<>(deserializer);
         }
+
+        /**
+         * Deserialize the bytes between the position and the limit of a buffer, handing the buffer itself to a
+         * {@link SliceDeserializer} and a byte array to any other deserializer. The array is copied out of the buffer
+         * unless the buffer wraps exactly the whole of it.
+         */
+        public static <T> T deserialize(ExtendedDeserializer<T> deserializer, String topic, Headers headers, ByteBuffer data) {
+            if (deserializer instanceof SliceDeserializer)
+                return ((SliceDeserializer<T>) deserializer).deserialize(topic, headers, data);
+            if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0 && data.remaining() == data.array().length)
+                return deserializer.deserialize(topic, headers, data.array());
+            return deserializer.deserialize(topic, headers, Utils.toArray(data));
+        }
     }
 }
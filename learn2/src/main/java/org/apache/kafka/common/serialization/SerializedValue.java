@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.serialization;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The serialized form of a value prepared by a {@link StreamingSerializer}. Its size is known before it is written, so
+ * the record length can be encoded ahead of the value and the value can then be copied straight to the output of the
+ * record batch.
+ */
+public interface SerializedValue {
+
+    /**
+     * The number of bytes {@link #writeTo(OutputStream)} will write
+     */
+    int sizeInBytes();
+
+    /**
+     * Write exactly {@link #sizeInBytes()} bytes to the given stream. This may be called more than once for the same
+     * value, e.g. when a batch is full and the record is appended to a new one.
+     *
+     * @param out the stream to write to
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
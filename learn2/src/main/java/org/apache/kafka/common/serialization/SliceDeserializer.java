@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.serialization;
+
+import java.nio.ByteBuffer;
+
+import org.apache.kafka.common.header.Headers;
+
+/**
+ * 直接从fetch 缓冲区读取的反序列化器，避免先将key/value 拷贝成byte数组
+ * <p>
+ * An {@link ExtendedDeserializer} that can read keys and values straight from the buffer they were fetched into
+ * instead of from a copy of them. When the key or value deserializer of a consumer implements this interface, the
+ * consumer calls {@link #deserialize(String, Headers, ByteBuffer)} with a view of the serialized bytes for every
+ * non-null key or value.
+ * <p>
+ * The buffer is only valid until the call returns: the memory behind it is shared with the other records of the fetch
+ * and may be reused once the records are handed out. Implementations must not modify its content nor keep a reference
+ * to it, and must copy whatever part of it the returned object refers to.
+ *
+ * @param <T> Type to be deserialized into.
+ */
+public interface SliceDeserializer<T> extends ExtendedDeserializer<T> {
+
+    /**
+     * Deserialize a record key or value from a buffer.
+     *
+     * @param topic   topic associated with the data
+     * @param headers headers associated with the record; may be empty.
+     * @param data    serialized bytes between the position and the limit of the buffer, never null
+     * @return deserialized typed data; may be null
+     */
+    T deserialize(String topic, Headers headers, ByteBuffer data);
+}
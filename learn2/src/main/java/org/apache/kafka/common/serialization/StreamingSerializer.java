@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.serialization;
+
+import org.apache.kafka.common.header.Headers;
+
+/**
+ * 可以直接写入批次缓冲区的序列化器，避免先生成中间的byte数组再拷贝一次
+ * <p>
+ * An {@link ExtendedSerializer} that can write values directly into the producer's record batch instead of returning
+ * a byte array that is then copied into it. When the value serializer of a producer implements this interface, the
+ * producer calls {@link #prepare(String, Headers, Object)} for every non-null value and appends the returned
+ * {@link SerializedValue} to the batch. Partitioners are then given a null {@code valueBytes}.
+ * <p>
+ * The returned value only has to stay valid until the send call that prepared it returns, so implementations may
+ * encode into a per-thread scratch buffer and hand out a view of it. An instance should therefore not be used as both
+ * key and value serializer of the same producer.
+ *
+ * @param <T> Type to be serialized from.
+ */
+public interface StreamingSerializer<T> extends ExtendedSerializer<T> {
+
+    /**
+     * Encode {@code data} so that it can be written to a record batch.
+     *
+     * @param topic   topic associated with data
+     * @param headers headers associated with the record
+     * @param data    typed data, never null
+     * @return the serialized value
+     */
+    SerializedValue prepare(String topic, Headers headers, T data);
+}
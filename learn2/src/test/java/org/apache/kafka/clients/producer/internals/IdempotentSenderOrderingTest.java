@@ -0,0 +1,502 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.clients.producer.internals;
+
+import org.apache.kafka.clients.ApiVersions;
+import org.apache.kafka.clients.ClientRequest;
+import org.apache.kafka.clients.ClientResponse;
+import org.apache.kafka.clients.KafkaClient;
+import org.apache.kafka.clients.Metadata;
+import org.apache.kafka.clients.RequestCompletionHandler;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.AuthenticationException;
+import org.apache.kafka.common.errors.RecordBatchTooLargeException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MutableRecordBatch;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.requests.AbstractRequest;
+import org.apache.kafka.common.requests.ProduceRequest;
+import org.apache.kafka.common.requests.ProduceResponse;
+import org.apache.kafka.common.utils.LogContext;
+import org.apache.kafka.common.utils.Time;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 幂等生产者在单个连接上超过5个在途请求时，乱序、失败的响应下仍按序列号顺序写入
+ * <p>
+ * Drives a {@link Sender} for an idempotent producer against a client whose connection allows more than 5 requests in
+ * flight, and a fake broker that checks sequence numbers the way the broker does. The tests answer the requests out of
+ * order or fail them, and check that the records are still appended in the order they were sent.
+ */
+public class IdempotentSenderOrderingTest {
+
+    private static final int MAX_IN_FLIGHT_REQUESTS = 10;
+    private static final long PRODUCER_ID = 1000L;
+
+    private final Node node = new Node(0, "localhost", 9092);
+    private final TopicPartition tp0 = new TopicPartition("test", 0);
+    private final TopicPartition tp1 = new TopicPartition("test", 1);
+
+    private ManualTime time;
+    private TransactionManager transactionManager;
+    private RecordAccumulator accumulator;
+    private MockProduceClient client;
+    private FakeBroker broker;
+    private Sender sender;
+
+    @Before
+    public void setup() {
+        time = new ManualTime();
+        Cluster cluster = new Cluster("cluster", Collections.singletonList(node), Arrays.asList(
+            new PartitionInfo(tp0.topic(), tp0.partition(), node, new Node[] {node}, new Node[] {node}),
+            new PartitionInfo(tp1.topic(), tp1.partition(), node, new Node[] {node}, new Node[] {node})),
+            Collections.<String>emptySet(), Collections.<String>emptySet());
+        Metadata metadata = new Metadata(0, Long.MAX_VALUE, true);
+        metadata.update(cluster, Collections.<String>emptySet(), time.milliseconds());
+
+        transactionManager = new TransactionManager(new LogContext(), null, 0, 0L);
+        transactionManager.setProducerIdAndEpoch(new ProducerIdAndEpoch(PRODUCER_ID, (short) 0));
+
+        Metrics metrics = new Metrics(time);
+        // the batches are smaller than a record, so that every record gets a batch of its own
+        accumulator = new RecordAccumulator(new LogContext(), 16,
+            new BufferPool(1024 * 1024, 16, metrics, time, "producer-metrics"), CompressionType.NONE, 0L, null, null,
+            0L, metrics, time, new ApiVersions(), transactionManager, false, false, false, null);
+        client = new MockProduceClient(time, MAX_IN_FLIGHT_REQUESTS);
+        broker = new FakeBroker();
+        sender = new Sender(new LogContext(), client, metadata, accumulator, false, 1024 * 1024, (short) -1,
+            Integer.MAX_VALUE, new SenderMetricsRegistry(metrics), time, 30000, 0L, transactionManager,
+            new ApiVersions(), null, null);
+    }
+
+    @Test
+    public void testConnectionKeepsMoreThanFiveRequestsInFlight() {
+        List<Future<RecordMetadata>> futures0 = append(tp0, 8);
+        runSender(8);
+        // the broker only remembers the last 5 batches of a partition, so the sixth batch waits
+        assertEquals(5, client.inFlightRequestCount());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), client.sentSequences(tp0));
+        assertTrue(transactionManager.hasMaxInFlightBatches(tp0));
+
+        // but the connection still takes the batches of the other partitions
+        List<Future<RecordMetadata>> futures1 = append(tp1, 3);
+        runSender(3);
+        assertEquals(8, client.inFlightRequestCount(node.idString()));
+
+        client.respond(client.inFlight().get(0), broker);
+        runSender(2);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), client.sentSequences(tp0));
+
+        respondUntilDone(futures0, false);
+        respondUntilDone(futures1, false);
+        assertOffsetsInOrder(futures0, 0);
+        assertOffsetsInOrder(futures1, 0);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7), broker.appendedSequences(tp0));
+        assertEquals(7, transactionManager.lastAckedSequence(tp0));
+    }
+
+    @Test
+    public void testOutOfOrderResponsesAreRetriedInSequenceOrder() {
+        List<Future<RecordMetadata>> futures0 = append(tp0, 5);
+        List<Future<RecordMetadata>> futures1 = append(tp1, 3);
+        runSender(5);
+        assertEquals(5, client.inFlightRequestCount());
+        // the first request carries the first batch of both partitions
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), client.sentSequences(tp0));
+
+        // the broker gets the requests in reverse order, so it rejects every batch but the first one
+        List<ClientRequest> requests = new ArrayList<>(client.inFlight());
+        Collections.reverse(requests);
+        for (ClientRequest request : requests)
+            client.respond(request, broker);
+        runSender(1);
+        assertEquals(Arrays.asList(0), broker.appendedSequences(tp0));
+
+        respondUntilDone(futures0, true);
+        respondUntilDone(futures1, true);
+        assertOffsetsInOrder(futures0, 0);
+        assertOffsetsInOrder(futures1, 0);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), broker.appendedSequences(tp0));
+        assertEquals(Arrays.asList(0, 1, 2), broker.appendedSequences(tp1));
+        assertEquals(4, transactionManager.lastAckedSequence(tp0));
+    }
+
+    @Test
+    public void testFailedBatchShiftsTheSequencesOfLaterBatches() {
+        List<Future<RecordMetadata>> futures = append(tp0, 7);
+        runSender(7);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), client.sentSequences(tp0));
+
+        // the first batch fails for good, so the broker rejects the batches sent after it as out of order
+        broker.failNext(tp0, Errors.RECORD_LIST_TOO_LARGE);
+        List<ClientRequest> requests = new ArrayList<>(client.inFlight());
+        client.respond(requests.get(0), broker);
+        for (int i = requests.size() - 1; i > 0; i--)
+            client.respond(requests.get(i), broker);
+        runSender(1);
+
+        try {
+            futures.get(0).get();
+            fail("The first record should have failed");
+        } catch (Exception e) {
+            assertTrue(e instanceof ExecutionException);
+            assertTrue(e.getCause() instanceof RecordBatchTooLargeException);
+        }
+        // the sequences of the batches in flight were moved back to close the gap left by the failed one
+        respondUntilDone(futures.subList(1, futures.size()), true);
+        assertOffsetsInOrder(futures.subList(1, futures.size()), 0);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), broker.appendedSequences(tp0));
+        assertEquals(5, transactionManager.lastAckedSequence(tp0));
+    }
+
+    @Test
+    public void testRetriableErrorsInTheMiddleOfTheWindowKeepOrder() {
+        List<Future<RecordMetadata>> futures = append(tp0, 9);
+        runSender(9);
+
+        // the third batch hits a leader change and the ones after it arrive before its retry
+        List<ClientRequest> requests = new ArrayList<>(client.inFlight());
+        client.respond(requests.get(0), broker);
+        client.respond(requests.get(1), broker);
+        broker.failNext(tp0, Errors.NOT_LEADER_FOR_PARTITION);
+        client.respond(requests.get(2), broker);
+        client.respond(requests.get(4), broker);
+        client.respond(requests.get(3), broker);
+        runSender(1);
+        assertEquals(Arrays.asList(0, 1), broker.appendedSequences(tp0));
+
+        respondUntilDone(futures, false);
+        assertOffsetsInOrder(futures, 0);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8), broker.appendedSequences(tp0));
+        assertFalse(transactionManager.hasInflightBatches(tp0));
+    }
+
+    private List<Future<RecordMetadata>> append(TopicPartition tp, int count) {
+        List<Future<RecordMetadata>> futures = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++)
+                futures.add(accumulator.append(tp, time.milliseconds(), null, new byte[100], new Header[0], null, 0L,
+                    false).future);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        return futures;
+    }
+
+    private void runSender(int times) {
+        for (int i = 0; i < times; i++)
+            sender.run(time.milliseconds());
+    }
+
+    /**
+     * Keep answering the requests in flight, the last one first if reversed, until all the futures are done
+     */
+    private void respondUntilDone(List<Future<RecordMetadata>> futures, boolean reversed) {
+        for (int i = 0; i < 100; i++) {
+            boolean done = true;
+            for (Future<RecordMetadata> future : futures)
+                done &= future.isDone();
+            if (done)
+                return;
+            runSender(1);
+            List<ClientRequest> requests = new ArrayList<>(client.inFlight());
+            if (reversed)
+                Collections.reverse(requests);
+            for (ClientRequest request : requests)
+                client.respond(request, broker);
+            runSender(1);
+        }
+        fail("The records were not acknowledged");
+    }
+
+    private void assertOffsetsInOrder(List<Future<RecordMetadata>> futures, long firstOffset) {
+        try {
+            for (int i = 0; i < futures.size(); i++)
+                assertEquals(firstOffset + i, futures.get(i).get().offset());
+        } catch (InterruptedException | ExecutionException e) {
+            throw new AssertionError("The record was not appended", e);
+        }
+    }
+
+    /**
+     * 按序列号校验幂等写入的broker
+     * <p>
+     * Appends a batch only if its base sequence is the next one of its partition, and otherwise answers like the
+     * broker does: a duplicate for a sequence already appended and an out of order error for a gap.
+     */
+    private static class FakeBroker {
+        private final Map<TopicPartition, List<Integer>> appended = new HashMap<>();
+        private final Map<TopicPartition, Errors> nextErrors = new HashMap<>();
+
+        void failNext(TopicPartition tp, Errors error) {
+            nextErrors.put(tp, error);
+        }
+
+        List<Integer> appendedSequences(TopicPartition tp) {
+            List<Integer> sequences = appended.get(tp);
+            return sequences == null ? Collections.<Integer>emptyList() : sequences;
+        }
+
+        ProduceResponse handle(ProduceRequest request) {
+            Map<TopicPartition, ProduceResponse.PartitionResponse> responses = new HashMap<>();
+            for (Map.Entry<TopicPartition, MemoryRecords> entry : request.partitionRecordsOrFail().entrySet()) {
+                TopicPartition tp = entry.getKey();
+                RecordBatch batch = firstBatch(entry.getValue());
+                assertEquals(PRODUCER_ID, batch.producerId());
+                List<Integer> sequences = appended.get(tp);
+                if (sequences == null) {
+                    sequences = new ArrayList<>();
+                    appended.put(tp, sequences);
+                }
+                int nextSequence = sequences.isEmpty() ? 0 : sequences.get(sequences.size() - 1) + 1;
+                Errors error = nextErrors.remove(tp);
+                if (error == null && batch.baseSequence() == nextSequence) {
+                    long baseOffset = sequences.size();
+                    for (int sequence = batch.baseSequence(); sequence <= batch.lastSequence(); sequence++)
+                        sequences.add(sequence);
+                    responses.put(tp, new ProduceResponse.PartitionResponse(Errors.NONE, baseOffset,
+                        RecordBatch.NO_TIMESTAMP, 0L));
+                } else {
+                    if (error == null)
+                        error = batch.baseSequence() < nextSequence ? Errors.DUPLICATE_SEQUENCE_NUMBER
+                            : Errors.OUT_OF_ORDER_SEQUENCE_NUMBER;
+                    responses.put(tp, new ProduceResponse.PartitionResponse(error));
+                }
+            }
+            return new ProduceResponse(responses);
+        }
+
+        private static RecordBatch firstBatch(MemoryRecords records) {
+            for (MutableRecordBatch batch : records.batches())
+                return batch;
+            throw new IllegalStateException("No batch in the produce request");
+        }
+    }
+
+    /**
+     * 只处理produce请求的KafkaClient，连接总是就绪，请求直到被应答前一直在途
+     * <p>
+     * A client for a single always connected node that keeps the requests sent in flight until the test answers them,
+     * allowing up to the given number of requests in flight per connection like the network client does.
+     */
+    private static class MockProduceClient implements KafkaClient {
+        private final Time time;
+        private final int maxInFlightRequests;
+        private final List<ClientRequest> inFlight = new ArrayList<>();
+        private final List<ClientResponse> responses = new ArrayList<>();
+        private final Map<TopicPartition, List<Integer>> sentSequences = new HashMap<>();
+        private int correlationId = 0;
+
+        MockProduceClient(Time time, int maxInFlightRequests) {
+            this.time = time;
+            this.maxInFlightRequests = maxInFlightRequests;
+        }
+
+        List<ClientRequest> inFlight() {
+            return inFlight;
+        }
+
+        List<Integer> sentSequences(TopicPartition tp) {
+            List<Integer> sequences = sentSequences.get(tp);
+            return sequences == null ? Collections.<Integer>emptyList() : sequences;
+        }
+
+        /**
+         * Let the broker handle the request, the response is delivered by the next poll
+         */
+        void respond(ClientRequest request, FakeBroker broker) {
+            if (!inFlight.remove(request))
+                throw new IllegalStateException("Request " + request + " is not in flight");
+            ProduceRequest produceRequest = (ProduceRequest) request.requestBuilder().build();
+            responses.add(new ClientResponse(request.makeHeader(ApiKeys.PRODUCE.latestVersion()), request.callback(),
+                request.destination(), request.createdTimeMs(), time.milliseconds(), false, null, null,
+                broker.handle(produceRequest)));
+        }
+
+        @Override
+        public boolean isReady(Node node, long now) {
+            return inFlightRequestCount(node.idString()) < maxInFlightRequests;
+        }
+
+        @Override
+        public boolean ready(Node node, long now) {
+            return isReady(node, now);
+        }
+
+        @Override
+        public long connectionDelay(Node node, long now) {
+            return 0;
+        }
+
+        @Override
+        public long pollDelayMs(Node node, long now) {
+            return 0;
+        }
+
+        @Override
+        public boolean connectionFailed(Node node) {
+            return false;
+        }
+
+        @Override
+        public AuthenticationException authenticationException(Node node) {
+            return null;
+        }
+
+        @Override
+        public void send(ClientRequest request, long now) {
+            if (request.apiKey() != ApiKeys.PRODUCE)
+                throw new IllegalStateException("Unexpected request " + request);
+            ProduceRequest produceRequest = (ProduceRequest) request.requestBuilder().build();
+            for (Map.Entry<TopicPartition, MemoryRecords> entry : produceRequest.partitionRecordsOrFail().entrySet()) {
+                List<Integer> sequences = sentSequences.get(entry.getKey());
+                if (sequences == null) {
+                    sequences = new ArrayList<>();
+                    sentSequences.put(entry.getKey(), sequences);
+                }
+                for (MutableRecordBatch batch : entry.getValue().batches())
+                    sequences.add(batch.baseSequence());
+            }
+            inFlight.add(request);
+        }
+
+        @Override
+        public List<ClientResponse> poll(long timeout, long now) {
+            List<ClientResponse> completed = new ArrayList<>(responses);
+            responses.clear();
+            for (ClientResponse response : completed)
+                response.onComplete();
+            return completed;
+        }
+
+        @Override
+        public void disconnect(String nodeId) {
+        }
+
+        @Override
+        public void close(String nodeId) {
+        }
+
+        @Override
+        public Node leastLoadedNode(long now) {
+            return null;
+        }
+
+        @Override
+        public int inFlightRequestCount() {
+            return inFlight.size();
+        }
+
+        @Override
+        public boolean hasInFlightRequests() {
+            return !inFlight.isEmpty();
+        }
+
+        @Override
+        public int inFlightRequestCount(String nodeId) {
+            int count = 0;
+            for (ClientRequest request : inFlight) {
+                if (request.destination().equals(nodeId))
+                    count++;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean hasInFlightRequests(String nodeId) {
+            return inFlightRequestCount(nodeId) > 0;
+        }
+
+        @Override
+        public boolean hasReadyNodes(long now) {
+            return true;
+        }
+
+        @Override
+        public void wakeup() {
+        }
+
+        @Override
+        public ClientRequest newClientRequest(String nodeId, AbstractRequest.Builder<?> requestBuilder,
+                                              long createdTimeMs, boolean expectResponse) {
+            return newClientRequest(nodeId, requestBuilder, createdTimeMs, expectResponse, 30000, null);
+        }
+
+        @Override
+        public ClientRequest newClientRequest(String nodeId, AbstractRequest.Builder<?> requestBuilder,
+                                              long createdTimeMs, boolean expectResponse, int requestTimeoutMs,
+                                              RequestCompletionHandler callback) {
+            return new ClientRequest(nodeId, requestBuilder, correlationId++, "producer", createdTimeMs,
+                expectResponse, requestTimeoutMs, callback);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A clock that only moves when the test moves it
+     */
+    private static class ManualTime implements Time {
+        private long nowMs = 1000L;
+
+        @Override
+        public long milliseconds() {
+            return nowMs;
+        }
+
+        @Override
+        public long hiResClockMs() {
+            return nowMs;
+        }
+
+        @Override
+        public long nanoseconds() {
+            return nowMs * 1000000L;
+        }
+
+        @Override
+        public void sleep(long ms) {
+            nowMs += ms;
+        }
+    }
+}